@@ -0,0 +1,175 @@
+package objectlm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Labels many (document, object) jobs on several cores.
+ *
+ * The jobs are split into contiguous shards, several per thread so that
+ * long documents do not leave threads idle. Each worker thread keeps one
+ * SlidingWindowScorer, reset for every job it scores, against the shared,
+ * read-only parameters of the model. The result of a job is the mean probability of
+ * its windows (zeros when the document is shorter than a window).
+ *
+ * Every run records its throughput and per-stage timings, available
+ * from timings() and report().
+ */
+public class BatchInferenceService {
+
+	// shards per thread:
+	private static final int SHARDS_PER_THREAD = 4;
+
+	/*
+	 * A document, as word indices, about one object.
+	 */
+	public static class Job {
+		public final int[] indices;
+		public final int object_index;
+
+		public Job(int[] indices, int object_index) {
+			this.indices = indices;
+			this.object_index = object_index;
+		}
+	}
+
+	public final ObjectLM model;
+	public final int threads;
+
+	private final ExecutorService pool;
+	// scorer of each worker thread:
+	private final ThreadLocal<SlidingWindowScorer> scorers;
+	private Map<String, Long> timings;
+	private long jobs_scored;
+	private long windows_scored;
+
+	public BatchInferenceService(ObjectLM model, int threads) {
+		this.model = model;
+		this.threads = Math.max(1, threads);
+		this.pool = Executors.newFixedThreadPool(this.threads, new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "objectlm-batch-inference");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.scorers = new ThreadLocal<SlidingWindowScorer>();
+		this.timings = new LinkedHashMap<String, Long>();
+	}
+
+	public BatchInferenceService(ObjectLM model) {
+		this(model, Runtime.getRuntime().availableProcessors());
+	}
+
+	/*
+	 * Score the jobs from `from` to `to`, writing each mean into `out`,
+	 * and return the number of windows scored.
+	 */
+	private long score_shard(List<Job> jobs, int from, int to, double[][] out) {
+		SlidingWindowScorer scorer = scorers.get();
+		long windows = 0;
+		for (int i = from; i < to; ++i) {
+			Job job = jobs.get(i);
+			if (scorer == null || !scorer.uses_current_tables()) {
+				scorer = new SlidingWindowScorer(model, job.object_index);
+				scorers.set(scorer);
+			} else {
+				scorer.reset(job.object_index);
+			}
+			for (int index : job.indices) {
+				scorer.push(index);
+			}
+			out[i] = new double[model.prediction_size];
+			scorer.mean_probabilities(out[i], 0);
+			windows += scorer.windows_scored();
+		}
+		return windows;
+	}
+
+	/*
+	 * Mean probabilities of each job's windows, in the order of `jobs`.
+	 */
+	public double[][] predict_proba(final List<Job> jobs) throws Exception {
+		final Map<String, Long> run_timings = Collections.synchronizedMap(new LinkedHashMap<String, Long>());
+		long start = System.nanoTime();
+
+		final double[][] out = new double[jobs.size()][];
+		int shards = Math.min(jobs.size(), threads * SHARDS_PER_THREAD);
+		List<Future<Long>> futures = new ArrayList<Future<Long>>(shards);
+		for (int s = 0; s < shards; ++s) {
+			final int from = (int) ((long) s * jobs.size() / shards);
+			final int to = (int) ((long) (s + 1) * jobs.size() / shards);
+			futures.add(pool.submit(new Callable<Long>() {
+				public Long call() throws Exception {
+					long start = System.nanoTime();
+					long windows = score_shard(jobs, from, to, out);
+					long elapsed = (System.nanoTime() - start) / 1000;
+					synchronized (run_timings) {
+						Long total = run_timings.get("worker scoring (us)");
+						run_timings.put("worker scoring (us)", total == null ? elapsed : total + elapsed);
+					}
+					return windows;
+				}
+			}));
+		}
+		run_timings.put("partition (us)", (System.nanoTime() - start) / 1000);
+
+		long wait_start = System.nanoTime();
+		long windows = 0;
+		for (Future<Long> future : futures) {
+			windows += SavedModelLoader.await(future);
+		}
+		run_timings.put("wait (us)", (System.nanoTime() - wait_start) / 1000);
+		run_timings.put("total (us)", (System.nanoTime() - start) / 1000);
+		run_timings.put("jobs", (long) jobs.size());
+		run_timings.put("windows", windows);
+		long total = Math.max(1, run_timings.get("total (us)"));
+		run_timings.put("jobs/s", jobs.size() * 1000000L / total);
+		run_timings.put("windows/s", windows * 1000000L / total);
+
+		synchronized (this) {
+			this.timings = run_timings;
+			this.jobs_scored += jobs.size();
+			this.windows_scored += windows;
+		}
+		return out;
+	}
+
+	/*
+	 * Labels of each job, taken from the mean probabilities of its windows
+	 * (see ObjectLM.labels).
+	 */
+	public int[][] predict(List<Job> jobs) throws Exception {
+		double[][] probabilities = predict_proba(jobs);
+		int[][] labels = new int[jobs.size()][];
+		for (int i = 0; i < labels.length; ++i) {
+			labels[i] = new int[model.output_classes.size() + model.output_sigmoid_classes];
+			model.labels(probabilities[i], labels[i]);
+		}
+		return labels;
+	}
+
+	/*
+	 * Throughput and stage timings of the last run.
+	 */
+	public synchronized Map<String, Long> timings() {
+		return new LinkedHashMap<String, Long>(timings);
+	}
+
+	public synchronized String report() {
+		return "<BatchInferenceService threads = " + threads + ", jobs scored = " + jobs_scored
+				+ ", windows scored = " + windows_scored + ", last run = " + timings + ">";
+	}
+
+	public void close() {
+		pool.shutdown();
+	}
+}
@@ -0,0 +1,102 @@
+package objectlm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Labels of a whole document about one object, aggregated over every
+ * window of its text: the mean probabilities of the windows, and how
+ * many windows voted for each label.
+ */
+public class DocumentPrediction {
+	public final int object_index;
+	public int tokens;
+	public int windows;
+
+	// mean over the windows of each probability (prediction_size values):
+	public final double[] mean_probabilities;
+	// softmax_votes.get(c)[l] windows predicted label l of softmax class c:
+	public final List<int[]> softmax_votes;
+	// sigmoid_votes[i] windows predicted sigmoid class i as present:
+	public final int[] sigmoid_votes;
+
+	private final ObjectLM model;
+
+	public DocumentPrediction(ObjectLM model, int object_index) {
+		this.model = model;
+		this.object_index = object_index;
+		this.mean_probabilities = new double[model.prediction_size];
+		this.softmax_votes = new ArrayList<int[]>();
+		for (int output_size : model.output_classes) {
+			softmax_votes.add(new int[output_size]);
+		}
+		this.sigmoid_votes = new int[model.output_sigmoid_classes];
+	}
+
+	/*
+	 * Count the labels of one window.
+	 */
+	void vote(int[] labels) {
+		int c = 0;
+		for (int[] votes : softmax_votes) {
+			votes[labels[c]] += 1;
+			c += 1;
+		}
+		for (int i = 0; i < sigmoid_votes.length; ++i) {
+			sigmoid_votes[i] += labels[c + i];
+		}
+	}
+
+	/*
+	 * Labels of the mean probabilities (see ObjectLM.labels).
+	 */
+	public int[] labels() {
+		int[] labels = new int[softmax_votes.size() + sigmoid_votes.length];
+		model.labels(mean_probabilities, labels);
+		return labels;
+	}
+
+	/*
+	 * Majority vote of the windows: the label most windows chose for each
+	 * softmax class (the lowest on ties), and each sigmoid class present
+	 * when more than half of the windows predicted it.
+	 */
+	public int[] vote_labels() {
+		int[] labels = new int[softmax_votes.size() + sigmoid_votes.length];
+		int c = 0;
+		for (int[] votes : softmax_votes) {
+			int best = 0;
+			for (int l = 1; l < votes.length; ++l) {
+				if (votes[l] > votes[best]) {
+					best = l;
+				}
+			}
+			labels[c++] = best;
+		}
+		for (int i = 0; i < sigmoid_votes.length; ++i) {
+			labels[c + i] = 2 * sigmoid_votes[i] > windows ? 1 : 0;
+		}
+		return labels;
+	}
+
+	public String toString() {
+		StringBuilder self = new StringBuilder("<DocumentPrediction ");
+		self.append("object = " + model.index2object.get(object_index) + ", ");
+		self.append("tokens = " + tokens + ", ");
+		self.append("windows = " + windows);
+		int[] labels = labels();
+		int c = 0, index = 0;
+		for (int[] votes : softmax_votes) {
+			self.append(", " + model.output_labels.get(c).get(labels[c]) + " (" + String.format("%.3f", mean_probabilities[index + labels[c]]) + ")");
+			index += votes.length;
+			c += 1;
+		}
+		for (int i = 0; i < sigmoid_votes.length; ++i) {
+			if (2 * sigmoid_votes[i] > windows) {
+				self.append(", " + model.output_sigmoid_labels.get(i));
+			}
+		}
+		self.append(">");
+		return self.toString();
+	}
+}
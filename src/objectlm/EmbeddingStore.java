@@ -0,0 +1,42 @@
+package objectlm;
+
+/**
+ * Row access to an embedding matrix (one vector per object) together
+ * with its row-normalized copy. Look-ups during inference read the raw
+ * rows, while similarity search only needs the normalized ones.
+ *
+ * Implementations must be safe to read from several threads at once.
+ */
+public interface EmbeddingStore {
+
+	/*
+	 * Number of vectors held.
+	 */
+	public int number_of_rows();
+
+	/*
+	 * Length of each vector.
+	 */
+	public int dimension();
+
+	/*
+	 * Copy the raw vector stored at `row` into `out`, starting at `offset`.
+	 */
+	public void copy_row(int row, double[] out, int offset);
+
+	/*
+	 * Copy the unit-norm vector stored at `row` into `out`, starting at `offset`.
+	 */
+	public void copy_normalized_row(int row, double[] out, int offset);
+
+	/*
+	 * Dot product between the unit-norm vector at `row` and `x`.
+	 */
+	public double normalized_dot(int row, double[] x);
+
+	/*
+	 * A store holding these rows followed by `new_rows` (raw vectors).
+	 * This store is left unchanged, so readers holding it are unaffected.
+	 */
+	public EmbeddingStore append_rows(double[][] new_rows);
+}
@@ -0,0 +1,93 @@
+package objectlm;
+
+import java.io.Serializable;
+
+import objectlm.utils.VectorKernels;
+
+/**
+ * EmbeddingStore holding the raw and the normalized vectors in single
+ * precision, as the Python model was trained. It takes half the memory of
+ * a MatrixEmbeddingStore, and brute-force scans read half the bytes; rows
+ * are widened to double as they are copied out, and dot products with the
+ * normalized rows accumulate in double.
+ */
+public class FloatEmbeddingStore implements EmbeddingStore, Serializable {
+	public final float[] data;
+	public final float[] normalized_data;
+
+	private final int rows;
+	private final int cols;
+
+	private FloatEmbeddingStore(float[] data, float[] normalized_data, int rows, int cols) {
+		this.data = data;
+		this.normalized_data = normalized_data;
+		this.rows = rows;
+		this.cols = cols;
+	}
+
+	/*
+	 * Round the raw and normalized rows of any store (a memory
+	 * mapped one included) into single precision.
+	 */
+	public FloatEmbeddingStore(EmbeddingStore store) {
+		this(new float[store.number_of_rows() * store.dimension()], new float[store.number_of_rows() * store.dimension()],
+				store.number_of_rows(), store.dimension());
+		double[] row = new double[cols];
+		for (int i = 0; i < rows; ++i) {
+			int offset = i * cols;
+			store.copy_row(i, row, 0);
+			for (int j = 0; j < cols; ++j) {
+				data[offset + j] = (float) row[j];
+			}
+			store.copy_normalized_row(i, row, 0);
+			for (int j = 0; j < cols; ++j) {
+				normalized_data[offset + j] = (float) row[j];
+			}
+		}
+	}
+
+	public int number_of_rows() {
+		return rows;
+	}
+
+	public int dimension() {
+		return cols;
+	}
+
+	public void copy_row(int row, double[] out, int offset) {
+		int start = row * cols;
+		for (int j = 0; j < cols; ++j) {
+			out[offset + j] = data[start + j];
+		}
+	}
+
+	public void copy_normalized_row(int row, double[] out, int offset) {
+		int start = row * cols;
+		for (int j = 0; j < cols; ++j) {
+			out[offset + j] = normalized_data[start + j];
+		}
+	}
+
+	public double normalized_dot(int row, double[] x) {
+		return VectorKernels.dot(normalized_data, row * cols, x, 0, cols);
+	}
+
+	public EmbeddingStore append_rows(double[][] new_rows) {
+		float[] out = new float[(rows + new_rows.length) * cols];
+		float[] normalized_out = new float[out.length];
+		System.arraycopy(data, 0, out, 0, rows * cols);
+		System.arraycopy(normalized_data, 0, normalized_out, 0, rows * cols);
+		for (int i = 0; i < new_rows.length; ++i) {
+			int offset = (rows + i) * cols;
+			double norm = Math.sqrt(VectorKernels.dot(new_rows[i], 0, new_rows[i], 0, cols));
+			// a zero row keeps a zero normalized row rather than NaNs:
+			for (int j = 0; j < cols; ++j) {
+				out[offset + j] = (float) new_rows[i][j];
+				normalized_out[offset + j] = norm > 0.0 ? (float) (new_rows[i][j] / norm) : 0.0f;
+			}
+		}
+		return new FloatEmbeddingStore(out, normalized_out, rows + new_rows.length, cols);
+	}
+
+	private static final long serialVersionUID = 1L;
+}
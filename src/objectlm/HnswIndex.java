@@ -0,0 +1,587 @@
+package objectlm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import objectlm.utils.TopK;
+
+/**
+ * Hierarchical Navigable Small World graph (Malkov & Yashunin) over the
+ * normalized rows of an EmbeddingStore, scored by dot product.
+ *
+ * Each row is a node placed on a random number of layers (exponentially
+ * fewer nodes per layer). A search descends greedily through the sparse
+ * upper layers and then explores layer 0 with a beam of `ef_search`
+ * candidates, so only a small fraction of the rows is ever scored.
+ *
+ * - `M` bounds the links of a node per layer (2 * M on layer 0).
+ * - `ef_construction` is the beam used to find the links of a new node.
+ * - `ef_search` is the beam of a query (raise it for better recall).
+ *
+ * Neighbors are chosen with the diversity heuristic of the paper: a
+ * candidate is only linked if it is closer to the new node than to any
+ * neighbor already chosen.
+ *
+ * The graph can be built on several threads (nodes are inserted
+ * concurrently, with striped locks guarding the link lists) and saved to
+ * disk; the vectors themselves are read from the store.
+ */
+public class HnswIndex implements SimilarityIndex {
+
+	public static final int DEFAULT_M = 16;
+	public static final int DEFAULT_EF_CONSTRUCTION = 200;
+	public static final int DEFAULT_EF_SEARCH = 64;
+
+	private static final long MAGIC = 0x57534e484d4c4a4fL;
+	private static final int VERSION = 1;
+	private static final int LOCK_STRIPES = 1 << 12;
+
+	public final int M;
+	public final int ef_construction;
+	// beam width of queries, can be changed at any time:
+	public volatile int ef_search;
+
+	private EmbeddingStore store;
+	private final int dimension;
+	private final double level_multiplier;
+	private final Random random;
+
+	private int rows;
+	private int[] levels;
+	// links[node][layer][0] is the number of neighbors, followed by them:
+	private int[][][] links;
+	private int entry_point;
+	private int max_level;
+
+	private final Object graph_lock = new Object();
+	private final Object[] locks;
+	// link lists are only locked while nodes are inserted:
+	private volatile boolean inserting;
+
+	private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>();
+
+	/*
+	 * Per-thread buffers of searches and insertions.
+	 */
+	private static class Scratch {
+		int[] visited;
+		int generation;
+		final double[] vector;
+		final double[] other;
+		final int[] neighbors;
+
+		Scratch(int rows, int dimension, int max_links) {
+			this.visited = new int[rows];
+			this.vector = new double[dimension];
+			this.other = new double[dimension];
+			this.neighbors = new int[max_links + 1];
+		}
+
+		/*
+		 * Start a new traversal: nodes are visited when they
+		 * carry the current generation.
+		 */
+		void clear_visited(int rows) {
+			if (visited.length < rows) {
+				visited = new int[Math.max(rows, visited.length * 2)];
+				generation = 0;
+			}
+			generation += 1;
+			if (generation == Integer.MAX_VALUE) {
+				java.util.Arrays.fill(visited, 0);
+				generation = 1;
+			}
+		}
+	}
+
+	/*
+	 * Unbounded max-heap of (score, node) candidates left to expand.
+	 */
+	private static class Candidates {
+		double[] scores = new double[64];
+		int[] nodes = new int[64];
+		int size;
+
+		void clear() {
+			size = 0;
+		}
+
+		void push(double score, int node) {
+			if (size == scores.length) {
+				scores = java.util.Arrays.copyOf(scores, size * 2);
+				nodes = java.util.Arrays.copyOf(nodes, size * 2);
+			}
+			int child = size++;
+			while (child > 0) {
+				int parent = (child - 1) >> 1;
+				if (scores[parent] >= score) {
+					break;
+				}
+				scores[child] = scores[parent];
+				nodes[child] = nodes[parent];
+				child = parent;
+			}
+			scores[child] = score;
+			nodes[child] = node;
+		}
+
+		double best_score() {
+			return scores[0];
+		}
+
+		int pop() {
+			int best = nodes[0];
+			size -= 1;
+			double score = scores[size];
+			int node = nodes[size];
+			int position = 0;
+			while (true) {
+				int child = 2 * position + 1;
+				if (child >= size) {
+					break;
+				}
+				if (child + 1 < size && scores[child + 1] > scores[child]) {
+					child += 1;
+				}
+				if (scores[child] <= score) {
+					break;
+				}
+				scores[position] = scores[child];
+				nodes[position] = nodes[child];
+				position = child;
+			}
+			scores[position] = score;
+			nodes[position] = node;
+			return best;
+		}
+	}
+
+	private HnswIndex(EmbeddingStore store, int M, int ef_construction, int ef_search, long seed) {
+		this.store = store;
+		this.dimension = store.dimension();
+		this.M = Math.max(2, M);
+		this.ef_construction = Math.max(this.M, ef_construction);
+		this.ef_search = ef_search;
+		this.level_multiplier = 1.0 / Math.log(this.M);
+		this.random = new Random(seed);
+		this.locks = new Object[LOCK_STRIPES];
+		for (int i = 0; i < locks.length; ++i) {
+			locks[i] = new Object();
+		}
+		this.rows = 0;
+		this.levels = new int[0];
+		this.links = new int[0][][];
+		this.entry_point = -1;
+		this.max_level = -1;
+	}
+
+	/*
+	 * Build the graph over every row of `store` on `threads` threads.
+	 */
+	public HnswIndex(EmbeddingStore store, int M, int ef_construction, int ef_search, int threads, long seed) throws Exception {
+		this(store, M, ef_construction, ef_search, seed);
+		insert_rows(store, 0, threads);
+	}
+
+	public HnswIndex(EmbeddingStore store, int threads) throws Exception {
+		this(store, DEFAULT_M, DEFAULT_EF_CONSTRUCTION, DEFAULT_EF_SEARCH, threads, 1234);
+	}
+
+	private int max_links(int layer) {
+		return layer == 0 ? 2 * M : M;
+	}
+
+	private Scratch scratch() {
+		Scratch s = scratch.get();
+		if (s == null) {
+			s = new Scratch(rows, dimension, 2 * M);
+			scratch.set(s);
+		}
+		return s;
+	}
+
+	/*
+	 * Copy the neighbors of `node` on `layer` into `out`, returning how many.
+	 */
+	private int neighbors(int node, int layer, int[] out) {
+		if (inserting) {
+			synchronized (locks[node & (LOCK_STRIPES - 1)]) {
+				int[] list = links[node][layer];
+				System.arraycopy(list, 1, out, 0, list[0]);
+				return list[0];
+			}
+		}
+		int[] list = links[node][layer];
+		System.arraycopy(list, 1, out, 0, list[0]);
+		return list[0];
+	}
+
+	/*
+	 * Beam search of one layer from `entry`: the `ef` nodes most similar
+	 * to `query` found by expanding the best candidates first.
+	 */
+	private TopK search_layer(double[] query, int entry, double entry_score, int ef, int layer, Scratch s) {
+		s.clear_visited(rows);
+		TopK found = new TopK(ef);
+		Candidates candidates = new Candidates();
+		s.visited[entry] = s.generation;
+		found.offer(entry_score, entry);
+		candidates.push(entry_score, entry);
+		while (candidates.size > 0) {
+			if (candidates.best_score() < found.threshold()) {
+				break;
+			}
+			int node = candidates.pop();
+			int count = neighbors(node, layer, s.neighbors);
+			for (int k = 0; k < count; ++k) {
+				int neighbor = s.neighbors[k];
+				if (s.visited[neighbor] == s.generation) {
+					continue;
+				}
+				s.visited[neighbor] = s.generation;
+				double score = store.normalized_dot(neighbor, query);
+				if (score > found.threshold()) {
+					found.offer(score, neighbor);
+					candidates.push(score, neighbor);
+				}
+			}
+		}
+		return found;
+	}
+
+	/*
+	 * Greedy walk through a layer towards the node most similar to `query`.
+	 */
+	private int greedy_search(double[] query, int entry, double[] entry_score, int layer, Scratch s) {
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			int count = neighbors(entry, layer, s.neighbors);
+			for (int k = 0; k < count; ++k) {
+				double score = store.normalized_dot(s.neighbors[k], query);
+				if (score > entry_score[0]) {
+					entry_score[0] = score;
+					entry = s.neighbors[k];
+					changed = true;
+				}
+			}
+		}
+		return entry;
+	}
+
+	/*
+	 * Diversity heuristic: walk the candidates from most to least similar
+	 * to the base node and keep a candidate only if it is more similar to
+	 * the base node than to every candidate kept so far.
+	 */
+	private int select_neighbors(int[] nodes, double[] scores, int count, int limit, int[] out, Scratch s) {
+		int kept = 0;
+		for (int k = 0; k < count && kept < limit; ++k) {
+			store.copy_normalized_row(nodes[k], s.other, 0);
+			boolean diverse = true;
+			for (int r = 0; r < kept; ++r) {
+				if (store.normalized_dot(out[r], s.other) > scores[k]) {
+					diverse = false;
+					break;
+				}
+			}
+			if (diverse) {
+				out[kept++] = nodes[k];
+			}
+		}
+		return kept;
+	}
+
+	/*
+	 * Link `node` to `neighbor` on `layer`, pruning the neighbor's
+	 * links with the heuristic when it has too many.
+	 */
+	private void add_link(int neighbor, int node, int layer, Scratch s) {
+		synchronized (locks[neighbor & (LOCK_STRIPES - 1)]) {
+			int[] list = links[neighbor][layer];
+			int count = list[0];
+			for (int k = 1; k <= count; ++k) {
+				if (list[k] == node) {
+					return;
+				}
+			}
+			if (count < max_links(layer)) {
+				list[count + 1] = node;
+				list[0] = count + 1;
+				return;
+			}
+			// rank the current links and the new node by similarity to the neighbor:
+			double[] base = new double[dimension];
+			store.copy_normalized_row(neighbor, base, 0);
+			TopK ranked = new TopK(count + 1);
+			for (int k = 1; k <= count; ++k) {
+				ranked.offer(store.normalized_dot(list[k], base), list[k]);
+			}
+			ranked.offer(store.normalized_dot(node, base), node);
+			ranked.sort();
+			int[] nodes = new int[ranked.size()];
+			double[] scores = new double[ranked.size()];
+			for (int k = 0; k < nodes.length; ++k) {
+				nodes[k] = ranked.index(k);
+				scores[k] = ranked.score(k);
+			}
+			int[] kept = new int[max_links(layer)];
+			int kept_count = select_neighbors(nodes, scores, nodes.length, kept.length, kept, s);
+			System.arraycopy(kept, 0, list, 1, kept_count);
+			list[0] = kept_count;
+		}
+	}
+
+	private void insert(int node) {
+		Scratch s = scratch();
+		double[] query = s.vector;
+		store.copy_normalized_row(node, query, 0);
+		int level = levels[node];
+
+		int entry, top;
+		synchronized (graph_lock) {
+			if (entry_point == -1) {
+				entry_point = node;
+				max_level = level;
+				return;
+			}
+			entry = entry_point;
+			top = max_level;
+		}
+
+		double[] entry_score = new double[] {store.normalized_dot(entry, query)};
+		for (int layer = top; layer > level; --layer) {
+			entry = greedy_search(query, entry, entry_score, layer, s);
+		}
+		for (int layer = Math.min(level, top); layer >= 0; --layer) {
+			TopK found = search_layer(query, entry, entry_score[0], ef_construction, layer, s).sort();
+			int[] nodes = new int[found.size()];
+			double[] scores = new double[found.size()];
+			for (int k = 0; k < nodes.length; ++k) {
+				nodes[k] = found.index(k);
+				scores[k] = found.score(k);
+			}
+			int[] selected = new int[M];
+			int count = select_neighbors(nodes, scores, nodes.length, M, selected, s);
+			synchronized (locks[node & (LOCK_STRIPES - 1)]) {
+				int[] list = links[node][layer];
+				System.arraycopy(selected, 0, list, 1, count);
+				list[0] = count;
+			}
+			for (int k = 0; k < count; ++k) {
+				add_link(selected[k], node, layer, s);
+			}
+			entry = nodes[0];
+			entry_score[0] = scores[0];
+		}
+
+		if (level > top) {
+			synchronized (graph_lock) {
+				if (level > max_level) {
+					max_level = level;
+					entry_point = node;
+				}
+			}
+		}
+	}
+
+	/*
+	 * Add the rows of `store` from `from_row` onwards to the graph.
+	 */
+	private void insert_rows(EmbeddingStore store, int from_row, int threads) throws Exception {
+		this.store = store;
+		int total = store.number_of_rows();
+		if (total <= rows) {
+			return;
+		}
+		if (from_row != rows) {
+			throw new IllegalArgumentException("Rows must be appended in order (expected row " + rows + ").");
+		}
+		levels = java.util.Arrays.copyOf(levels, total);
+		links = java.util.Arrays.copyOf(links, total);
+		for (int i = rows; i < total; ++i) {
+			levels[i] = (int) (-Math.log(1.0 - random.nextDouble()) * level_multiplier);
+			links[i] = new int[levels[i] + 1][];
+			for (int layer = 0; layer <= levels[i]; ++layer) {
+				links[i][layer] = new int[max_links(layer) + 1];
+			}
+		}
+		final int first = rows;
+		rows = total;
+
+		inserting = true;
+		try {
+			// a first node to enter the graph through:
+			int start = first;
+			if (entry_point == -1) {
+				insert(start);
+				start += 1;
+			}
+			if (threads <= 1) {
+				for (int i = start; i < total; ++i) {
+					insert(i);
+				}
+				return;
+			}
+			final AtomicInteger next = new AtomicInteger(start);
+			final int end = total;
+			ExecutorService pool = Executors.newFixedThreadPool(threads);
+			try {
+				List<Future<Void>> futures = new ArrayList<Future<Void>>(threads);
+				for (int t = 0; t < threads; ++t) {
+					futures.add(pool.submit(new Callable<Void>() {
+						public Void call() {
+							for (int i = next.getAndIncrement(); i < end; i = next.getAndIncrement()) {
+								insert(i);
+							}
+							return null;
+						}
+					}));
+				}
+				for (Future<Void> future : futures) {
+					SavedModelLoader.await(future);
+				}
+			} finally {
+				pool.shutdown();
+			}
+		} finally {
+			inserting = false;
+		}
+	}
+
+	public void append(EmbeddingStore store, int from_row) {
+		try {
+			insert_rows(store, from_row, 1);
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public TopK search(double[] query, int topn, int exclude) {
+		TopK best = new TopK(Math.min(topn, Math.max(0, rows - (exclude >= 0 && exclude < rows ? 1 : 0))));
+		if (entry_point == -1) {
+			return best;
+		}
+		Scratch s = scratch();
+		int entry = entry_point;
+		double[] entry_score = new double[] {store.normalized_dot(entry, query)};
+		for (int layer = max_level; layer > 0; --layer) {
+			entry = greedy_search(query, entry, entry_score, layer, s);
+		}
+		// one extra candidate in case the excluded row is found:
+		TopK found = search_layer(query, entry, entry_score[0], Math.max(ef_search, topn + 1), 0, s);
+		for (int k = 0; k < found.size(); ++k) {
+			if (found.index(k) != exclude) {
+				best.offer(found.score(k), found.index(k));
+			}
+		}
+		return best.sort();
+	}
+
+	/*
+	 * Links stored for each node, in bytes.
+	 */
+	public double bytes_per_vector() {
+		long bytes = 0;
+		for (int i = 0; i < rows; ++i) {
+			for (int[] list : links[i]) {
+				bytes += 4L * list.length;
+			}
+			bytes += 4;
+		}
+		return rows > 0 ? (double) bytes / rows : 0.0;
+	}
+
+	/*
+	 * Write the graph (not the vectors) to `pathname`.
+	 */
+	public void save(String pathname) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(pathname), 1 << 16));
+		try {
+			out.writeLong(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(M);
+			out.writeInt(ef_construction);
+			out.writeInt(ef_search);
+			out.writeInt(rows);
+			out.writeInt(dimension);
+			out.writeInt(entry_point);
+			out.writeInt(max_level);
+			for (int i = 0; i < rows; ++i) {
+				out.writeInt(levels[i]);
+				for (int[] list : links[i]) {
+					out.writeInt(list[0]);
+					for (int k = 1; k <= list[0]; ++k) {
+						out.writeInt(list[k]);
+					}
+				}
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/*
+	 * Read a graph written by save, serving the rows of `store` (which
+	 * must hold the vectors the graph was built over).
+	 */
+	public static HnswIndex load(String pathname, EmbeddingStore store) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(pathname), 1 << 16));
+		try {
+			if (in.readLong() != MAGIC) {
+				throw new IOException("`" + pathname + "` is not an HNSW index.");
+			}
+			int version = in.readInt();
+			if (version != VERSION) {
+				throw new IOException("Unsupported HNSW index version " + version + ".");
+			}
+			int M = in.readInt();
+			int ef_construction = in.readInt();
+			int ef_search = in.readInt();
+			int rows = in.readInt();
+			int dimension = in.readInt();
+			if (rows > store.number_of_rows() || dimension != store.dimension()) {
+				throw new IOException("The HNSW index does not match the vectors of the store.");
+			}
+			HnswIndex index = new HnswIndex(store, M, ef_construction, ef_search, 1234);
+			index.entry_point = in.readInt();
+			index.max_level = in.readInt();
+			index.rows = rows;
+			index.levels = new int[rows];
+			index.links = new int[rows][][];
+			for (int i = 0; i < rows; ++i) {
+				int level = in.readInt();
+				index.levels[i] = level;
+				index.links[i] = new int[level + 1][];
+				for (int layer = 0; layer <= level; ++layer) {
+					int[] list = new int[index.max_links(layer) + 1];
+					list[0] = in.readInt();
+					for (int k = 1; k <= list[0]; ++k) {
+						list[k] = in.readInt();
+					}
+					index.links[i][layer] = list;
+				}
+			}
+			// rows added to the store after the graph was saved:
+			index.append(store, rows);
+			return index;
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package objectlm;
+
+import java.util.Random;
+
+import objectlm.utils.KMeans;
+import objectlm.utils.TopK;
+
+/**
+ * Measures how well a SimilarityIndex reproduces the exact brute-force
+ * search over the normalized rows of an EmbeddingStore.
+ */
+public class IndexEvaluation {
+
+	/*
+	 * Exact top `topn` rows for a query, skipping `exclude`.
+	 */
+	public static TopK exact_search(EmbeddingStore store, double[] query, int topn, int exclude) {
+		TopK best = new TopK(topn);
+		int rows = store.number_of_rows();
+		for (int i = 0; i < rows; ++i) {
+			if (i != exclude) {
+				best.offer(store.normalized_dot(i, query), i);
+			}
+		}
+		return best.sort();
+	}
+
+	/*
+	 * Fraction of the exact top `topn` neighbors of the given rows that the
+	 * index also returns (each row is used as a query and excluded from
+	 * its own results).
+	 */
+	public static double recall_at(SimilarityIndex index, EmbeddingStore store, int[] query_rows, int topn) {
+		double[] query = new double[store.dimension()];
+		long found = 0, expected = 0;
+		for (int row : query_rows) {
+			store.copy_normalized_row(row, query, 0);
+			TopK exact = exact_search(store, query, topn, row);
+			TopK approximate = index.search(query, topn, row);
+			for (int k = 0; k < exact.size(); ++k) {
+				for (int j = 0; j < approximate.size(); ++j) {
+					if (approximate.index(j) == exact.index(k)) {
+						found += 1;
+						break;
+					}
+				}
+			}
+			expected += exact.size();
+		}
+		return expected > 0 ? (double) found / expected : 1.0;
+	}
+
+	/*
+	 * `count` distinct rows drawn at random to be used as queries.
+	 */
+	public static int[] sample_rows(EmbeddingStore store, int count, long seed) {
+		return KMeans.sample_rows(store.number_of_rows(), count, new Random(seed));
+	}
+
+	/*
+	 * Print the memory per vector, recall and query speed of an index
+	 * against the exact scan, using `queries` random rows.
+	 */
+	public static double report(String name, SimilarityIndex index, EmbeddingStore store, int queries, int topn) {
+		int[] rows = sample_rows(store, queries, 1234);
+		double[] query = new double[store.dimension()];
+
+		long start = System.nanoTime();
+		for (int row : rows) {
+			store.copy_normalized_row(row, query, 0);
+			exact_search(store, query, topn, row);
+		}
+		long exact_time = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int row : rows) {
+			store.copy_normalized_row(row, query, 0);
+			index.search(query, topn, row);
+		}
+		long index_time = System.nanoTime() - start;
+
+		double recall = recall_at(index, store, rows, topn);
+		System.out.println(name + ": " + String.format("%.1f", index.bytes_per_vector()) + " bytes/vector (exact: "
+				+ (8 * store.dimension()) + "), recall@" + topn + " = " + String.format("%.4f", recall)
+				+ ", " + String.format("%.3f", index_time / 1e6 / Math.max(1, rows.length)) + "ms/query (exact: "
+				+ String.format("%.3f", exact_time / 1e6 / Math.max(1, rows.length)) + "ms/query)");
+		return recall;
+	}
+
+	public static void main(String[] args) throws Exception {
+		// Compare the object indices of a saved model with its exact scan:
+		ObjectLM model = ObjectLM.load_saved_python_model(args.length > 0 ? args[0] : "saves/current_model/");
+		report("int8", new QuantizedIndex(model.object_vectors), model.object_vectors, 200, 10);
+		report("pq", new ProductQuantizationIndex(model.object_vectors, Math.max(1, model.object_size / 4)), model.object_vectors, 200, 10);
+		report("hnsw", new HnswIndex(model.object_vectors, Runtime.getRuntime().availableProcessors()), model.object_vectors, 200, 10);
+		report("ivf", new InvertedFileIndex(model.object_vectors, Runtime.getRuntime().availableProcessors()), model.object_vectors, 200, 10);
+	}
+}
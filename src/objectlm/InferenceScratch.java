@@ -0,0 +1,18 @@
+package objectlm;
+
+/**
+ * Reusable buffers for the primitive inference path of an ObjectLM, so
+ * predictions in steady state do not allocate. ObjectLM keeps one per
+ * thread; callers managing their own threads can hold one per worker.
+ */
+public class InferenceScratch {
+	// concatenated word and object vectors of a window:
+	public final double[] observation;
+	// logits when the caller only asks for labels:
+	public final double[] logits;
+
+	public InferenceScratch(ObjectLM model) {
+		this.observation = new double[model.window * model.size + model.object_size];
+		this.logits = new double[model.prediction_size];
+	}
+}
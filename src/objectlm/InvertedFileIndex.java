@@ -0,0 +1,262 @@
+package objectlm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import objectlm.utils.KMeans;
+import objectlm.utils.TopK;
+import objectlm.utils.VectorKernels;
+
+/**
+ * Inverted-file (IVF) index over the normalized rows of an EmbeddingStore.
+ *
+ * The rows are clustered with k-means into `lists` centroids and each row
+ * is filed in the posting list of its nearest centroid. A query ranks the
+ * centroids and only scores, exactly, the rows of the `nprobe` best lists:
+ * raising nprobe trades latency for recall, up to an exact scan when every
+ * list is probed.
+ *
+ * The centroids are trained on a sample of the rows and every row is
+ * then filed in its list, both split across threads.
+ *
+ * Searches can run while rows are appended: each posting list is an
+ * immutable (rows, size) pair replaced as a whole, and a search only
+ * scores the rows of the store it read when it started.
+ */
+public class InvertedFileIndex implements SimilarityIndex {
+
+	public static final int DEFAULT_NPROBE = 8;
+	public static final int DEFAULT_TRAINING_ROWS = 65536;
+	public static final int DEFAULT_ITERATIONS = 20;
+
+	private static final int BLOCK = 4096;
+
+	// lists probed by search(query, topn, exclude):
+	public volatile int nprobe;
+
+	private volatile EmbeddingStore store;
+	private final int dimension;
+	private final int threads;
+
+	private final double[] centroids;
+	// half the squared norm of each centroid:
+	private final double[] half_norms;
+	private final int lists;
+
+	/*
+	 * The first `size` rows filed in a list, in increasing order. The
+	 * array may be longer; positions below `size` are never modified.
+	 */
+	private static final class Posting {
+		final int[] rows;
+		final int size;
+
+		Posting(int[] rows, int size) {
+			this.rows = rows;
+			this.size = size;
+		}
+	}
+
+	private final AtomicReferenceArray<Posting> postings;
+	// rows filed so far (only changed by insert_rows):
+	private int rows;
+
+	public InvertedFileIndex(EmbeddingStore store, int lists, int nprobe, int training_rows, int iterations, int threads, long seed) throws Exception {
+		this.dimension = store.dimension();
+		this.nprobe = nprobe;
+		this.threads = Math.max(1, threads);
+
+		this.centroids = train(store, lists, training_rows, iterations, new Random(seed));
+		this.lists = centroids.length / dimension;
+		this.half_norms = new double[this.lists];
+		for (int c = 0; c < this.lists; ++c) {
+			half_norms[c] = 0.5 * VectorKernels.dot(centroids, c * dimension, centroids, c * dimension, dimension);
+		}
+
+		this.postings = new AtomicReferenceArray<Posting>(this.lists);
+		for (int c = 0; c < this.lists; ++c) {
+			postings.set(c, new Posting(new int[16], 0));
+		}
+		this.rows = 0;
+		insert_rows(store, 0);
+	}
+
+	/*
+	 * About sqrt(rows) lists, the usual balance between ranking the
+	 * centroids and scanning the lists.
+	 */
+	public InvertedFileIndex(EmbeddingStore store, int threads) throws Exception {
+		this(store, Math.max(1, (int) Math.sqrt(store.number_of_rows())), DEFAULT_NPROBE,
+				DEFAULT_TRAINING_ROWS, DEFAULT_ITERATIONS, threads, 1234);
+	}
+
+	/*
+	 * Cluster a random sample of the rows.
+	 */
+	private double[] train(EmbeddingStore store, int lists, int training_rows, int iterations, Random random) {
+		int total = store.number_of_rows();
+		int n = Math.min(total, Math.max(training_rows, lists));
+		if (n == 0) {
+			throw new IllegalArgumentException("Cannot train an inverted-file index without rows.");
+		}
+
+		int[] sampled = KMeans.sample_rows(total, n, random);
+		double[] sample = new double[n * dimension];
+		for (int i = 0; i < n; ++i) {
+			store.copy_normalized_row(sampled[i], sample, i * dimension);
+		}
+		return KMeans.fit(sample, n, dimension, Math.max(1, lists), iterations, random, threads);
+	}
+
+	/*
+	 * List of each row from `from` to `to`.
+	 */
+	private int[] assign(EmbeddingStore store, int from, int to) {
+		int[] assignments = new int[to - from];
+		double[] block = new double[Math.min(BLOCK, to - from) * dimension];
+		for (int start = from; start < to; start += BLOCK) {
+			int end = Math.min(to, start + BLOCK);
+			for (int i = start; i < end; ++i) {
+				store.copy_normalized_row(i, block, (i - start) * dimension);
+			}
+			for (int i = start; i < end; ++i) {
+				assignments[i - from] = KMeans.nearest(block, (i - start) * dimension, centroids, lists, dimension);
+			}
+		}
+		return assignments;
+	}
+
+	/*
+	 * File the rows of `store` from `from_row` onwards in their lists.
+	 */
+	private synchronized void insert_rows(final EmbeddingStore store, int from_row) throws Exception {
+		int total = store.number_of_rows();
+		if (total <= rows) {
+			this.store = store;
+			return;
+		}
+		if (from_row != rows) {
+			throw new IllegalArgumentException("Rows must be appended in order (expected row " + rows + ").");
+		}
+
+		int[] assignments;
+		int workers = Math.min(threads, (total - rows + BLOCK - 1) / BLOCK);
+		if (workers <= 1) {
+			assignments = assign(store, rows, total);
+		} else {
+			assignments = new int[total - rows];
+			ExecutorService pool = Executors.newFixedThreadPool(workers);
+			try {
+				List<Future<int[]>> futures = new ArrayList<Future<int[]>>(workers);
+				int[] starts = new int[workers + 1];
+				for (int t = 0; t <= workers; ++t) {
+					starts[t] = rows + (int) ((long) t * (total - rows) / workers);
+				}
+				for (int t = 0; t < workers; ++t) {
+					final int from = starts[t], to = starts[t + 1];
+					futures.add(pool.submit(new Callable<int[]>() {
+						public int[] call() {
+							return assign(store, from, to);
+						}
+					}));
+				}
+				for (int t = 0; t < workers; ++t) {
+					int[] part = SavedModelLoader.await(futures.get(t));
+					System.arraycopy(part, 0, assignments, starts[t] - rows, part.length);
+				}
+			} finally {
+				pool.shutdown();
+			}
+		}
+
+		int[] added = new int[lists];
+		for (int c : assignments) {
+			added[c] += 1;
+		}
+		// the store holding the new rows is published before any list
+		// refers to them:
+		this.store = store;
+		for (int c = 0; c < lists; ++c) {
+			if (added[c] == 0) {
+				continue;
+			}
+			Posting posting = postings.get(c);
+			int size = posting.size;
+			int[] filed = posting.rows;
+			if (size + added[c] > filed.length) {
+				filed = Arrays.copyOf(filed, Math.max(2 * filed.length, size + added[c]));
+			}
+			// lists are filled in row order so each is sorted; the new
+			// rows lie past the published size until the new posting is set:
+			for (int i = 0; i < assignments.length; ++i) {
+				if (assignments[i] == c) {
+					filed[size++] = rows + i;
+				}
+			}
+			postings.set(c, new Posting(filed, size));
+		}
+		rows = total;
+	}
+
+	public void append(EmbeddingStore store, int from_row) {
+		try {
+			insert_rows(store, from_row);
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public TopK search(double[] query, int topn, int exclude) {
+		return search(query, topn, exclude, nprobe);
+	}
+
+	/*
+	 * Search the `nprobe` lists whose centroids are nearest to `query`.
+	 */
+	public TopK search(double[] query, int topn, int exclude, int nprobe) {
+		// rows appended after this store was read are skipped:
+		EmbeddingStore searched = store;
+		int limit = searched.number_of_rows();
+		TopK probed = new TopK(Math.max(1, Math.min(nprobe, lists)));
+		for (int c = 0; c < lists; ++c) {
+			// nearest centroid in euclidean distance:
+			probed.offer(VectorKernels.dot(query, 0, centroids, c * dimension, dimension) - half_norms[c], c);
+		}
+		TopK best = new TopK(Math.min(topn, Math.max(0, limit - (exclude >= 0 && exclude < limit ? 1 : 0))));
+		for (int p = 0; p < probed.size(); ++p) {
+			Posting posting = postings.get(probed.index(p));
+			int[] filed = posting.rows;
+			for (int k = 0, size = posting.size; k < size; ++k) {
+				int row = filed[k];
+				if (row >= limit) {
+					// sorted: the rest of the list is newer too.
+					break;
+				}
+				if (row != exclude) {
+					best.offer(searched.normalized_dot(row, query), row);
+				}
+			}
+		}
+		return best.sort();
+	}
+
+	public int number_of_lists() {
+		return lists;
+	}
+
+	/*
+	 * Row id in its posting list, plus the centroids amortized over the rows.
+	 */
+	public synchronized double bytes_per_vector() {
+		return rows > 0 ? 4.0 + (8.0 * centroids.length + 8.0 * lists) / rows : 0.0;
+	}
+}
@@ -0,0 +1,151 @@
+package objectlm;
+
+import java.io.IOException;
+import java.nio.DoubleBuffer;
+
+import objectlm.utils.VectorKernels;
+
+import org.ejml.simple.SimpleMatrix;
+
+/**
+ * EmbeddingStore reading rows on demand from a memory mapped snapshot
+ * (see {@link ModelSnapshot}). Nothing is copied onto the heap: the
+ * operating system pages rows in as they are touched and keeps the
+ * hot ones in its page cache, so catalogs larger than the heap can
+ * be served.
+ *
+ * Normalized rows are obtained by dividing the raw row by its stored
+ * norm on the fly, as normalize_rows does for the heap stores, so both
+ * give the same normalized vectors and dot products.
+ *
+ * The mapping is read only: rows appended to the store (objects folded
+ * in while serving) are held on the heap after the mapped rows.
+ */
+public class MappedEmbeddingStore implements EmbeddingStore {
+
+	private final int rows;
+	private final int cols;
+	private final int rows_per_chunk;
+	private final DoubleBuffer[] chunks;
+	private final DoubleBuffer norms;
+	// rows appended after the mapped ones, or null:
+	private final MatrixEmbeddingStore tail;
+
+	// per-thread copy of the normalized row being scored:
+	private final ThreadLocal<double[]> row_buffer = new ThreadLocal<double[]>() {
+		@Override
+		protected double[] initialValue() {
+			return new double[cols];
+		}
+	};
+
+	/*
+	 * Map the DOUBLES entry `matrix_name` of a snapshot along with the
+	 * row norms stored under `norms_name`. When the snapshot does not
+	 * hold the norms they are computed with one pass over the rows. The
+	 * mappings stay valid once the snapshot is closed.
+	 */
+	public MappedEmbeddingStore(ModelSnapshot snapshot, String matrix_name, String norms_name) throws IOException {
+		int[] shape = snapshot.shape(matrix_name);
+		this.rows = shape[0];
+		this.cols = shape[1];
+
+		// a single mapping is limited to 2GB, so rows are
+		// spread over as many mappings as needed:
+		this.rows_per_chunk = (int) Math.max(1, ModelSnapshot.MAX_MAPPING / (8L * Math.max(cols, 1)));
+		int number_of_chunks = (rows + rows_per_chunk - 1) / rows_per_chunk;
+		this.chunks = new DoubleBuffer[number_of_chunks];
+		for (int i = 0; i < number_of_chunks; ++i) {
+			int first_row = i * rows_per_chunk;
+			int chunk_rows = Math.min(rows_per_chunk, rows - first_row);
+			chunks[i] = snapshot.map_doubles(matrix_name, (long) first_row * cols, chunk_rows * cols);
+		}
+
+		if (snapshot.has(norms_name)) {
+			if (snapshot.shape(norms_name)[0] != rows) {
+				throw new IOException("`" + norms_name + "` should hold one norm per row of `" + matrix_name + "`.");
+			}
+			this.norms = snapshot.map_doubles(norms_name, 0, rows);
+		} else {
+			this.norms = DoubleBuffer.wrap(row_norms());
+		}
+		this.tail = null;
+	}
+
+	private double[] row_norms() {
+		double[] norms = new double[rows];
+		double squared, value;
+		for (int row = 0; row < rows; ++row) {
+			DoubleBuffer chunk = chunks[row / rows_per_chunk];
+			int start = (row % rows_per_chunk) * cols;
+			squared = 0.0;
+			for (int j = 0; j < cols; ++j) {
+				value = chunk.get(start + j);
+				squared += value * value;
+			}
+			norms[row] = Math.sqrt(squared);
+		}
+		return norms;
+	}
+
+	private MappedEmbeddingStore(MappedEmbeddingStore mapped, MatrixEmbeddingStore tail) {
+		this.rows = mapped.rows;
+		this.cols = mapped.cols;
+		this.rows_per_chunk = mapped.rows_per_chunk;
+		this.chunks = mapped.chunks;
+		this.norms = mapped.norms;
+		this.tail = tail;
+	}
+
+	public int number_of_rows() {
+		return tail == null ? rows : rows + tail.number_of_rows();
+	}
+
+	public int dimension() {
+		return cols;
+	}
+
+	public void copy_row(int row, double[] out, int offset) {
+		if (row >= rows) {
+			tail.copy_row(row - rows, out, offset);
+			return;
+		}
+		DoubleBuffer chunk = chunks[row / rows_per_chunk];
+		int start = (row % rows_per_chunk) * cols;
+		for (int j = 0; j < cols; ++j) {
+			out[offset + j] = chunk.get(start + j);
+		}
+	}
+
+	public void copy_normalized_row(int row, double[] out, int offset) {
+		if (row >= rows) {
+			tail.copy_normalized_row(row - rows, out, offset);
+			return;
+		}
+		DoubleBuffer chunk = chunks[row / rows_per_chunk];
+		int start = (row % rows_per_chunk) * cols;
+		double norm = norms.get(row);
+		for (int j = 0; j < cols; ++j) {
+			// a zero row keeps a zero normalized row rather than NaNs:
+			out[offset + j] = norm > 0.0 ? chunk.get(start + j) / norm : 0.0;
+		}
+	}
+
+	public double normalized_dot(int row, double[] x) {
+		if (row >= rows) {
+			return tail.normalized_dot(row - rows, x);
+		}
+		double[] normalized = row_buffer.get();
+		copy_normalized_row(row, normalized, 0);
+		return VectorKernels.dot(normalized, 0, x, 0, cols);
+	}
+
+	/*
+	 * The mapped rows are shared, and only the heap tail is copied.
+	 */
+	public EmbeddingStore append_rows(double[][] new_rows) {
+		MatrixEmbeddingStore grown_tail = (MatrixEmbeddingStore) (tail != null ? tail
+				: new MatrixEmbeddingStore(new SimpleMatrix(0, cols), new SimpleMatrix(0, cols))).append_rows(new_rows);
+		return new MappedEmbeddingStore(this, grown_tail);
+	}
+}
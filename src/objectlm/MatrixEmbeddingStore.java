@@ -0,0 +1,80 @@
+package objectlm;
+
+import java.io.Serializable;
+
+import objectlm.utils.VectorKernels;
+import objectlm.utils.VectorUtils;
+
+import org.ejml.simple.SimpleMatrix;
+
+/**
+ * EmbeddingStore holding both the raw and the normalized vectors
+ * as fully materialized matrices on the heap.
+ */
+public class MatrixEmbeddingStore implements EmbeddingStore, Serializable {
+	public final SimpleMatrix matrix;
+	public final SimpleMatrix normalized;
+
+	private final double[] data;
+	private final double[] normalized_data;
+	private final int rows;
+	private final int cols;
+
+	/*
+	 * Wrap a matrix and its normalized copy. When `normalized`
+	 * is null it is computed from `matrix`.
+	 */
+	public MatrixEmbeddingStore(SimpleMatrix matrix, SimpleMatrix normalized) {
+		this.matrix = matrix;
+		this.normalized = normalized == null ? VectorUtils.normalize_rows(matrix) : normalized;
+		this.data = matrix.getMatrix().data;
+		this.normalized_data = this.normalized.getMatrix().data;
+		this.rows = matrix.numRows();
+		this.cols = matrix.numCols();
+	}
+
+	public MatrixEmbeddingStore(SimpleMatrix matrix) {
+		this(matrix, null);
+	}
+
+	public int number_of_rows() {
+		return rows;
+	}
+
+	public int dimension() {
+		return cols;
+	}
+
+	public void copy_row(int row, double[] out, int offset) {
+		System.arraycopy(data, row * cols, out, offset, cols);
+	}
+
+	public void copy_normalized_row(int row, double[] out, int offset) {
+		System.arraycopy(normalized_data, row * cols, out, offset, cols);
+	}
+
+	public double normalized_dot(int row, double[] x) {
+		return VectorKernels.dot(normalized_data, row * cols, x, 0, cols);
+	}
+
+	public EmbeddingStore append_rows(double[][] new_rows) {
+		SimpleMatrix grown = new SimpleMatrix(rows + new_rows.length, cols);
+		SimpleMatrix grown_normalized = new SimpleMatrix(rows + new_rows.length, cols);
+		double[] out = grown.getMatrix().data;
+		double[] normalized_out = grown_normalized.getMatrix().data;
+		System.arraycopy(data, 0, out, 0, rows * cols);
+		System.arraycopy(normalized_data, 0, normalized_out, 0, rows * cols);
+		for (int i = 0; i < new_rows.length; ++i) {
+			int offset = (rows + i) * cols;
+			double norm = Math.sqrt(VectorKernels.dot(new_rows[i], 0, new_rows[i], 0, cols));
+			// a zero row keeps a zero normalized row rather than NaNs:
+			for (int j = 0; j < cols; ++j) {
+				out[offset + j] = new_rows[i][j];
+				normalized_out[offset + j] = norm > 0.0 ? new_rows[i][j] / norm : 0.0;
+			}
+		}
+		return new MatrixEmbeddingStore(grown, grown_normalized);
+	}
+
+	private static final long serialVersionUID = 1L;
+}
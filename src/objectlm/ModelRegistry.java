@@ -0,0 +1,293 @@
+package objectlm;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import objectlm.utils.Tuple;
+
+/**
+ * Holds the ObjectLM currently being served and swaps in new versions
+ * without a restart.
+ *
+ * A new save directory (or snapshot file) is loaded and warmed up on a
+ * background thread, then atomically made current. Callers should fetch
+ * the model once per request:
+ *
+ *     ObjectLM model = registry.current();
+ *     model.predict(indices, object_index);
+ *
+ * so that calls already in flight finish on the instance they started
+ * with. The last few versions stay resident for instant rollback, and a
+ * directory can be watched for the new epochs saved by the Python trainer
+ * (`objectlm_window_10_lm_20_objlm_20_4`, `..._5`, ...).
+ */
+public class ModelRegistry {
+
+	private final AtomicReference<Tuple<String, ObjectLM>> current;
+	private final LinkedList<Tuple<String, ObjectLM>> previous;
+	private final int keep_previous;
+
+	private final ExecutorService loader;
+	private ScheduledExecutorService watcher;
+	// epoch of the latest directory swapped in by the watcher:
+	private volatile int watched_epoch;
+	// path and cause of the latest failed watcher load, or null:
+	private final AtomicReference<Tuple<String, Exception>> last_error;
+
+	/*
+	 * Create an empty registry keeping `keep_previous` replaced
+	 * versions in memory for rollback.
+	 */
+	public ModelRegistry(int keep_previous) {
+		this.current = new AtomicReference<Tuple<String, ObjectLM>>();
+		this.previous = new LinkedList<Tuple<String, ObjectLM>>();
+		this.keep_previous = keep_previous;
+		this.loader = Executors.newSingleThreadExecutor(daemon_threads("objectlm-registry-loader"));
+		this.watched_epoch = -1;
+		this.last_error = new AtomicReference<Tuple<String, Exception>>();
+	}
+
+	private static ThreadFactory daemon_threads(final String name) {
+		return new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, name);
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	/*
+	 * The model to serve requests with, or null if none was loaded yet.
+	 */
+	public ObjectLM current() {
+		Tuple<String, ObjectLM> version = current.get();
+		return version == null ? null : version.y;
+	}
+
+	/*
+	 * Where the current model was loaded from.
+	 */
+	public String current_path() {
+		Tuple<String, ObjectLM> version = current.get();
+		return version == null ? null : version.x;
+	}
+
+	/*
+	 * Paths of the versions kept for rollback, most recent first.
+	 */
+	public synchronized List<String> previous_paths() {
+		List<String> paths = new ArrayList<String>();
+		for (Tuple<String, ObjectLM> version : previous) {
+			paths.add(version.x);
+		}
+		return paths;
+	}
+
+	/*
+	 * Load a Python save directory, or a snapshot file written by
+	 * ObjectLM.save_snapshot.
+	 */
+	public static ObjectLM read_model(String pathname) throws Exception {
+		if (new File(pathname).isDirectory()) {
+			return ObjectLM.load_saved_python_model(pathname);
+		}
+		return ObjectLM.open_snapshot(pathname);
+	}
+
+	/*
+	 * Run each kind of call once so the first requests served by a freshly
+	 * swapped model do not pay for page faults and cold code paths.
+	 */
+	public static void warm_up(ObjectLM model) {
+		List<Integer> window = new ArrayList<Integer>();
+		for (int i = 0; i < model.window; ++i) {
+			window.add(model.UnknownWordIndex);
+		}
+		if (model.number_of_objects() > 0) {
+			model.predict(window, 0);
+			model.most_similar_object(model.get_object_vector(0), 10);
+		}
+		if (model.index2word.size() > 0) {
+			model.most_similar_word(model.index2word.get(0), 10);
+		}
+	}
+
+	/*
+	 * Make `model` current, keeping the replaced version for rollback.
+	 * Versions no longer kept are closed.
+	 */
+	public synchronized void swap(String pathname, ObjectLM model) {
+		Tuple<String, ObjectLM> replaced = current.getAndSet(new Tuple<String, ObjectLM>(pathname, model));
+		if (replaced == null) {
+			return;
+		}
+		if (keep_previous > 0) {
+			previous.addFirst(replaced);
+			while (previous.size() > keep_previous) {
+				release(previous.removeLast());
+			}
+		} else {
+			release(replaced);
+		}
+	}
+	
+	/*
+	 * Close a version dropped from the registry, unless it
+	 * is still served or kept under another path.
+	 */
+	private void release(Tuple<String, ObjectLM> version) {
+		if (current.get().y == version.y) {
+			return;
+		}
+		for (Tuple<String, ObjectLM> kept : previous) {
+			if (kept.y == version.y) {
+				return;
+			}
+		}
+		version.y.close();
+	}
+
+	/*
+	 * Load, warm up and swap in a new model on the loader thread. The
+	 * current model keeps serving until the new one is ready.
+	 */
+	public Future<ObjectLM> load(final String pathname) {
+		return loader.submit(new Callable<ObjectLM>() {
+			public ObjectLM call() throws Exception {
+				ObjectLM model = read_model(pathname);
+				warm_up(model);
+				swap(pathname, model);
+				return model;
+			}
+		});
+	}
+
+	/*
+	 * Same as load, waiting for the swap to happen.
+	 */
+	public ObjectLM load_now(String pathname) throws Exception {
+		return SavedModelLoader.await(load(pathname));
+	}
+
+	/*
+	 * Put back the most recently replaced version, closing the one it
+	 * replaces. Returns false when there is no version to go back to.
+	 */
+	public synchronized boolean rollback() {
+		if (previous.isEmpty()) {
+			return false;
+		}
+		release(current.getAndSet(previous.removeFirst()));
+		return true;
+	}
+
+	/*
+	 * Epoch number at the end of a save directory name (`..._objlm_20_4`
+	 * is epoch 4), or -1 when the name does not end with one.
+	 */
+	public static int epoch_of(String name) {
+		int underscore = name.lastIndexOf('_');
+		if (underscore == -1 || underscore == name.length() - 1) {
+			return -1;
+		}
+		try {
+			return Integer.parseInt(name.substring(underscore + 1));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static boolean is_complete(File directory) {
+		return new File(directory, "parameters.mat").exists() &&
+				new File(directory, "__dict__.txt").exists() &&
+				new File(directory, "__vocab__.gz").exists() &&
+				new File(directory, "__objects__.gz").exists();
+	}
+
+	/*
+	 * Latest complete save directory in `directory` whose name starts with
+	 * `prefix` and has an epoch greater than `after`, or null.
+	 */
+	public static File latest_epoch(File directory, String prefix, int after) {
+		File latest = null;
+		int latest_epoch = after;
+		File[] children = directory.listFiles();
+		if (children == null) {
+			return null;
+		}
+		for (File child : children) {
+			if (child.isDirectory() && child.getName().startsWith(prefix)) {
+				int epoch = epoch_of(child.getName());
+				if (epoch > latest_epoch && is_complete(child)) {
+					latest = child;
+					latest_epoch = epoch;
+				}
+			}
+		}
+		return latest;
+	}
+
+	/*
+	 * Path and cause of the latest load attempted by the watcher that
+	 * failed, or null when the latest attempt succeeded.
+	 */
+	public Tuple<String, Exception> last_error() {
+		return last_error.get();
+	}
+
+	/*
+	 * Every `interval_ms` look in `directory` for a newer epoch of the save
+	 * directories starting with `prefix` and swap it in. Only epochs after
+	 * the one currently served (when it is such a directory) are loaded.
+	 * A directory that fails to load (for instance because it is still
+	 * being written) is recorded in last_error and tried again on the
+	 * next check.
+	 */
+	public synchronized void watch(final String directory, final String prefix, long interval_ms) {
+		if (watcher != null) {
+			watcher.shutdownNow();
+		}
+		String served = current_path();
+		watched_epoch = served != null && new File(served).getName().startsWith(prefix) ?
+				epoch_of(new File(served).getName()) : -1;
+		last_error.set(null);
+		watcher = Executors.newSingleThreadScheduledExecutor(daemon_threads("objectlm-registry-watcher"));
+		watcher.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				File latest = latest_epoch(new File(directory), prefix, watched_epoch);
+				if (latest == null) {
+					return;
+				}
+				try {
+					load_now(latest.getPath());
+					watched_epoch = epoch_of(latest.getName());
+					last_error.set(null);
+				} catch (Exception e) {
+					last_error.set(new Tuple<String, Exception>(latest.getPath(), e));
+				}
+			}
+		}, 0, interval_ms, TimeUnit.MILLISECONDS);
+	}
+
+	/*
+	 * Stop watching and release the loader thread.
+	 */
+	public synchronized void close() {
+		if (watcher != null) {
+			watcher.shutdownNow();
+			watcher = null;
+		}
+		loader.shutdownNow();
+	}
+}
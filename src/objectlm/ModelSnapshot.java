@@ -0,0 +1,238 @@
+package objectlm;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import objectlm.utils.CompactDictionary;
+
+import org.ejml.data.DenseMatrix64F;
+import org.ejml.simple.SimpleMatrix;
+
+/**
+ * Reads a single-file binary snapshot of an {@link ObjectLM}.
+ *
+ * Loading the Python save directory means parsing a Matlab file, line-parsing
+ * two gzipped vocabularies and recomputing the normalized matrices. A snapshot
+ * holds the same matrices, vocabularies, parameters and row norms as a list of
+ * named, 8-byte aligned entries that are memory mapped when read, so each
+ * matrix comes out of the page cache with a single bulk copy.
+ *
+ * Layout (little endian):
+ *
+ *     header  : long MAGIC, int VERSION, int number of entries
+ *     entry   : int type, int name length, name (utf-8), pad to 8,
+ *               long payload length, payload, pad to 8
+ *
+ * Payloads:
+ *
+ *     DOUBLES : int rows, int cols, rows * cols doubles in row-major order
+ *     INTS    : int count, int 0, count ints
+ *     STRINGS : int count, int blob length, count + 1 int offsets, utf-8 blob
+ *
+ * The row norms (`model_norms`, `object_norms`) are optional: when absent
+ * they are recomputed from the matrices on load.
+ *
+ * Snapshots are written with {@link SnapshotWriter}.
+ */
+public class ModelSnapshot {
+
+	// "OBJLMSNP" read as a little endian long:
+	public static final long MAGIC = 0x504e534d4c4a424fL;
+	public static final int VERSION = 1;
+
+	public static final int DOUBLES = 1;
+	public static final int INTS = 2;
+	public static final int STRINGS = 3;
+
+	public static final int HEADER_SIZE = 16;
+
+	static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// largest region mapped at once (kept a multiple of 8):
+	static final long MAX_MAPPING = (Integer.MAX_VALUE / 8) * 8L;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+
+	private final Map<String, Integer> entry_types;
+	private final Map<String, Long> entry_positions;
+
+	/*
+	 * Open a snapshot and read its table of entries. Payloads
+	 * are only touched when requested.
+	 */
+	public ModelSnapshot(String pathname) throws IOException {
+		this.file = new RandomAccessFile(pathname, "r");
+		this.channel = file.getChannel();
+
+		this.entry_types = new HashMap<String, Integer>();
+		this.entry_positions = new HashMap<String, Long>();
+
+		try {
+			ByteBuffer header = read_region(0, HEADER_SIZE);
+			if (header.getLong() != MAGIC) {
+				throw new IOException("`" + pathname + "` is not an ObjectLM snapshot.");
+			}
+			int version = header.getInt();
+			if (version != VERSION) {
+				throw new IOException("Unsupported snapshot version " + version + ".");
+			}
+			int number_of_entries = header.getInt();
+
+			long position = HEADER_SIZE;
+			for (int i = 0; i < number_of_entries; ++i) {
+				ByteBuffer entry = read_region(position, 8);
+				int type = entry.getInt();
+				int name_length = entry.getInt();
+				position += 8;
+
+				byte[] name_bytes = new byte[name_length];
+				read_region(position, name_length).get(name_bytes);
+				position += align(name_length);
+
+				long payload_length = read_region(position, 8).getLong();
+				position += 8;
+
+				String name = new String(name_bytes, UTF8);
+				entry_types.put(name, type);
+				entry_positions.put(name, position);
+
+				position += align(payload_length);
+			}
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	static long align(long length) {
+		return (length + 7) & ~7L;
+	}
+
+	private ByteBuffer read_region(long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length).order(ORDER);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("Snapshot is truncated.");
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private ByteBuffer map_region(long position, long length) throws IOException {
+		return channel.map(FileChannel.MapMode.READ_ONLY, position, length).order(ORDER);
+	}
+
+	private long payload_position(String name, int type) throws IOException {
+		Integer found = entry_types.get(name);
+		if (found == null) {
+			throw new IOException("`" + name + "` entry not found in snapshot.");
+		}
+		if (found != type) {
+			throw new IOException("`" + name + "` entry has the wrong type.");
+		}
+		return entry_positions.get(name);
+	}
+
+	/*
+	 * Whether the snapshot holds an entry, for optional ones.
+	 */
+	public boolean has(String name) {
+		return entry_types.containsKey(name);
+	}
+
+	/*
+	 * Returns the number of rows and columns of a DOUBLES entry.
+	 */
+	public int[] shape(String name) throws IOException {
+		ByteBuffer shape = read_region(payload_position(name, DOUBLES), 8);
+		return new int[] {shape.getInt(), shape.getInt()};
+	}
+
+	/*
+	 * Copies `count` doubles starting at `first` (in elements) of a DOUBLES
+	 * entry into `out`, mapping the file in chunks so entries larger
+	 * than 2GB can be read.
+	 */
+	public void read_doubles(String name, long first, double[] out, int offset, int count) throws IOException {
+		long position = payload_position(name, DOUBLES) + 8 + first * 8;
+		while (count > 0) {
+			int chunk = (int) Math.min(count, MAX_MAPPING / 8);
+			map_region(position, chunk * 8L).asDoubleBuffer().get(out, offset, chunk);
+			position += chunk * 8L;
+			offset += chunk;
+			count -= chunk;
+		}
+	}
+
+	/*
+	 * Maps `count` doubles starting at `first` (in elements) of a DOUBLES
+	 * entry without copying them onto the heap.
+	 */
+	public DoubleBuffer map_doubles(String name, long first, int count) throws IOException {
+		long position = payload_position(name, DOUBLES) + 8 + first * 8;
+		return map_region(position, count * 8L).asDoubleBuffer();
+	}
+
+	public double[] read_doubles(String name) throws IOException {
+		int[] shape = shape(name);
+		double[] data = new double[shape[0] * shape[1]];
+		read_doubles(name, 0, data, 0, data.length);
+		return data;
+	}
+
+	public SimpleMatrix read_matrix(String name) throws IOException {
+		int[] shape = shape(name);
+		double[] data = new double[shape[0] * shape[1]];
+		read_doubles(name, 0, data, 0, data.length);
+		return SimpleMatrix.wrap(DenseMatrix64F.wrap(shape[0], shape[1], data));
+	}
+
+	public int[] read_ints(String name) throws IOException {
+		long position = payload_position(name, INTS);
+		int count = read_region(position, 8).getInt();
+		int[] values = new int[count];
+		if (count > 0) {
+			map_region(position + 8, count * 4L).asIntBuffer().get(values);
+		}
+		return values;
+	}
+
+	public ArrayList<String> read_strings(String name) throws IOException {
+		return new ArrayList<String>(read_dictionary(name).as_list());
+	}
+
+	/*
+	 * Read a STRINGS entry as a CompactDictionary, reusing its
+	 * utf-8 blob and offsets as they are without decoding strings.
+	 */
+	public CompactDictionary read_dictionary(String name) throws IOException {
+		long position = payload_position(name, STRINGS);
+		ByteBuffer counts = read_region(position, 8);
+		int count = counts.getInt();
+		int blob_length = counts.getInt();
+
+		int[] offsets = new int[count + 1];
+		map_region(position + 8, offsets.length * 4L).asIntBuffer().get(offsets);
+
+		byte[] blob = new byte[blob_length];
+		if (blob_length > 0) {
+			map_region(position + 8 + offsets.length * 4L, blob_length).get(blob);
+		}
+		return CompactDictionary.from_utf8(blob, offsets, count);
+	}
+
+	public void close() throws IOException {
+		file.close();
+	}
+}
@@ -0,0 +1,84 @@
+package objectlm;
+
+import java.io.Serializable;
+
+import objectlm.utils.VectorKernels;
+
+import org.ejml.simple.SimpleMatrix;
+
+/**
+ * EmbeddingStore keeping only the normalized vectors and the norm of each
+ * raw row. Raw vectors are rebuilt on demand by scaling the normalized row
+ * back by its norm, so the store uses half the memory of a
+ * MatrixEmbeddingStore at the cost of one multiply per element read.
+ */
+public class NormalizedEmbeddingStore implements EmbeddingStore, Serializable {
+	public final SimpleMatrix normalized;
+	public final double[] norms;
+
+	private final double[] normalized_data;
+	private final int rows;
+	private final int cols;
+
+	public NormalizedEmbeddingStore(SimpleMatrix normalized, double[] norms) throws IllegalArgumentException {
+		if (norms.length != normalized.numRows()) {
+			throw new IllegalArgumentException("need one norm per row");
+		}
+		this.normalized = normalized;
+		this.norms = norms;
+		this.normalized_data = normalized.getMatrix().data;
+		this.rows = normalized.numRows();
+		this.cols = normalized.numCols();
+	}
+
+	public int number_of_rows() {
+		return rows;
+	}
+
+	public int dimension() {
+		return cols;
+	}
+
+	public void copy_row(int row, double[] out, int offset) {
+		double norm = norms[row];
+		int start = row * cols;
+		if (norm == 0.0) {
+			// a zero row normalizes to NaNs, the raw vector was all zeros:
+			for (int j = 0; j < cols; ++j) {
+				out[offset + j] = 0.0;
+			}
+			return;
+		}
+		for (int j = 0; j < cols; ++j) {
+			out[offset + j] = normalized_data[start + j] * norm;
+		}
+	}
+
+	public void copy_normalized_row(int row, double[] out, int offset) {
+		System.arraycopy(normalized_data, row * cols, out, offset, cols);
+	}
+
+	public double normalized_dot(int row, double[] x) {
+		return VectorKernels.dot(normalized_data, row * cols, x, 0, cols);
+	}
+
+	public EmbeddingStore append_rows(double[][] new_rows) {
+		SimpleMatrix grown = new SimpleMatrix(rows + new_rows.length, cols);
+		double[] out = grown.getMatrix().data;
+		double[] grown_norms = new double[rows + new_rows.length];
+		System.arraycopy(normalized_data, 0, out, 0, rows * cols);
+		System.arraycopy(norms, 0, grown_norms, 0, rows);
+		for (int i = 0; i < new_rows.length; ++i) {
+			int offset = (rows + i) * cols;
+			double norm = Math.sqrt(VectorKernels.dot(new_rows[i], 0, new_rows[i], 0, cols));
+			// a zero row keeps a zero normalized row rather than NaNs:
+			for (int j = 0; j < cols; ++j) {
+				out[offset + j] = norm > 0.0 ? new_rows[i][j] / norm : 0.0;
+			}
+			grown_norms[rows + i] = norm;
+		}
+		return new NormalizedEmbeddingStore(grown, grown_norms);
+	}
+
+	private static final long serialVersionUID = 1L;
+}
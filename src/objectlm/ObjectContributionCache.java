@@ -0,0 +1,218 @@
+package objectlm;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import objectlm.utils.VectorKernels;
+
+/**
+ * Bounded cache of each object's contribution to the unnormalized
+ * predictions: the object slice of the projection matrix times the object
+ * vector, plus the bias vector. Predictions about a hot object then only
+ * have to project the words of the window.
+ *
+ * Entries live in an open-addressed table keyed by object index and
+ * sized to the capacity (not to the number of objects), so a hit is a
+ * short probe without locking, boxing or allocation. Misses compute the
+ * contribution outside of any lock; only publishing it and choosing an
+ * entry to evict (CLOCK, an approximation of least recently used where a
+ * hit just marks its entry as referenced) are serialized. A lookup racing
+ * with an eviction may miss an entry that was being moved, which costs a
+ * recomputation but never returns another object's contribution.
+ *
+ * Safe to share between threads. The arrays returned are shared and
+ * must not be modified.
+ */
+public class ObjectContributionCache {
+	public final int capacity;
+
+	private final ObjectLM model;
+
+	/*
+	 * A cached contribution. `referenced` gives the entry a second
+	 * chance when the clock hand passes over it.
+	 */
+	private static class Entry {
+		final int object_index;
+		final double[] contribution;
+		volatile boolean referenced;
+
+		Entry(int object_index, double[] contribution) {
+			this.object_index = object_index;
+			this.contribution = contribution;
+		}
+	}
+
+	// linear-probing table of the resident entries, at most half full
+	// (a power of two at least twice the capacity), written under `clock`:
+	private volatile AtomicReferenceArray<Entry> table;
+	private final int mask;
+
+	// resident entries in the order of the clock, guarded by `clock`:
+	private final Object clock = new Object();
+	private Entry[] ring;
+	private int resident;
+	private int hand;
+
+	// hits are counted on one of several padded counters picked by
+	// thread, so concurrent hits do not contend on a shared counter:
+	private static final int COUNTER_STRIPES = 16;
+	private static final int COUNTER_PADDING = 8;
+	private final AtomicLongArray hits;
+	private final AtomicLong misses;
+
+	public ObjectContributionCache(ObjectLM model, int capacity) {
+		this.model = model;
+		this.capacity = Math.max(1, capacity);
+		int length = Integer.highestOneBit(this.capacity) * 4;
+		this.mask = length - 1;
+		this.table = new AtomicReferenceArray<Entry>(length);
+		this.ring = new Entry[this.capacity];
+		this.hits = new AtomicLongArray(COUNTER_STRIPES * COUNTER_PADDING);
+		this.misses = new AtomicLong();
+	}
+
+	/*
+	 * Contribution of an object, computed and cached on a miss.
+	 */
+	public double[] get(int object_index) {
+		Entry entry = find(table, object_index);
+		if (entry != null) {
+			if (!entry.referenced) {
+				entry.referenced = true;
+			}
+			hits.incrementAndGet((int) (Thread.currentThread().getId() % COUNTER_STRIPES) * COUNTER_PADDING);
+			return entry.contribution;
+		}
+		misses.incrementAndGet();
+		return admit(new Entry(object_index, compute(object_index)));
+	}
+
+	private int home(int object_index) {
+		int h = object_index * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	private Entry find(AtomicReferenceArray<Entry> slots, int object_index) {
+		for (int i = home(object_index);; i = (i + 1) & mask) {
+			Entry entry = slots.get(i);
+			if (entry == null || entry.object_index == object_index) {
+				return entry;
+			}
+		}
+	}
+
+	/*
+	 * Publish a computed entry, unless another thread cached the object
+	 * first, and give it a place on the clock, evicting the first
+	 * unreferenced entry when the cache is full.
+	 */
+	private double[] admit(Entry entry) {
+		synchronized (clock) {
+			AtomicReferenceArray<Entry> slots = table;
+			Entry cached = find(slots, entry.object_index);
+			if (cached != null) {
+				return cached.contribution;
+			}
+			if (resident < capacity) {
+				ring[resident++] = entry;
+			} else {
+				while (ring[hand].referenced) {
+					ring[hand].referenced = false;
+					hand = (hand + 1) % capacity;
+				}
+				remove(slots, ring[hand].object_index);
+				ring[hand] = entry;
+				hand = (hand + 1) % capacity;
+			}
+			int i = home(entry.object_index);
+			while (slots.get(i) != null) {
+				i = (i + 1) & mask;
+			}
+			slots.set(i, entry);
+			return entry.contribution;
+		}
+	}
+
+	/*
+	 * Remove an object's entry, shifting back the entries of its probe
+	 * run so that lookups never need tombstones. Each moved entry is
+	 * written to its new slot before its old one is cleared.
+	 */
+	private void remove(AtomicReferenceArray<Entry> slots, int object_index) {
+		int hole = home(object_index);
+		while (slots.get(hole).object_index != object_index) {
+			hole = (hole + 1) & mask;
+		}
+		slots.set(hole, null);
+		for (int j = (hole + 1) & mask;; j = (j + 1) & mask) {
+			Entry entry = slots.get(j);
+			if (entry == null) {
+				return;
+			}
+			int k = home(entry.object_index);
+			// the entry stays if its home lies cyclically in (hole, j]:
+			boolean stays = hole <= j ? (hole < k && k <= j) : (hole < k || k <= j);
+			if (!stays) {
+				slots.set(hole, entry);
+				slots.set(j, null);
+				hole = j;
+			}
+		}
+	}
+
+	private double[] compute(int object_index) {
+		double[] object_vector = new double[model.object_size];
+		model.object_vectors.copy_row(object_index, object_vector, 0);
+
+		double[] contribution = new double[model.prediction_size];
+		VectorKernels.gemv(model.projection_matrix.getMatrix().data, contribution.length, model.projection_matrix.numCols(),
+				model.window * model.size, object_vector.length, object_vector, 0, model.bias_vector.getMatrix().data, contribution, 0);
+		return contribution;
+	}
+
+	public long hits() {
+		long total = 0;
+		for (int stripe = 0; stripe < COUNTER_STRIPES; ++stripe) {
+			total += hits.get(stripe * COUNTER_PADDING);
+		}
+		return total;
+	}
+
+	public long misses() {
+		return misses.get();
+	}
+
+	public double hit_rate() {
+		long hits = hits(), misses = misses();
+		return hits + misses > 0 ? (double) hits / (hits + misses) : 0.0;
+	}
+
+	public int size() {
+		synchronized (clock) {
+			return resident;
+		}
+	}
+
+	/*
+	 * Drop every entry (for instance after the object vectors
+	 * changed) and reset the counters.
+	 */
+	public void clear() {
+		synchronized (clock) {
+			table = new AtomicReferenceArray<Entry>(mask + 1);
+			ring = new Entry[capacity];
+			resident = 0;
+			hand = 0;
+			for (int stripe = 0; stripe < COUNTER_STRIPES; ++stripe) {
+				hits.set(stripe * COUNTER_PADDING, 0);
+			}
+			misses.set(0);
+		}
+	}
+
+	public String toString() {
+		return "<ObjectContributionCache size = " + size() + "/" + capacity + ", hit rate = " + String.format("%.3f", hit_rate()) + ">";
+	}
+}
@@ -0,0 +1,230 @@
+package objectlm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import objectlm.utils.VectorKernels;
+
+/**
+ * Embeds objects that were not part of training ("fold-in"): the
+ * projection matrix, bias and word vectors stay frozen and only the new
+ * object's vector is fitted, by stochastic gradient descent on the
+ * softmax and sigmoid cross-entropy of its labels over every window of
+ * its documents.
+ *
+ * With the words frozen, the logits of a window are a fixed part
+ * (word projections plus bias, computed once) plus the object slice of
+ * the projection matrix times the object vector, so the gradient with
+ * respect to the object vector is that slice transposed times
+ * (probabilities - targets). Objects are independent of each other and
+ * are fitted in parallel.
+ */
+public class ObjectFoldIn {
+
+	public static final double DEFAULT_LEARNING_RATE = 0.05;
+	public static final int DEFAULT_EPOCHS = 10;
+
+	/*
+	 * An object to fold in: its documents (as word indices) and its
+	 * labels, one per softmax class followed by 0 or 1 per sigmoid class
+	 * (the layout returned by ObjectLM.predict).
+	 */
+	public static class NewObject {
+		public final String name;
+		public final List<int[]> documents;
+		public final int[] labels;
+
+		public NewObject(String name, List<int[]> documents, int[] labels) {
+			this.name = name;
+			this.documents = documents;
+			this.labels = labels;
+		}
+	}
+
+	public final ObjectLM model;
+	public double learning_rate;
+	public int epochs;
+	public long seed;
+
+	public ObjectFoldIn(ObjectLM model) {
+		this.model = model;
+		this.learning_rate = DEFAULT_LEARNING_RATE;
+		this.epochs = DEFAULT_EPOCHS;
+		this.seed = 1234;
+	}
+
+	/*
+	 * Number of windows in the documents of an object.
+	 */
+	private int count_windows(List<int[]> documents) {
+		int windows = 0;
+		for (int[] document : documents) {
+			windows += Math.max(0, document.length - model.window + 1);
+		}
+		return windows;
+	}
+
+	/*
+	 * Reject an object whose labels do not fit the model's classes (one
+	 * in range per softmax class, then 0 or 1 per sigmoid class), or
+	 * without a single window: it would keep its zero initial vector,
+	 * which has no direction to search with.
+	 */
+	private void check(NewObject object) {
+		int expected = model.output_classes.size() + model.output_sigmoid_classes;
+		if (object.labels == null || object.labels.length != expected) {
+			throw new IllegalArgumentException("Object \"" + object.name + "\" should have " + expected + " labels, not " +
+					(object.labels == null ? 0 : object.labels.length) + ".");
+		}
+		int label = 0;
+		for (int output_size : model.output_classes) {
+			if (object.labels[label] < 0 || object.labels[label] >= output_size) {
+				throw new IllegalArgumentException("Label " + label + " of object \"" + object.name + "\" is " + object.labels[label] +
+						", outside of [0, " + output_size + ").");
+			}
+			label += 1;
+		}
+		for (; label < expected; ++label) {
+			if (object.labels[label] != 0 && object.labels[label] != 1) {
+				throw new IllegalArgumentException("Sigmoid label " + label + " of object \"" + object.name + "\" is " + object.labels[label] +
+						", not 0 or 1.");
+			}
+		}
+		if (count_windows(object.documents) == 0) {
+			throw new IllegalArgumentException("Object \"" + object.name + "\" has no document of at least " + model.window + " words.");
+		}
+	}
+
+	/*
+	 * Fixed part of the logits of each window of the documents
+	 * (word projections plus bias), `prediction_size` values per window.
+	 */
+	private double[] window_logits(List<int[]> documents) {
+		int window = model.window, size = model.size, prediction_size = model.prediction_size;
+		int windows = count_windows(documents);
+		double[] logits = new double[windows * prediction_size];
+		double[] words = new double[window * size];
+		double[] weights = model.projection_matrix.getMatrix().data;
+		double[] bias = model.bias_vector.getMatrix().data;
+		int stride = model.projection_matrix.numCols();
+		int w = 0;
+		for (int[] document : documents) {
+			for (int start = 0; start + window <= document.length; ++start) {
+				for (int p = 0; p < window; ++p) {
+					model.word_vectors.copy_row(document[start + p], words, p * size);
+				}
+				VectorKernels.gemv(weights, prediction_size, stride, 0, words.length, words, 0, bias, logits, w * prediction_size);
+				w += 1;
+			}
+		}
+		return logits;
+	}
+
+	/*
+	 * Fit the vector of one new object.
+	 */
+	public double[] fit(NewObject object) {
+		check(object);
+		int prediction_size = model.prediction_size;
+		int object_size = model.object_size;
+		int column = model.window * model.size;
+		int stride = model.projection_matrix.numCols();
+		double[] weights = model.projection_matrix.getMatrix().data;
+
+		// targets: one-hot for each softmax class, then 0/1 per sigmoid:
+		double[] targets = new double[prediction_size];
+		int index = 0, label = 0;
+		for (int output_size : model.output_classes) {
+			targets[index + object.labels[label++]] = 1.0;
+			index += output_size;
+		}
+		for (int i = 0; i < model.output_sigmoid_classes; ++i) {
+			targets[index + i] = object.labels[label++];
+		}
+
+		double[] fixed = window_logits(object.documents);
+		int windows = fixed.length / prediction_size;
+		double[] vector = new double[object_size];
+		double[] error = new double[prediction_size];
+		int[] order = new int[windows];
+		for (int i = 0; i < windows; ++i) {
+			order[i] = i;
+		}
+		Random random = new Random(seed ^ object.name.hashCode());
+
+		for (int epoch = 0; epoch < epochs; ++epoch) {
+			// visit the windows in a new random order each epoch:
+			for (int i = windows - 1; i > 0; --i) {
+				int j = random.nextInt(i + 1);
+				int swapped = order[i];
+				order[i] = order[j];
+				order[j] = swapped;
+			}
+			for (int k = 0; k < windows; ++k) {
+				int w = order[k];
+				VectorKernels.gemv(weights, prediction_size, stride, column, object_size, vector, 0, null, error, 0);
+				for (int c = 0; c < prediction_size; ++c) {
+					error[c] += fixed[w * prediction_size + c];
+				}
+				model.normalize_predictions(error, 0);
+				for (int c = 0; c < prediction_size; ++c) {
+					error[c] -= targets[c];
+				}
+				// vector -= learning_rate * P_obj^T * error:
+				for (int c = 0; c < prediction_size; ++c) {
+					double step = learning_rate * error[c];
+					int row = c * stride + column;
+					for (int j = 0; j < object_size; ++j) {
+						vector[j] -= step * weights[row + j];
+					}
+				}
+			}
+		}
+		return vector;
+	}
+
+	/*
+	 * Fit the vectors of many new objects on `threads` threads.
+	 */
+	public double[][] fit(final List<NewObject> objects, int threads) throws Exception {
+		// fail before fitting any object:
+		for (NewObject object : objects) {
+			check(object);
+		}
+		double[][] vectors = new double[objects.size()][];
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, objects.size())));
+		try {
+			List<Future<double[]>> futures = new ArrayList<Future<double[]>>(objects.size());
+			for (final NewObject object : objects) {
+				futures.add(pool.submit(new Callable<double[]>() {
+					public double[] call() {
+						return fit(object);
+					}
+				}));
+			}
+			for (int i = 0; i < vectors.length; ++i) {
+				vectors[i] = SavedModelLoader.await(futures.get(i));
+			}
+		} finally {
+			pool.shutdown();
+		}
+		return vectors;
+	}
+
+	/*
+	 * Fit the new objects and add them to the model, which makes them
+	 * searchable and usable for predictions. Returns their indices.
+	 */
+	public int[] fold_in(List<NewObject> objects, int threads) throws Exception {
+		List<String> names = new ArrayList<String>(objects.size());
+		for (NewObject object : objects) {
+			names.add(object.name);
+		}
+		return model.add_objects(names, fit(objects, threads));
+	}
+}
@@ -1,18 +1,36 @@
 package objectlm;
-import java.io.File;
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.io.Serializable;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.GZIPInputStream;
 
-import numpy_to_ejml.MatrixImporter;
+import objectlm.utils.CompactDictionary;
 import objectlm.utils.HierarchicalCluster;
+import objectlm.utils.TopK;
 import objectlm.utils.Triple;
 //import objectlm.utils.Tuple;
 
 import objectlm.utils.Tuple;
+import objectlm.utils.VectorKernels;
 import objectlm.utils.VectorUtils;
 
+import org.ejml.ops.CommonOps;
 import org.ejml.simple.SimpleMatrix;
 
 import java.util.List;
@@ -32,12 +50,41 @@ public class ObjectLM implements Serializable {
 	public SimpleMatrix norm_model_matrix;
 	public SimpleMatrix norm_object_matrix;
 	
+	// row access to the word and object vectors used by look-ups and search
+	// (when the objects are memory mapped object_matrix and
+	// norm_object_matrix are null and only this store is available, in
+	// lean storage model_matrix and object_matrix are null, and in single
+	// precision all four are):
+	public EmbeddingStore word_vectors;
+	public volatile EmbeddingStore object_vectors;
+	
+	// optional indices answering object and word searches instead
+	// of a brute-force scan of object_vectors and word_vectors:
+	public SimilarityIndex object_index;
+	public SimilarityIndex word_index;
+	
+	// optional per-position projections of every word and object
+	// used by predict_proba instead of the matrix multiply:
+	public TabulatedProjection projection_tables;
+	
+	// optional cache of the hot objects' projections plus bias:
+	public ObjectContributionCache object_contributions;
+	
+	// per-thread buffers of the primitive inference path, created
+	// on first use (volatile for the double-checked creation):
+	private transient volatile ThreadLocal<InferenceScratch> scratch;
+	
+	// optional threads splitting exact searches into chunks of rows:
+	private transient volatile ExecutorService search_pool;
+	private transient int search_threads;
+	
 	// convert words and objects to indices with look-ups
 	public ArrayList<String> index2word;
 	public Map<String, Integer> word2index;
 	
-	public ArrayList<String> index2object;
-	public Map<String, Integer> object2index;;
+	// volatile: add_objects may publish grown copies of them
+	public volatile ArrayList<String> index2object;
+	public volatile Map<String, Integer> object2index;
 	
 	// the parameters for the instance of the model
 	public Integer window;
@@ -50,6 +97,8 @@ public class ObjectLM implements Serializable {
 	public Integer output_sigmoid_classes;
 	public ArrayList<String> output_sigmoid_labels;
 	public Integer prediction_size;
+	// output_classes unboxed for the normalization kernels:
+	private int[] output_class_sizes;
 	
 	// special words:
 	
@@ -82,13 +131,109 @@ public class ObjectLM implements Serializable {
 			ArrayList<ArrayList<String>> output_labels,
 			int output_sigmoid_classes,
 			ArrayList<String> output_sigmoid_labels) throws Exception {
+		this(projection_matrix,
+				bias_vector,
+				model_matrix,
+				object_matrix,
+				null,
+				null,
+				index2word,
+				word2index,
+				UnknownWordIndex,
+				UnknownUppercaseWordIndex,
+				index2object,
+				object2index,
+				window,
+				size,
+				object_size,
+				output_classes,
+				output_labels,
+				output_sigmoid_classes,
+				output_sigmoid_labels);
+	}
+	
+	/*
+	 * Construct the object Language Model using parameter
+	 * matrices and their already normalized copies (for instance
+	 * read back from a snapshot). When the normalized matrices
+	 * are null they are computed from the parameter matrices.
+	 */
+	public ObjectLM(
+			SimpleMatrix projection_matrix,
+			SimpleMatrix bias_vector,
+			SimpleMatrix model_matrix,
+			SimpleMatrix object_matrix,
+			SimpleMatrix norm_model_matrix,
+			SimpleMatrix norm_object_matrix,
+			ArrayList<String> index2word,
+			Map<String, Integer> word2index,
+			int UnknownWordIndex,
+			int UnknownUppercaseWordIndex,
+			ArrayList<String> index2object,
+			Map<String, Integer> object2index,
+			int window,
+			int size,
+			int object_size,
+			ArrayList<Integer> output_classes,
+			ArrayList<ArrayList<String>> output_labels,
+			int output_sigmoid_classes,
+			ArrayList<String> output_sigmoid_labels) throws Exception {
+		this(projection_matrix,
+				bias_vector,
+				model_matrix,
+				norm_model_matrix,
+				new MatrixEmbeddingStore(object_matrix, norm_object_matrix),
+				index2word,
+				word2index,
+				UnknownWordIndex,
+				UnknownUppercaseWordIndex,
+				index2object,
+				object2index,
+				window,
+				size,
+				object_size,
+				output_classes,
+				output_labels,
+				output_sigmoid_classes,
+				output_sigmoid_labels);
+	}
+	
+	/*
+	 * Construct the object Language Model with the object vectors
+	 * served by an EmbeddingStore, for instance one reading rows
+	 * on demand from a memory mapped snapshot.
+	 */
+	public ObjectLM(
+			SimpleMatrix projection_matrix,
+			SimpleMatrix bias_vector,
+			SimpleMatrix model_matrix,
+			SimpleMatrix norm_model_matrix,
+			EmbeddingStore object_vectors,
+			ArrayList<String> index2word,
+			Map<String, Integer> word2index,
+			int UnknownWordIndex,
+			int UnknownUppercaseWordIndex,
+			ArrayList<String> index2object,
+			Map<String, Integer> object2index,
+			int window,
+			int size,
+			int object_size,
+			ArrayList<Integer> output_classes,
+			ArrayList<ArrayList<String>> output_labels,
+			int output_sigmoid_classes,
+			ArrayList<String> output_sigmoid_labels) throws Exception {
 		this.projection_matrix = projection_matrix;
 		this.bias_vector   = bias_vector;
 		
 		this.fix_bias_orientation();
 		
 		this.model_matrix      = model_matrix;
-		this.object_matrix     = object_matrix;
+		this.object_vectors    = object_vectors;
+		
+		if (object_vectors instanceof MatrixEmbeddingStore) {
+			this.object_matrix      = ((MatrixEmbeddingStore) object_vectors).matrix;
+			this.norm_object_matrix = ((MatrixEmbeddingStore) object_vectors).normalized;
+		}
 		
 		this.index2word = index2word;
 		this.word2index = word2index;
@@ -116,8 +261,17 @@ public class ObjectLM implements Serializable {
 		for (int i : output_classes) {
 			this.prediction_size += i;
 		}
+		this.output_class_sizes = new int[output_classes.size()];
+		for (int i = 0; i < output_class_sizes.length; ++i) {
+			output_class_sizes[i] = output_classes.get(i);
+		}
 		
-		create_normalized_matrices();
+		if (norm_model_matrix == null) {
+			this.norm_model_matrix = VectorUtils.normalize_rows(model_matrix);
+		} else {
+			this.norm_model_matrix = norm_model_matrix;
+		}
+		this.word_vectors = new MatrixEmbeddingStore(model_matrix, this.norm_model_matrix);
 	}
 	
 	/*
@@ -131,40 +285,81 @@ public class ObjectLM implements Serializable {
 	}
 	
 	public void create_normalized_matrices() throws Exception {
-		// sum the squares of each vector, square root each to get norm,
-		// and divide each column by the norm as done in the Python
-		// implementation.
-		this.norm_model_matrix = VectorUtils.element_divide(
-				model_matrix,
-				VectorUtils.sqrt(
-						VectorUtils.sum(
-								model_matrix.elementMult(model_matrix),
-								-1),
-								true),
-						false);
-		this.norm_object_matrix = VectorUtils.element_divide(
-				object_matrix,
-				VectorUtils.sqrt(
-						VectorUtils.sum(
-								object_matrix.elementMult(object_matrix),
-								-1),
-								true),
-						false);
+		if (model_matrix != null) {
+			this.norm_model_matrix = VectorUtils.normalize_rows(model_matrix);
+			this.word_vectors = new MatrixEmbeddingStore(model_matrix, norm_model_matrix);
+		}
+		if (object_matrix != null) {
+			this.norm_object_matrix = VectorUtils.normalize_rows(object_matrix);
+			this.object_vectors = new MatrixEmbeddingStore(object_matrix, norm_object_matrix);
+		}
 	}
 	
 	
+	/*
+	 * Memory-lean storage: keep only the normalized word and object
+	 * matrices with the norm of each row, and rebuild raw vectors on
+	 * demand during look-ups. model_matrix and object_matrix are
+	 * released (memory mapped objects are left as they are).
+	 */
+	public void use_lean_storage() {
+		if (model_matrix != null) {
+			this.word_vectors = new NormalizedEmbeddingStore(norm_model_matrix, VectorUtils.row_norms(model_matrix));
+			this.model_matrix = null;
+			if (word_index != null) {
+				word_index.append(word_vectors, word_vectors.number_of_rows());
+			}
+		}
+		if (object_matrix != null) {
+			this.object_vectors = new NormalizedEmbeddingStore(norm_object_matrix, VectorUtils.row_norms(object_matrix));
+			this.object_matrix = null;
+			if (object_index != null) {
+				// point the index at the new store so the raw matrix can be collected:
+				object_index.append(object_vectors, object_vectors.number_of_rows());
+			}
+		}
+	}
+	
+	/*
+	 * Single precision storage: round the word and object vectors (raw
+	 * and normalized) into a FloatEmbeddingStore each, as the Python model
+	 * was trained, halving their footprint and the bytes read by the
+	 * brute-force scans. The double precision matrices are released; the
+	 * projection matrix and bias, small next to the vectors, are kept.
+	 * Memory mapped objects are copied onto the heap as floats.
+	 */
+	public synchronized void use_single_precision() {
+		this.word_vectors = new FloatEmbeddingStore(word_vectors);
+		this.model_matrix = null;
+		this.norm_model_matrix = null;
+		if (word_index != null) {
+			word_index.append(word_vectors, word_vectors.number_of_rows());
+		}
+		EmbeddingStore objects = new FloatEmbeddingStore(object_vectors);
+		if (object_index != null) {
+			object_index.append(objects, objects.number_of_rows());
+		}
+		this.object_matrix = null;
+		this.norm_object_matrix = null;
+		this.object_vectors = objects;
+	}
+	
 	/*
 	 * Perform lookup for a word's vector using an index.
 	 */
 	public SimpleMatrix get_word_vector(int index) {
-		return this.model_matrix.extractVector(true, index).transpose();
+		SimpleMatrix vector = new SimpleMatrix(size, 1);
+		word_vectors.copy_row(index, vector.getMatrix().data, 0);
+		return vector;
 	}
 	
 	/*
 	 * Perform lookup for an object's vector using an index.
 	 */
 	public SimpleMatrix get_object_vector(int object_index) {
-		return this.object_matrix.extractVector(true, object_index).transpose();
+		SimpleMatrix vector = new SimpleMatrix(object_size, 1);
+		object_vectors.copy_row(object_index, vector.getMatrix().data, 0);
+		return vector;
 	}
 	
 	/*
@@ -175,12 +370,13 @@ public class ObjectLM implements Serializable {
 
 		SimpleMatrix observation = new SimpleMatrix(window * size + object_size, 1);
 		
+		double[] data = observation.getMatrix().data;
 		int index = 0;
 		for (int i : indices) {
-			observation.insertIntoThis(index, 0, get_word_vector(i));
+			word_vectors.copy_row(i, data, index);
 			index += size;
 		}
-		observation.insertIntoThis(index, 0, get_object_vector(object_index));
+		object_vectors.copy_row(object_index, data, index);
 		
 		return observation;
 	}
@@ -191,48 +387,44 @@ public class ObjectLM implements Serializable {
 	 * an alphabet of values that sum to 1.
 	 */
 	private SimpleMatrix normalize_predictions(SimpleMatrix unnormalized) {
-		SimpleMatrix prediction = new SimpleMatrix(prediction_size, 1);
-		
-		int index = 0;
-		// for each softmax class extract a prediction
-		for (int output_size : output_classes) {
-			prediction.insertIntoThis(
-					index,
-					0,
-					VectorUtils.softmax(
-							unnormalized.extractMatrix(
-									index,
-									index + output_size,
-									0,
-									1)
-									)
-									);
-			index += output_size;
-		}
-		
-		// for the sigmoid classes sigmoid each:
-		prediction.insertIntoThis(index, 0, VectorUtils.element_wise_sigmoid(unnormalized.extractMatrix(
-									index,
-									index + output_sigmoid_classes,
-									0,
-									1)
-									)
-									);
+		SimpleMatrix prediction = unnormalized.copy();
+		normalize_predictions(prediction.getMatrix().data, 0);
 		return prediction;
 	}
+	/*
+	 * Apply the softmax and sigmoid nonlinearities in place to the
+	 * `prediction_size` unnormalized predictions starting at `offset`.
+	 */
+	public void normalize_predictions(double[] unnormalized, int offset) {
+		VectorKernels.normalize_logits(unnormalized, offset, output_class_sizes, output_sigmoid_classes);
+	}
+	
 	/* Projects the observation vector into the prediction space
 	 * by multiplying by projection matrix and adding bias vector,
 	 * then applying the softmax and sigmoid nonlinearities.
 	 */
 	public SimpleMatrix project(SimpleMatrix observation) {
-		SimpleMatrix unnormalized_predictions = projection_matrix.mult(observation).plus(bias_vector);
-		return normalize_predictions(unnormalized_predictions);
+		SimpleMatrix predictions = new SimpleMatrix(prediction_size, 1);
+		double[] out = predictions.getMatrix().data;
+		VectorKernels.gemv(projection_matrix.getMatrix().data, prediction_size, projection_matrix.numCols(), 0,
+				projection_matrix.numCols(), observation.getMatrix().data, 0, bias_vector.getMatrix().data, out, 0);
+		normalize_predictions(out, 0);
+		return predictions;
 	}
 	
 	/* Take word and object indices and converts them to an observation,
 	 * which can then be projected into the prediction space.
 	 */
 	public SimpleMatrix predict_proba(List<Integer> indices, int object_index) {
+		if (projection_tables != null || object_contributions != null) {
+			int[] words = new int[window];
+			for (int i = 0; i < window; ++i) {
+				words[i] = indices.get(i);
+			}
+			SimpleMatrix predictions = new SimpleMatrix(prediction_size, 1);
+			predict_proba(words, 0, object_index, predictions.getMatrix().data, scratch());
+			return predictions;
+		}
 		SimpleMatrix observation = observation_vector(indices, object_index);
 		return project(observation);
 	}
@@ -241,26 +433,71 @@ public class ObjectLM implements Serializable {
 		return predict_proba(new ArrayList<Integer>(Arrays.asList(indices)), object_index);
 	}
 	
-	public ArrayList<Integer> predict(List<Integer> indices, int object_index) {
-		SimpleMatrix predictions = predict_proba(indices, object_index);
-		ArrayList<Integer> labels = new ArrayList<Integer>();
+	/*
+	 * Score many windows at once: the observations are stacked into one
+	 * block (a row per window), projected with a single matrix multiply,
+	 * and normalized class by class across all windows. Column i of the
+	 * result holds the probabilities for windows[i] and object_indices[i].
+	 */
+	public SimpleMatrix predict_proba_batch(int[][] windows, int[] object_indices) {
+		if (windows.length != object_indices.length) {
+			throw new IllegalArgumentException("need one object index per window");
+		}
+		int observation_size = window * size + object_size;
+		SimpleMatrix observations = new SimpleMatrix(windows.length, observation_size);
+		double[] data = observations.getMatrix().data;
+		for (int n = 0; n < windows.length; ++n) {
+			int index = n * observation_size;
+			for (int i : windows[n]) {
+				word_vectors.copy_row(i, data, index);
+				index += size;
+			}
+			object_vectors.copy_row(object_indices[n], data, index);
+		}
+		
+		SimpleMatrix predictions = new SimpleMatrix(prediction_size, windows.length);
+		CommonOps.multTransB(projection_matrix.getMatrix(), observations.getMatrix(), predictions.getMatrix());
+		
+		// add the bias to every column:
+		double[] out = predictions.getMatrix().data;
+		for (int i = 0; i < prediction_size; ++i) {
+			double bias = bias_vector.get(i, 0);
+			int offset = i * windows.length;
+			for (int n = 0; n < windows.length; ++n) {
+				out[offset + n] += bias;
+			}
+		}
 		
 		int index = 0;
-		// for each softmax class extract a prediction
 		for (int output_size : output_classes) {
-			labels.add(VectorUtils.argmax(
-					predictions.extractMatrix(
-									index,
-									index + output_size,
-									0,
-									1)));
+			VectorUtils.softmax_columns(predictions, index, index + output_size);
 			index += output_size;
 		}
-		
-		for (int i = 0; i < output_sigmoid_classes ; ++i) {
-			labels.add((int) Math.round(predictions.get(index + i, 0)));
+		VectorUtils.sigmoid_rows(predictions, index, index + output_sigmoid_classes);
+		return predictions;
+	}
+	
+	/*
+	 * Score many windows of text about the same object.
+	 */
+	public SimpleMatrix predict_proba_batch(int[][] windows, int object_index) {
+		int[] object_indices = new int[windows.length];
+		Arrays.fill(object_indices, object_index);
+		return predict_proba_batch(windows, object_indices);
+	}
+	
+	public ArrayList<Integer> predict(List<Integer> indices, int object_index) {
+		int[] words = new int[window];
+		for (int i = 0; i < window; ++i) {
+			words[i] = indices.get(i);
 		}
+		int[] predicted = new int[output_classes.size() + output_sigmoid_classes];
+		predict(words, 0, object_index, predicted, scratch());
 		
+		ArrayList<Integer> labels = new ArrayList<Integer>();
+		for (int label : predicted) {
+			labels.add(label);
+		}
 		return labels;	
 	}
 	
@@ -268,6 +505,101 @@ public class ObjectLM implements Serializable {
 		return predict(new ArrayList<Integer>(Arrays.asList(indices)), object_index);	
 	}
 	
+	/*
+	 * Buffers of the primitive inference path for the calling thread.
+	 */
+	public InferenceScratch scratch() {
+		ThreadLocal<InferenceScratch> buffers = scratch;
+		if (buffers == null) {
+			synchronized (this) {
+				buffers = scratch;
+				if (buffers == null) {
+					final ObjectLM model = this;
+					buffers = new ThreadLocal<InferenceScratch>() {
+						@Override
+						protected InferenceScratch initialValue() {
+							return new InferenceScratch(model);
+						}
+					};
+					scratch = buffers;
+				}
+			}
+		}
+		return buffers.get();
+	}
+	
+	/*
+	 * Unnormalized predictions (projection plus bias) of the window of
+	 * `window` word indices of `indices` starting at `offset`, written
+	 * into `out`, which must hold `prediction_size` values.
+	 */
+	public void logits(int[] indices, int offset, int object_index, double[] out, InferenceScratch scratch) {
+		if (projection_tables != null) {
+			projection_tables.unnormalized(indices, offset, object_index, out, 0);
+		} else {
+			double[] observation = scratch.observation;
+			int index = 0;
+			for (int i = 0; i < window; ++i) {
+				word_vectors.copy_row(indices[offset + i], observation, index);
+				index += size;
+			}
+			
+			// with a cached object contribution (bias included) only
+			// the words are left to project:
+			double[] start;
+			int length;
+			if (object_contributions != null) {
+				start = object_contributions.get(object_index);
+				length = index;
+			} else {
+				object_vectors.copy_row(object_index, observation, index);
+				start = bias_vector.getMatrix().data;
+				length = observation.length;
+			}
+			
+			VectorKernels.gemv(projection_matrix.getMatrix().data, prediction_size, observation.length, 0, length,
+					observation, 0, start, out, 0);
+		}
+	}
+	
+	/*
+	 * Allocation-free predict_proba: the window is the `window` word
+	 * indices of `indices` starting at `offset`, and the probabilities are
+	 * written into `out`, which must hold `prediction_size` values.
+	 */
+	public void predict_proba(int[] indices, int offset, int object_index, double[] out, InferenceScratch scratch) {
+		logits(indices, offset, object_index, out, scratch);
+		normalize_predictions(out, 0);
+	}
+	
+	public void predict_proba(int[] indices, int object_index, double[] out) {
+		predict_proba(indices, 0, object_index, out, scratch());
+	}
+	
+	/*
+	 * Labels of a prediction: the argmax of each softmax class followed
+	 * by the rounded value of each sigmoid class, written into `labels`.
+	 * Throws IllegalArgumentException when the probabilities of a softmax
+	 * class are NaN.
+	 */
+	public void labels(double[] probabilities, int[] labels) {
+		VectorKernels.probability_labels(probabilities, 0, output_class_sizes, output_sigmoid_classes, labels);
+	}
+	
+	/*
+	 * Allocation-free predict: writes `output_classes.size() +
+	 * output_sigmoid_classes` labels into `labels`, the same as labels()
+	 * gives for the output of predict_proba.
+	 */
+	public void predict(int[] indices, int offset, int object_index, int[] labels, InferenceScratch scratch) {
+		logits(indices, offset, object_index, scratch.logits, scratch);
+		VectorKernels.logit_labels(scratch.logits, 0, output_class_sizes, output_sigmoid_classes, labels);
+	}
+	
+	public void predict(int[] indices, int object_index, int[] labels) {
+		predict(indices, 0, object_index, labels, scratch());
+	}
+	
 	public String toString() {
 		String self = "<ObjectLM ";
 		self += "window = " + window + ", ";
@@ -319,7 +651,7 @@ public class ObjectLM implements Serializable {
 	 * Report the number of total numbers learnt in each matrix for the model.
 	 */
 	public Integer number_of_parameters() {
-		return bias_vector.getNumElements() + projection_matrix.getNumElements() + model_matrix.getNumElements() + object_matrix.getNumElements();
+		return bias_vector.getNumElements() + projection_matrix.getNumElements() + word_vectors.number_of_rows() * word_vectors.dimension() + object_vectors.number_of_rows() * object_vectors.dimension();
 	}
 	
 	/*
@@ -328,53 +660,173 @@ public class ObjectLM implements Serializable {
 	private static final long serialVersionUID = 1L;
 	
 	public static ObjectLM load_saved_python_model(String pathname) throws Exception {
-		// add folder slash if pathname doesn't have one:
-		if (!pathname.endsWith("/")) {
-			pathname = pathname + "/";
-		}
-		
-		File f = new File(pathname);
-		if (!f.isDirectory()) throw new Exception("Path should point to directory of saved parameters.");
-		
-		SavedParameterReader.check_file_existence(pathname, "parameters.mat");
-		SavedParameterReader.check_file_existence(pathname, "__dict__.txt");
-		SavedParameterReader.check_file_existence(pathname, "__vocab__.gz");
-		SavedParameterReader.check_file_existence(pathname, "__objects__.gz");
-		
-		// load the parameter matrices:
-		Map<String, SimpleMatrix> m       = MatrixImporter.load_matrix(pathname + "parameters.mat");
-		// load the model parameters:
-		Map<String, String> params        = SavedParameterReader.convert_file_to_map(pathname + "__dict__.txt");
-		// load the vocabulary mapping:
-		SavedVocabulary vocab             = SavedParameterReader.load_vocabulary(pathname + "__vocab__.gz");
-		SavedVocabulary objects           = SavedParameterReader.load_vocabulary(pathname + "__objects__.gz");
-		
-		ArrayList<Integer> output_classes = SavedParameterReader.convert_string_to_output_classes(params.get("output_classes"));
-		
-		return new ObjectLM(
-				m.get("projection_matrix"),
-				m.get("bias_vector"),
-				m.get("model_matrix"),
-				m.get("object_matrix"),
-				vocab.index2word,
-				vocab.word2index,
-				Integer.parseInt(params.get("UnknownWordIndex")),
-				Integer.parseInt(params.get("UnknownUppercaseWordIndex")),
-				objects.index2word,
-				objects.word2index,
-				Integer.parseInt(params.get("window")),
-				Integer.parseInt(params.get("size")),
-				Integer.parseInt(params.get("object_size")),
-				output_classes,
-				SavedParameterReader.convert_map_to_output_labels(params, output_classes.size()),
-				Integer.parseInt(params.get("output_sigmoid_classes")),
-				SavedParameterReader.convert_string_to_list(params.get("sigmoid_labels")));
+		return SavedModelLoader.load(pathname).x;
+	}
+	
+	/*
+	 * Same as load_saved_python_model, but also returns how long each
+	 * loading stage took (in milliseconds), keyed by stage name.
+	 */
+	public static Tuple<ObjectLM, Map<String, Long>> load_saved_python_model_with_timings(String pathname) throws Exception {
+		return SavedModelLoader.load(pathname);
+	}
+	
+	/*
+	 * Store the normalized matrices in the save directory at `pathname`
+	 * so that load_saved_python_model reads them back instead of
+	 * normalizing on every start.
+	 */
+	public void save_normalized_matrices(String pathname) throws Exception {
+		SavedModelLoader.save_normalized_matrices(this, pathname);
+	}
+	
+	/*
+	 * Names of the integer parameters stored in a snapshot, in order.
+	 */
+	private static final String[] SNAPSHOT_PARAMETERS = {
+		"window", "size", "object_size", "UnknownWordIndex",
+		"UnknownUppercaseWordIndex", "output_sigmoid_classes"};
+	
+	/*
+	 * Raw vectors of a store as a matrix, shared with the store when it
+	 * already holds one and rebuilt row by row otherwise.
+	 */
+	private static SimpleMatrix raw_matrix(EmbeddingStore store) {
+		if (store instanceof MatrixEmbeddingStore) {
+			return ((MatrixEmbeddingStore) store).matrix;
+		}
+		SimpleMatrix matrix = new SimpleMatrix(store.number_of_rows(), store.dimension());
+		double[] data = matrix.getMatrix().data;
+		for (int i = 0; i < store.number_of_rows(); ++i) {
+			store.copy_row(i, data, i * store.dimension());
+		}
+		return matrix;
+	}
+	
+	/*
+	 * Write every matrix, vocabulary, parameter and the row norms of
+	 * this model into a single binary file that can be reopened with
+	 * open_snapshot, skipping the Matlab, gzip and normalization work
+	 * done by load_saved_python_model.
+	 */
+	public void save_snapshot(String pathname) throws IOException {
+		SnapshotWriter writer = new SnapshotWriter(pathname);
+		try {
+			writer.add_ints("parameters", new int[] {
+					window, size, object_size, UnknownWordIndex,
+					UnknownUppercaseWordIndex, output_sigmoid_classes});
+			int[] classes = new int[output_classes.size()];
+			for (int i = 0; i < classes.length; ++i) {
+				classes[i] = output_classes.get(i);
+				writer.add_strings("softmax_labels_" + i, output_labels.get(i));
+			}
+			writer.add_ints("output_classes", classes);
+			writer.add_strings("sigmoid_labels", output_sigmoid_labels);
+			
+			writer.add_strings("vocab", index2word);
+			writer.add_strings("objects", index2object);
+			
+			writer.add_matrix("projection_matrix", projection_matrix);
+			writer.add_matrix("bias_vector", bias_vector);
+			SimpleMatrix model_matrix  = raw_matrix(word_vectors);
+			SimpleMatrix object_matrix = raw_matrix(object_vectors);
+			writer.add_matrix("model_matrix", model_matrix);
+			writer.add_matrix("object_matrix", object_matrix);
+			
+			double[] model_norms = VectorUtils.row_norms(model_matrix);
+			double[] object_norms = VectorUtils.row_norms(object_matrix);
+			writer.add_doubles("model_norms", model_norms.length, 1, model_norms);
+			writer.add_doubles("object_norms", object_norms.length, 1, object_norms);
+			writer.close();
+		} finally {
+			writer.abort();
+		}
+	}
+	
+	/*
+	 * Load a model written by save_snapshot. The file is memory mapped and
+	 * each matrix is bulk copied out of it, while the normalized matrices
+	 * are rebuilt from the stored row norms in a single pass.
+	 */
+	public static ObjectLM open_snapshot(String pathname) throws Exception {
+		return open_snapshot(pathname, false);
+	}
+	
+	/*
+	 * Load a model written by save_snapshot. When `map_objects` is true the
+	 * object vectors are not copied onto the heap but read from the mapped
+	 * file on demand through a MappedEmbeddingStore (object_matrix and
+	 * norm_object_matrix are then left null).
+	 */
+	public static ObjectLM open_snapshot(String pathname, boolean map_objects) throws Exception {
+		ModelSnapshot snapshot = new ModelSnapshot(pathname);
+		try {
+			int[] parameters = snapshot.read_ints("parameters");
+			if (parameters.length != SNAPSHOT_PARAMETERS.length) {
+				throw new Exception("Snapshot should hold " + SNAPSHOT_PARAMETERS.length + " parameters.");
+			}
+			
+			ArrayList<Integer> output_classes = new ArrayList<Integer>();
+			ArrayList<ArrayList<String>> output_labels = new ArrayList<ArrayList<String>>();
+			int[] classes = snapshot.read_ints("output_classes");
+			for (int i = 0; i < classes.length; ++i) {
+				output_classes.add(classes[i]);
+				output_labels.add(snapshot.read_strings("softmax_labels_" + i));
+			}
+			
+			SavedVocabulary vocab   = new SavedVocabulary(snapshot.read_dictionary("vocab"));
+			SavedVocabulary objects = new SavedVocabulary(snapshot.read_dictionary("objects"));
+			
+			SimpleMatrix model_matrix  = snapshot.read_matrix("model_matrix");
+			
+			EmbeddingStore object_vectors;
+			if (map_objects) {
+				object_vectors = new MappedEmbeddingStore(snapshot, "object_matrix", "object_norms");
+			} else {
+				SimpleMatrix object_matrix = snapshot.read_matrix("object_matrix");
+				object_vectors = new MatrixEmbeddingStore(object_matrix, normalized_matrix(snapshot, object_matrix, "object_norms"));
+			}
+			
+			return new ObjectLM(
+					snapshot.read_matrix("projection_matrix"),
+					snapshot.read_matrix("bias_vector"),
+					model_matrix,
+					normalized_matrix(snapshot, model_matrix, "model_norms"),
+					object_vectors,
+					vocab.index2word,
+					vocab.word2index,
+					parameters[3],
+					parameters[4],
+					objects.index2word,
+					objects.word2index,
+					parameters[0],
+					parameters[1],
+					parameters[2],
+					output_classes,
+					output_labels,
+					parameters[5],
+					snapshot.read_strings("sigmoid_labels"));
+		} finally {
+			snapshot.close();
+		}
+	}
+	
+	/*
+	 * Normalized rows of a snapshot matrix, from its stored
+	 * row norms when present.
+	 */
+	private static SimpleMatrix normalized_matrix(ModelSnapshot snapshot, SimpleMatrix matrix, String norms_name) throws IOException {
+		if (snapshot.has(norms_name)) {
+			return VectorUtils.divide_rows(matrix, snapshot.read_doubles(norms_name));
+		}
+		return VectorUtils.normalize_rows(matrix);
 	}
 	
 	public Integer get_index(String word) {
 		
-		if (word2index.containsKey(word)) {
-			return word2index.get(word);
+		Integer index = word2index.get(word);
+		if (index != null) {
+			return index;
 		} else if (Character.isUpperCase(word.charAt(0))) {
 			return UnknownUppercaseWordIndex;
 		} else {
@@ -394,64 +846,622 @@ public class ObjectLM implements Serializable {
 		return indices;
 	}
 	
+	/*
+	 * Label a whole document about an object: the text is tokenized as it
+	 * is read and every window is scored as soon as it is complete, so
+	 * memory stays constant whatever the length of the document.
+	 */
+	public DocumentPrediction predict_document(Reader reader, int object_index) throws IOException {
+		DocumentPrediction prediction = new DocumentPrediction(this, object_index);
+		SlidingWindowScorer scorer = new SlidingWindowScorer(this, object_index);
+		WordTokenizer tokenizer = new WordTokenizer(reader);
+		int[] labels = new int[output_classes.size() + output_sigmoid_classes];
+		for (String word = tokenizer.next(); word != null; word = tokenizer.next()) {
+			prediction.tokens += 1;
+			if (scorer.push(get_index(word))) {
+				labels(scorer.probabilities(), labels);
+				prediction.vote(labels);
+			}
+		}
+		prediction.windows = scorer.windows_scored();
+		scorer.mean_probabilities(prediction.mean_probabilities, 0);
+		return prediction;
+	}
+	
+	/*
+	 * Label a UTF-8 document, gzip compressed or not (compression is
+	 * detected from the first bytes of the stream).
+	 */
+	public DocumentPrediction predict_document(InputStream in, int object_index) throws IOException {
+		in = new BufferedInputStream(in);
+		in.mark(2);
+		int first = in.read(), second = in.read();
+		in.reset();
+		if (first == 0x1f && second == 0x8b) {
+			in = new GZIPInputStream(in);
+		}
+		return predict_document(new InputStreamReader(in, "UTF-8"), object_index);
+	}
+	
+	public DocumentPrediction predict_document(String filename, int object_index) throws IOException {
+		InputStream in = new FileInputStream(filename);
+		try {
+			return predict_document(in, object_index);
+		} finally {
+			in.close();
+		}
+	}
+	
+	/*
+	 * Rank the rows of a row-normalized matrix by their dot product with
+	 * row `index`, skipping that row. The scan feeds a bounded heap, so
+	 * neither the similarities nor their sort are materialized.
+	 */
 	public ArrayList<Triple<Double, String, Integer>> most_similar_using_matrix(SimpleMatrix prism, int index, List<String> index2word, Integer topn) {
+		double[] x = new double[prism.numCols()];
+		System.arraycopy(prism.getMatrix().data, index * x.length, x, 0, x.length);
+		return most_similar_using_matrix(prism, x, index, index2word, topn);
+	}
+	
+	/*
+	 * Rank the rows of a matrix by their dot product with x,
+	 * skipping the row `exclude` (-1 keeps every row).
+	 */
+	public ArrayList<Triple<Double, String, Integer>> most_similar_using_matrix(SimpleMatrix prism, final double[] x, final int exclude, List<String> index2word, Integer topn) {
 		if (topn == null) {
 			topn = 10;
 		}
-		SimpleMatrix dists = prism.mult( prism.extractVector(true, index).transpose() );
-		List<Integer> best = VectorUtils.argsort(dists, false);
-		best = best.subList(0, topn + 1);
-		
-		ArrayList<Triple<Double, String, Integer>> sims = new ArrayList<Triple<Double, String, Integer>>();
-		
-		for (Integer i : best) {
-			if (i != index) {
-				sims.add(new Triple<Double, String, Integer>(
-						dists.get(i, 0),
-						index2word.get(i),
-						i
-						));
+		final double[] data = prism.getMatrix().data;
+		final int cols = prism.numCols();
+		return similarities(scan(new RowScan() {
+			void scan(int from, int to, TopK best) {
+				for (int i = from; i < to; ++i) {
+					if (i != exclude) {
+						best.offer(VectorKernels.dot(data, i * cols, x, 0, cols), i);
+					}
+				}
 			}
-		}
-		return sims;
+		}, prism.numRows(), topn).sort(), index2word);
 	}
 	
 	public ArrayList<Triple<Double, String, Integer>> most_similar_using_matrix_vector(SimpleMatrix prism, SimpleMatrix x, List<String> index2word, Integer topn) {
+		return most_similar_using_matrix(prism, x.getMatrix().data, -1, index2word, topn);
+	}
+	
+	
+	
+	/*
+	 * Rank the normalized rows of an EmbeddingStore by their dot product
+	 * with x, skipping the row `exclude` (use -1 to keep every row).
+	 */
+	public ArrayList<Triple<Double, String, Integer>> most_similar_using_store(final EmbeddingStore store, final double[] x, final int exclude, List<String> index2word, Integer topn) {
+		if (topn == null) {
+			topn = 10;
+		}
+		return similarities(scan(new RowScan() {
+			void scan(int from, int to, TopK best) {
+				for (int i = from; i < to; ++i) {
+					if (i != exclude) {
+						best.offer(store.normalized_dot(i, x), i);
+					}
+				}
+			}
+		}, store.number_of_rows(), topn).sort(), index2word);
+	}
+	
+	/*
+	 * Exact search over a range of rows, feeding a TopK.
+	 */
+	private static abstract class RowScan {
+		abstract void scan(int from, int to, TopK best);
+	}
+	
+	/*
+	 * Best `topn` of `rows` rows. With a search pool the rows are split
+	 * into chunks scanned in parallel, each into its own TopK, and the
+	 * chunks' selections are merged: TopK orders ties by index, so the
+	 * result is the same as a sequential scan.
+	 */
+	private TopK scan(final RowScan scan, int rows, final int topn) {
+		ExecutorService pool = search_pool;
+		if (pool != null && rows >= 2 * SEARCH_CHUNK_ROWS) {
+			List<Future<TopK>> futures = new ArrayList<Future<TopK>>();
+			try {
+				for (int from = 0; from < rows; from += SEARCH_CHUNK_ROWS) {
+					final int start = from, end = Math.min(rows, from + SEARCH_CHUNK_ROWS);
+					futures.add(pool.submit(new Callable<TopK>() {
+						public TopK call() {
+							TopK best = new TopK(Math.min(topn, end - start));
+							scan.scan(start, end, best);
+							return best;
+						}
+					}));
+				}
+			} catch (RejectedExecutionException e) {
+				// the model was closed meanwhile, scan on this thread:
+				futures = null;
+			}
+			if (futures != null) {
+				TopK best = new TopK(Math.min(topn, rows));
+				for (Future<TopK> future : futures) {
+					best.merge(await(future));
+				}
+				return best;
+			}
+		}
+		TopK best = new TopK(Math.min(topn, rows));
+		scan.scan(0, rows, best);
+		return best;
+	}
+	
+	/*
+	 * Result of a search task, with its exception rethrown unchecked.
+	 */
+	private static <T> T await(Future<T> future) {
+		try {
+			return SavedModelLoader.await(future);
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/*
+	 * Split exact searches (the scans of most_similar_word, of
+	 * most_similar_object and of most_similar_objects without an index)
+	 * into chunks of rows scanned on `threads` threads; 1 or less goes
+	 * back to sequential scans.
+	 */
+	public synchronized void use_parallel_search(int threads) {
+		if (search_pool != null) {
+			// searches in flight finish, new ones scan sequentially:
+			search_pool.shutdown();
+			search_pool = null;
+		}
+		search_threads = 1;
+		if (threads > 1) {
+			search_threads = threads;
+			this.search_pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "objectlm-search");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+	}
+	
+	/*
+	 * Release the threads held by the model (see use_parallel_search).
+	 * The model stays usable, searching on the calling thread. Called by
+	 * ModelRegistry when a replaced version is dropped.
+	 */
+	public void close() {
+		use_parallel_search(1);
+	}
+	
+	// rows and queries scored together by batched searches,
+	// sized so both blocks stay in cache:
+	private static final int SEARCH_ROW_BLOCK = 256;
+	private static final int SEARCH_QUERY_BLOCK = 64;
+	// rows scanned by each task of a parallel search:
+	private static final int SEARCH_CHUNK_ROWS = 4096;
+	
+	/*
+	 * Rank the normalized rows of an EmbeddingStore for many queries at
+	 * once, skipping the row exclude[q] for query q (exclude may be null).
+	 * Blocks of rows are scored against blocks of queries while both sit
+	 * in cache (see VectorKernels.dot_blocks), so the rows are read once
+	 * for all the queries instead of once per query. With a search pool
+	 * the rows are split in one range per thread, each ranked for every
+	 * query, and the ranges' selections are merged. Same results as
+	 * most_similar_using_store on each query.
+	 */
+	public List<ArrayList<Triple<Double, String, Integer>>> most_similar_using_store(final EmbeddingStore store, double[][] queries, final int[] exclude, List<String> index2word, Integer topn) {
 		if (topn == null) {
 			topn = 10;
 		}
-		SimpleMatrix dists = prism.mult( x );
-		List<Integer> best = VectorUtils.argsort(dists, false);
-		best = best.subList(0, topn);
+		final int rows = store.number_of_rows(), d = store.dimension(), n = queries.length, k = topn;
+		final double[] packed = new double[n * d];
+		for (int q = 0; q < n; ++q) {
+			System.arraycopy(queries[q], 0, packed, q * d, d);
+		}
 		
+		TopK[] best = null;
+		ExecutorService pool = search_pool;
+		int tasks = Math.min(search_threads, rows / SEARCH_CHUNK_ROWS);
+		if (pool != null && tasks > 1) {
+			List<Future<TopK[]>> futures = new ArrayList<Future<TopK[]>>(tasks);
+			try {
+				for (int t = 0; t < tasks; ++t) {
+					// ranges start on a block of rows:
+					final int from = (int) ((long) rows * t / tasks) / SEARCH_ROW_BLOCK * SEARCH_ROW_BLOCK;
+					final int to = t + 1 == tasks ? rows : (int) ((long) rows * (t + 1) / tasks) / SEARCH_ROW_BLOCK * SEARCH_ROW_BLOCK;
+					futures.add(pool.submit(new Callable<TopK[]>() {
+						public TopK[] call() {
+							return scan_queries(store, packed, n, exclude, k, from, to);
+						}
+					}));
+				}
+			} catch (RejectedExecutionException e) {
+				// the model was closed meanwhile, scan on this thread:
+				futures = null;
+			}
+			if (futures != null) {
+				best = new TopK[n];
+				for (int q = 0; q < n; ++q) {
+					best[q] = new TopK(Math.min(k, rows));
+				}
+				for (Future<TopK[]> future : futures) {
+					TopK[] part = await(future);
+					for (int q = 0; q < n; ++q) {
+						best[q].merge(part[q]);
+					}
+				}
+			}
+		}
+		if (best == null) {
+			best = scan_queries(store, packed, n, exclude, k, 0, rows);
+		}
+		List<ArrayList<Triple<Double, String, Integer>>> results = new ArrayList<ArrayList<Triple<Double, String, Integer>>>(n);
+		for (int q = 0; q < n; ++q) {
+			results.add(similarities(best[q].sort(), index2word));
+		}
+		return results;
+	}
+	
+	/*
+	 * Best `topn` rows from `from` to `to` for each of the n queries
+	 * packed back to back in `queries`.
+	 */
+	private static TopK[] scan_queries(EmbeddingStore store, double[] queries, int n, int[] exclude, int topn, int from, int to) {
+		int d = store.dimension();
+		TopK[] best = new TopK[n];
+		for (int q = 0; q < n; ++q) {
+			best[q] = new TopK(Math.min(topn, store.number_of_rows()));
+		}
+		double[] block = new double[Math.min(SEARCH_ROW_BLOCK, Math.max(0, to - from)) * d];
+		double[] query_block = new double[Math.min(SEARCH_QUERY_BLOCK, n) * d];
+		double[] scores = new double[SEARCH_QUERY_BLOCK * SEARCH_ROW_BLOCK];
+		for (int row_start = from; row_start < to; row_start += SEARCH_ROW_BLOCK) {
+			int block_rows = Math.min(SEARCH_ROW_BLOCK, to - row_start);
+			for (int r = 0; r < block_rows; ++r) {
+				store.copy_normalized_row(row_start + r, block, r * d);
+			}
+			for (int query_start = 0; query_start < n; query_start += SEARCH_QUERY_BLOCK) {
+				int block_queries = Math.min(SEARCH_QUERY_BLOCK, n - query_start);
+				System.arraycopy(queries, query_start * d, query_block, 0, block_queries * d);
+				VectorKernels.dot_blocks(query_block, block_queries, block, block_rows, d, scores);
+				for (int q = 0; q < block_queries; ++q) {
+					int skip = exclude != null ? exclude[query_start + q] : -1;
+					TopK top = best[query_start + q];
+					for (int r = 0; r < block_rows; ++r) {
+						if (row_start + r != skip) {
+							top.offer(scores[q * block_rows + r], row_start + r);
+						}
+					}
+				}
+			}
+		}
+		return best;
+	}
+	
+	/*
+	 * Answer a search with a SimilarityIndex, skipping the row `exclude`.
+	 */
+	public ArrayList<Triple<Double, String, Integer>> most_similar_using_index(SimilarityIndex index, double[] x, int exclude, List<String> index2word, Integer topn) {
+		if (topn == null) {
+			topn = 10;
+		}
+		return similarities(index.search(x, topn, exclude), index2word);
+	}
+	
+	/*
+	 * (similarity, label, index) of each element of a sorted TopK.
+	 */
+	private static ArrayList<Triple<Double, String, Integer>> similarities(TopK best, List<String> index2word) {
 		ArrayList<Triple<Double, String, Integer>> sims = new ArrayList<Triple<Double, String, Integer>>();
-		
-		for (Integer i : best) {
+		for (int k = 0; k < best.size(); ++k) {
 			sims.add(new Triple<Double, String, Integer>(
-						dists.get(i, 0),
-						index2word.get(i),
-						i
-						));
+					best.score(k),
+					index2word.get(best.index(k)),
+					best.index(k)
+					));
 		}
 		return sims;
 	}
 	
-	
+	/*
+	 * Answer a search with an InvertedFileIndex probing `nprobe` lists
+	 * (other indices ignore `nprobe`).
+	 */
+	public ArrayList<Triple<Double, String, Integer>> most_similar_using_index(SimilarityIndex index, double[] x, int exclude, List<String> index2word, Integer topn, int nprobe) {
+		if (!(index instanceof InvertedFileIndex)) {
+			return most_similar_using_index(index, x, exclude, index2word, topn);
+		}
+		if (topn == null) {
+			topn = 10;
+		}
+		return similarities(((InvertedFileIndex) index).search(x, topn, exclude, nprobe), index2word);
+	}
 	
 	public ArrayList<Triple<Double, String, Integer>> most_similar_word(String word, Integer topn) {
+		if (word_index != null) {
+			int index = get_index(word);
+			double[] x = new double[size];
+			word_vectors.copy_normalized_row(index, x, 0);
+			return most_similar_using_index(word_index, x, index, index2word, topn);
+		}
+		if (norm_model_matrix == null) {
+			int index = get_index(word);
+			double[] x = new double[size];
+			word_vectors.copy_normalized_row(index, x, 0);
+			return most_similar_using_store(word_vectors, x, index, index2word, topn);
+		}
 		return most_similar_using_matrix(norm_model_matrix, get_index(word), index2word, topn);
 	}
 	
+	/*
+	 * Word search probing `nprobe` lists of an inverted-file word index
+	 * (see use_inverted_file_word_index).
+	 */
+	public ArrayList<Triple<Double, String, Integer>> most_similar_word(String word, Integer topn, int nprobe) {
+		if (word_index == null) {
+			return most_similar_word(word, topn);
+		}
+		int index = get_index(word);
+		double[] x = new double[size];
+		word_vectors.copy_normalized_row(index, x, 0);
+		return most_similar_using_index(word_index, x, index, index2word, topn, nprobe);
+	}
+	
+	/*
+	 * index2object read on each access rather than once, for the
+	 * object searches: add_objects publishes the grown names before the
+	 * rows they name, so a row found by a search that raced with it has
+	 * a name in the list current once the search returns.
+	 */
+	private List<String> object_names() {
+		return new AbstractList<String>() {
+			public String get(int index) {
+				return index2object.get(index);
+			}
+
+			public int size() {
+				return index2object.size();
+			}
+		};
+	}
+	
 	public ArrayList<Triple<Double, String, Integer>> most_similar_object(String object_id, Integer topn) {
-		return most_similar_using_matrix(norm_object_matrix, object2index.get(object_id), index2object, topn);
+		int index = object2index.get(object_id);
+		double[] x = new double[object_size];
+		object_vectors.copy_normalized_row(index, x, 0);
+		if (object_index != null) {
+			return most_similar_using_index(object_index, x, index, object_names(), topn);
+		}
+		return most_similar_using_store(object_vectors, x, index, object_names(), topn);
+	}
+	
+	/*
+	 * Object search probing `nprobe` lists of an inverted-file object
+	 * index (see use_inverted_file_object_index).
+	 */
+	public ArrayList<Triple<Double, String, Integer>> most_similar_object(String object_id, Integer topn, int nprobe) {
+		if (object_index == null) {
+			return most_similar_object(object_id, topn);
+		}
+		int index = object2index.get(object_id);
+		double[] x = new double[object_size];
+		object_vectors.copy_normalized_row(index, x, 0);
+		return most_similar_using_index(object_index, x, index, object_names(), topn, nprobe);
 	}
 	
 	public ArrayList<Triple<Double, String, Integer>> most_similar_object(SimpleMatrix x, Integer topn) {
-		return most_similar_using_matrix_vector(norm_object_matrix, x, index2object, topn);
+		if (object_index != null) {
+			return most_similar_using_index(object_index, x.getMatrix().data, -1, object_names(), topn);
+		}
+		return most_similar_using_store(object_vectors, x.getMatrix().data, -1, object_names(), topn);
+	}
+	
+	/*
+	 * Objects most similar to each of `object_ids` (each one excluded
+	 * from its own results), searched together: see
+	 * most_similar_using_store for many queries. With an object_index
+	 * each query is answered by the index.
+	 */
+	public List<ArrayList<Triple<Double, String, Integer>>> most_similar_objects(List<String> object_ids, Integer topn) {
+		double[][] queries = new double[object_ids.size()][object_size];
+		int[] exclude = new int[queries.length];
+		for (int q = 0; q < queries.length; ++q) {
+			exclude[q] = object2index.get(object_ids.get(q));
+			object_vectors.copy_normalized_row(exclude[q], queries[q], 0);
+		}
+		return most_similar_objects(queries, exclude, topn);
+	}
+	
+	/*
+	 * Objects most similar to each row of `queries` (one query per row).
+	 */
+	public List<ArrayList<Triple<Double, String, Integer>>> most_similar_objects(SimpleMatrix queries, Integer topn) {
+		double[][] rows = new double[queries.numRows()][object_size];
+		double[] data = queries.getMatrix().data;
+		for (int q = 0; q < rows.length; ++q) {
+			System.arraycopy(data, q * object_size, rows[q], 0, object_size);
+		}
+		return most_similar_objects(rows, null, topn);
+	}
+	
+	private List<ArrayList<Triple<Double, String, Integer>>> most_similar_objects(double[][] queries, int[] exclude, Integer topn) {
+		if (object_index == null) {
+			return most_similar_using_store(object_vectors, queries, exclude, object_names(), topn);
+		}
+		List<ArrayList<Triple<Double, String, Integer>>> results = new ArrayList<ArrayList<Triple<Double, String, Integer>>>(queries.length);
+		for (int q = 0; q < queries.length; ++q) {
+			results.add(most_similar_using_index(object_index, queries[q], exclude != null ? exclude[q] : -1, object_names(), topn));
+		}
+		return results;
+	}
+	
+	public ArrayList<Triple<Double, String, Integer>> most_similar_object(SimpleMatrix x, Integer topn, int nprobe) {
+		if (object_index == null) {
+			return most_similar_object(x, topn);
+		}
+		return most_similar_using_index(object_index, x.getMatrix().data, -1, object_names(), topn, nprobe);
+	}
+	
+	/*
+	 * Answer object searches with an int8 scalar-quantized scan followed
+	 * by exact rescoring of `rerank_factor * topn` candidates.
+	 */
+	public void use_quantized_object_index(int rerank_factor) {
+		this.object_index = new QuantizedIndex(object_vectors, rerank_factor);
+	}
+	
+	/*
+	 * Answer object searches with a product-quantization index: one byte
+	 * per subspace for each object, scored through per-query look-up
+	 * tables, followed by exact rescoring of `rerank_factor * topn`
+	 * candidates (codebooks trained on every core).
+	 */
+	public void use_product_quantization_object_index(int subspaces, int rerank_factor) {
+		this.object_index = new ProductQuantizationIndex(object_vectors, subspaces, rerank_factor,
+				ProductQuantizationIndex.DEFAULT_TRAINING_ROWS, ProductQuantizationIndex.DEFAULT_ITERATIONS, 1234,
+				Runtime.getRuntime().availableProcessors());
+	}
+	
+	/*
+	 * Answer object searches with an HNSW graph built on `threads`
+	 * threads: `M` links per node, a beam of `ef_construction` while
+	 * building and of `ef_search` while searching (see HnswIndex).
+	 */
+	public void use_hnsw_object_index(int M, int ef_construction, int ef_search, int threads) throws Exception {
+		this.object_index = new HnswIndex(object_vectors, M, ef_construction, ef_search, threads, 1234);
+	}
+	
+	/*
+	 * Answer object searches with an HNSW graph saved by HnswIndex.save.
+	 */
+	public void use_hnsw_object_index(String pathname) throws IOException {
+		this.object_index = HnswIndex.load(pathname, object_vectors);
+	}
+	
+	/*
+	 * Answer object searches with an inverted-file index of `lists`
+	 * k-means clusters, scanning the `nprobe` nearest lists by default
+	 * (see most_similar_object(..., nprobe)). Built on `threads` threads.
+	 */
+	public void use_inverted_file_object_index(int lists, int nprobe, int threads) throws Exception {
+		this.object_index = new InvertedFileIndex(object_vectors, lists, nprobe,
+				InvertedFileIndex.DEFAULT_TRAINING_ROWS, InvertedFileIndex.DEFAULT_ITERATIONS, threads, 1234);
+	}
+	
+	/*
+	 * Same for word searches (see most_similar_word(..., nprobe)).
+	 */
+	public void use_inverted_file_word_index(int lists, int nprobe, int threads) throws Exception {
+		this.word_index = new InvertedFileIndex(word_vectors, lists, nprobe,
+				InvertedFileIndex.DEFAULT_TRAINING_ROWS, InvertedFileIndex.DEFAULT_ITERATIONS, threads, 1234);
+	}
+	
+	/*
+	 * Precompute the projection of every word at every window position
+	 * and of every object, so predictions become `window + 1` table row
+	 * additions instead of a matrix multiply. Uses
+	 * `(window * words + objects) * prediction_size` doubles.
+	 */
+	public void use_projection_tables() {
+		this.projection_tables = new TabulatedProjection(this);
+	}
+	
+	/*
+	 * Cache the projection plus bias of up to `capacity` recently used
+	 * objects, so predictions about hot objects only project their words.
+	 * Projection tables, when built, take precedence.
+	 */
+	public void use_object_contribution_cache(int capacity) {
+		this.object_contributions = new ObjectContributionCache(this, capacity);
+	}
+	
+	/*
+	 * Append objects that were not part of training, given their names and
+	 * raw vectors (for instance fitted by ObjectFoldIn), and make them
+	 * searchable and usable for predictions. Returns their indices.
+	 *
+	 * Searches and predictions can run meanwhile: the names are appended
+	 * first, then the projection tables and the object index are extended,
+	 * and the grown object store is published last, so every row a search
+	 * can return already has a name. The names list, and any map that is
+	 * not backed by a dictionary, are copied, grown and published whole,
+	 * so readers never see them mid-growth; a dictionary backed map is
+	 * appended to in place (see CompactDictionary).
+	 * Looking the new objects up by name is only reliable once this
+	 * returns.
+	 */
+	public synchronized int[] add_objects(List<String> names, double[][] vectors) {
+		if (names.size() != vectors.length) {
+			throw new IllegalArgumentException("need one vector per object name");
+		}
+		HashSet<String> seen = new HashSet<String>();
+		for (String name : names) {
+			if (object2index.containsKey(name) || !seen.add(name)) {
+				throw new IllegalArgumentException("Object \"" + name + "\" is already in the model.");
+			}
+		}
+		
+		int first_row = object_vectors.number_of_rows();
+		EmbeddingStore grown = object_vectors.append_rows(vectors);
+		
+		int[] indices = new int[names.size()];
+		for (int i = 0; i < indices.length; ++i) {
+			indices[i] = first_row + i;
+		}
+		append_names(names, first_row);
+		if (projection_tables != null) {
+			projection_tables.append_objects(this, grown, first_row);
+		}
+		if (object_index != null) {
+			object_index.append(grown, first_row);
+		}
+		if (grown instanceof MatrixEmbeddingStore) {
+			this.object_matrix      = ((MatrixEmbeddingStore) grown).matrix;
+			this.norm_object_matrix = ((MatrixEmbeddingStore) grown).normalized;
+		} else if (grown instanceof NormalizedEmbeddingStore) {
+			this.norm_object_matrix = ((NormalizedEmbeddingStore) grown).normalized;
+		}
+		// publish the rows last:
+		this.object_vectors = grown;
+		return indices;
+	}
+	
+	/*
+	 * Append the names of the objects from `first_row` onwards to
+	 * index2object and object2index without disturbing concurrent
+	 * look-ups.
+	 */
+	private void append_names(List<String> names, int first_row) {
+		ArrayList<String> grown_names = new ArrayList<String>(index2object.size() + names.size());
+		grown_names.addAll(index2object);
+		grown_names.addAll(names);
+		this.index2object = grown_names;
+
+		CompactDictionary map_dictionary = CompactDictionary.backing(object2index);
+		if (map_dictionary != null && map_dictionary.size() == first_row) {
+			for (String name : names) {
+				map_dictionary.append(name);
+			}
+		} else {
+			Map<String, Integer> grown = new HashMap<String, Integer>(object2index);
+			for (int i = 0; i < names.size(); ++i) {
+				grown.put(names.get(i), first_row + i);
+			}
+			this.object2index = grown;
+		}
 	}
 	
 	public int number_of_objects () {
-		return this.norm_object_matrix.numRows();
+		return this.object_vectors.number_of_rows();
 	}
 	
 	public static void main( String[] args) throws Exception {
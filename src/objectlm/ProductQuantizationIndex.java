@@ -0,0 +1,200 @@
+package objectlm;
+
+import java.util.Random;
+
+import objectlm.utils.KMeans;
+import objectlm.utils.TopK;
+
+/**
+ * Product quantization index over the normalized rows of an EmbeddingStore.
+ *
+ * The dimensions are split into `subspaces` contiguous groups and a codebook
+ * of up to 256 centroids is trained with k-means on each group. Every row is
+ * then stored as one byte per subspace: the id of its nearest centroid.
+ *
+ * A query builds one look-up table per subspace holding the dot product of
+ * its slice with every centroid (asymmetric distance: the query itself is not
+ * quantized), so scoring a row is `subspaces` table reads and additions. The
+ * best `rerank_factor * topn` rows are then rescored exactly from the store
+ * (a rerank_factor of 0 returns the approximate scores).
+ *
+ * The codes and the store are published together as one immutable
+ * Snapshot, so searches can run while rows are appended.
+ */
+public class ProductQuantizationIndex implements SimilarityIndex {
+
+	public static final int CENTROIDS = 256;
+	public static final int DEFAULT_TRAINING_ROWS = 65536;
+	public static final int DEFAULT_ITERATIONS = 25;
+
+	private final int dimension;
+	private final int subspaces;
+	private final int rerank_factor;
+
+	// subspace s covers dimensions boundaries[s] to boundaries[s+1]:
+	private final int[] boundaries;
+	// centroids of subspace s, back to back:
+	private final double[][] codebooks;
+	private final int[] codebook_sizes;
+
+	/*
+	 * The codes of the first `rows` rows of `store`.
+	 */
+	private static final class Snapshot {
+		final EmbeddingStore store;
+		final byte[] codes;
+		final int rows;
+
+		Snapshot(EmbeddingStore store, byte[] codes, int rows) {
+			this.store = store;
+			this.codes = codes;
+			this.rows = rows;
+		}
+	}
+
+	private volatile Snapshot snapshot;
+
+	public ProductQuantizationIndex(EmbeddingStore store, int subspaces, int rerank_factor, int training_rows, int iterations, long seed) {
+		this(store, subspaces, rerank_factor, training_rows, iterations, seed, 1);
+	}
+
+	/*
+	 * Same, training the codebooks on `threads` threads.
+	 */
+	public ProductQuantizationIndex(EmbeddingStore store, int subspaces, int rerank_factor, int training_rows, int iterations, long seed, int threads) {
+		this.dimension = store.dimension();
+		this.subspaces = Math.max(1, Math.min(subspaces, dimension));
+		this.rerank_factor = rerank_factor;
+
+		this.boundaries = new int[this.subspaces + 1];
+		for (int s = 0; s <= this.subspaces; ++s) {
+			boundaries[s] = (s * dimension) / this.subspaces;
+		}
+
+		this.codebooks = new double[this.subspaces][];
+		this.codebook_sizes = new int[this.subspaces];
+		train(store, training_rows, iterations, new Random(seed), threads);
+
+		this.snapshot = new Snapshot(store, new byte[0], 0);
+		append(store, 0);
+	}
+
+	public ProductQuantizationIndex(EmbeddingStore store, int subspaces) {
+		this(store, subspaces, QuantizedIndex.DEFAULT_RERANK_FACTOR, DEFAULT_TRAINING_ROWS, DEFAULT_ITERATIONS, 1234,
+				Runtime.getRuntime().availableProcessors());
+	}
+
+	/*
+	 * Train each subspace's codebook on a random sample of rows.
+	 */
+	private void train(EmbeddingStore store, int training_rows, int iterations, Random random, int threads) {
+		int total = store.number_of_rows();
+		int n = Math.min(total, training_rows);
+		if (n == 0) {
+			throw new IllegalArgumentException("Cannot train a product-quantization index without rows.");
+		}
+
+		int[] sampled = KMeans.sample_rows(total, n, random);
+		double[] sample = new double[n * dimension];
+		for (int i = 0; i < n; ++i) {
+			store.copy_normalized_row(sampled[i], sample, i * dimension);
+		}
+
+		for (int s = 0; s < subspaces; ++s) {
+			int d = boundaries[s + 1] - boundaries[s];
+			double[] points = new double[n * d];
+			for (int i = 0; i < n; ++i) {
+				System.arraycopy(sample, i * dimension + boundaries[s], points, i * d, d);
+			}
+			codebooks[s] = KMeans.fit(points, n, d, CENTROIDS, iterations, random, threads);
+			codebook_sizes[s] = codebooks[s].length / d;
+		}
+	}
+
+	public synchronized void append(EmbeddingStore store, int from_row) {
+		Snapshot current = snapshot;
+		int rows = current.rows;
+		int total = store.number_of_rows();
+		if (total <= rows) {
+			snapshot = new Snapshot(store, current.codes, rows);
+			return;
+		}
+		if (from_row != rows) {
+			throw new IllegalArgumentException("Rows must be appended in order (expected row " + rows + ").");
+		}
+		byte[] grown = new byte[total * subspaces];
+		System.arraycopy(current.codes, 0, grown, 0, rows * subspaces);
+
+		double[] row = new double[dimension];
+		for (int i = rows; i < total; ++i) {
+			store.copy_normalized_row(i, row, 0);
+			for (int s = 0; s < subspaces; ++s) {
+				int d = boundaries[s + 1] - boundaries[s];
+				grown[i * subspaces + s] = (byte) KMeans.nearest(row, boundaries[s], codebooks[s], codebook_sizes[s], d);
+			}
+		}
+		snapshot = new Snapshot(store, grown, total);
+	}
+
+	/*
+	 * Dot product of each query slice with each centroid of its subspace.
+	 */
+	private double[][] lookup_tables(double[] query) {
+		double[][] tables = new double[subspaces][];
+		for (int s = 0; s < subspaces; ++s) {
+			int d = boundaries[s + 1] - boundaries[s];
+			double[] table = new double[codebook_sizes[s]];
+			double[] codebook = codebooks[s];
+			for (int c = 0; c < table.length; ++c) {
+				double dot = 0.0;
+				for (int j = 0; j < d; ++j) {
+					dot += codebook[c * d + j] * query[boundaries[s] + j];
+				}
+				table[c] = dot;
+			}
+			tables[s] = table;
+		}
+		return tables;
+	}
+
+	public TopK search(double[] query, int topn, int exclude) {
+		Snapshot searched = snapshot;
+		byte[] codes = searched.codes;
+		int rows = searched.rows;
+		double[][] tables = lookup_tables(query);
+		int pool = rerank_factor > 0 ? topn * rerank_factor : topn;
+		TopK candidates = new TopK(Math.min(rows, pool));
+		for (int i = 0; i < rows; ++i) {
+			if (i == exclude) {
+				continue;
+			}
+			double score = 0.0;
+			int offset = i * subspaces;
+			for (int s = 0; s < subspaces; ++s) {
+				score += tables[s][codes[offset + s] & 0xFF];
+			}
+			candidates.offer(score, i);
+		}
+		if (rerank_factor <= 0) {
+			return candidates.sort();
+		}
+		TopK best = new TopK(topn);
+		for (int k = 0; k < candidates.size(); ++k) {
+			int i = candidates.index(k);
+			best.offer(searched.store.normalized_dot(i, query), i);
+		}
+		return best.sort();
+	}
+
+	/*
+	 * One byte per subspace, plus the codebooks spread over the rows.
+	 */
+	public double bytes_per_vector() {
+		long codebook_bytes = 0;
+		for (double[] codebook : codebooks) {
+			codebook_bytes += 8L * codebook.length;
+		}
+		int rows = snapshot.rows;
+		return subspaces + (rows > 0 ? (double) codebook_bytes / rows : 0.0);
+	}
+}
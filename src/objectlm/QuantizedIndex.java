@@ -0,0 +1,119 @@
+package objectlm;
+
+import objectlm.utils.TopK;
+
+/**
+ * Scalar-quantized copy of the normalized rows of an EmbeddingStore.
+ *
+ * Each row is stored as one signed byte per dimension plus a per-row scale
+ * (the largest absolute value divided by 127), so a scan reads 8x less
+ * memory than the double precision matrix. The scan only selects a pool of
+ * `rerank_factor * topn` candidates, which are then rescored exactly from
+ * the full precision rows of the store.
+ *
+ * The codes, scales and store are published together as one immutable
+ * Snapshot, so searches can run while rows are appended.
+ */
+public class QuantizedIndex implements SimilarityIndex {
+
+	public static final int DEFAULT_RERANK_FACTOR = 10;
+
+	private final int dimension;
+	private final int rerank_factor;
+
+	/*
+	 * The codes and scales of the first `rows` rows of `store`.
+	 */
+	private static final class Snapshot {
+		final EmbeddingStore store;
+		final byte[] codes;
+		final float[] scales;
+		final int rows;
+
+		Snapshot(EmbeddingStore store, byte[] codes, float[] scales, int rows) {
+			this.store = store;
+			this.codes = codes;
+			this.scales = scales;
+			this.rows = rows;
+		}
+	}
+
+	private volatile Snapshot snapshot;
+
+	public QuantizedIndex(EmbeddingStore store, int rerank_factor) {
+		this.dimension = store.dimension();
+		this.rerank_factor = Math.max(1, rerank_factor);
+		this.snapshot = new Snapshot(store, new byte[0], new float[0], 0);
+		append(store, 0);
+	}
+
+	public QuantizedIndex(EmbeddingStore store) {
+		this(store, DEFAULT_RERANK_FACTOR);
+	}
+
+	public synchronized void append(EmbeddingStore store, int from_row) {
+		Snapshot current = snapshot;
+		int rows = current.rows;
+		int total = store.number_of_rows();
+		if (total <= rows) {
+			snapshot = new Snapshot(store, current.codes, current.scales, rows);
+			return;
+		}
+		if (from_row != rows) {
+			throw new IllegalArgumentException("Rows must be appended in order (expected row " + rows + ").");
+		}
+		byte[] grown_codes = new byte[total * dimension];
+		float[] grown_scales = new float[total];
+		System.arraycopy(current.codes, 0, grown_codes, 0, rows * dimension);
+		System.arraycopy(current.scales, 0, grown_scales, 0, rows);
+
+		double[] row = new double[dimension];
+		for (int i = rows; i < total; ++i) {
+			store.copy_normalized_row(i, row, 0);
+			double max = 0.0;
+			for (int j = 0; j < dimension; ++j) {
+				max = Math.max(max, Math.abs(row[j]));
+			}
+			double scale = max > 0.0 ? max / 127.0 : 1.0;
+			int offset = i * dimension;
+			for (int j = 0; j < dimension; ++j) {
+				grown_codes[offset + j] = (byte) Math.round(row[j] / scale);
+			}
+			grown_scales[i] = (float) scale;
+		}
+		snapshot = new Snapshot(store, grown_codes, grown_scales, total);
+	}
+
+	/*
+	 * Approximate dot product between the normalized row and the query.
+	 */
+	private double approximate_dot(Snapshot searched, int row, double[] query) {
+		byte[] codes = searched.codes;
+		int offset = row * dimension;
+		double dot = 0.0;
+		for (int j = 0; j < dimension; ++j) {
+			dot += codes[offset + j] * query[j];
+		}
+		return dot * searched.scales[row];
+	}
+
+	public TopK search(double[] query, int topn, int exclude) {
+		Snapshot searched = snapshot;
+		TopK candidates = new TopK(Math.min(searched.rows, topn * rerank_factor));
+		for (int i = 0; i < searched.rows; ++i) {
+			if (i != exclude) {
+				candidates.offer(approximate_dot(searched, i, query), i);
+			}
+		}
+		TopK best = new TopK(topn);
+		for (int k = 0; k < candidates.size(); ++k) {
+			int i = candidates.index(k);
+			best.offer(searched.store.normalized_dot(i, query), i);
+		}
+		return best.sort();
+	}
+
+	public double bytes_per_vector() {
+		return dimension + 4.0;
+	}
+}
@@ -0,0 +1,310 @@
+package objectlm;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import numpy_to_ejml.MatrixImporter;
+import objectlm.utils.Tuple;
+import objectlm.utils.VectorUtils;
+
+import org.ejml.simple.SimpleMatrix;
+
+/**
+ * Loads a model saved by the Python implementation. The four artifacts of a
+ * save directory (`parameters.mat`, `__dict__.txt`, `__vocab__.gz` and
+ * `__objects__.gz`) do not depend on each other, so they are read and decoded
+ * concurrently, and the word and object matrices are then normalized in
+ * parallel. Start up time thus comes down to roughly the slowest artifact.
+ *
+ * When the directory also holds the normalized matrices written once by
+ * {@link #save_normalized_matrices} they are read back instead of being
+ * recomputed on every start. They are only reused when they were computed
+ * from the `parameters.mat` in place (same size, modification time and
+ * matrix shapes); otherwise, or when they cannot be read, a warning is
+ * printed and the matrices are normalized as if they were absent.
+ *
+ * Each stage is timed (in milliseconds) and the timings are returned along
+ * with the model.
+ */
+public class SavedModelLoader {
+
+	public static final String NORMALIZED_FILE = "__normalized__.bin";
+
+	private static final int NUMBER_OF_ARTIFACTS = 4;
+
+	private static long elapsed_ms(long start) {
+		return (System.nanoTime() - start) / 1000000;
+	}
+
+	/*
+	 * Wait for a task and rethrow the exception it failed with.
+	 */
+	static <T> T await(Future<T> future) throws Exception {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	/*
+	 * Reads the matrices of `parameters.mat`: MatrixImporter, unless
+	 * a test stands in for it.
+	 */
+	interface MatrixReader {
+		Map<String, SimpleMatrix> read(String filename) throws Exception;
+	}
+
+	static final MatrixReader MATLAB_READER = new MatrixReader() {
+		public Map<String, SimpleMatrix> read(String filename) throws Exception {
+			return MatrixImporter.load_matrix(filename);
+		}
+	};
+
+	public static Tuple<ObjectLM, Map<String, Long>> load(String pathname) throws Exception {
+		return load(pathname, MATLAB_READER);
+	}
+
+	static Tuple<ObjectLM, Map<String, Long>> load(String pathname, final MatrixReader matrix_reader) throws Exception {
+		// add folder slash if pathname doesn't have one:
+		if (!pathname.endsWith("/")) {
+			pathname = pathname + "/";
+		}
+		final String path = pathname;
+
+		File f = new File(path);
+		if (!f.isDirectory()) throw new Exception("Path should point to directory of saved parameters.");
+
+		SavedParameterReader.check_file_existence(path, "parameters.mat");
+		SavedParameterReader.check_file_existence(path, "__dict__.txt");
+		SavedParameterReader.check_file_existence(path, "__vocab__.gz");
+		SavedParameterReader.check_file_existence(path, "__objects__.gz");
+
+		final Map<String, Long> timings = Collections.synchronizedMap(new LinkedHashMap<String, Long>());
+		long start = System.nanoTime();
+
+		ExecutorService pool = Executors.newFixedThreadPool(NUMBER_OF_ARTIFACTS);
+		try {
+			// load the parameter matrices:
+			Future<Map<String, SimpleMatrix>> matrices = pool.submit(new Callable<Map<String, SimpleMatrix>>() {
+				public Map<String, SimpleMatrix> call() throws Exception {
+					long start = System.nanoTime();
+					Map<String, SimpleMatrix> m = matrix_reader.read(path + "parameters.mat");
+					timings.put("parameters.mat", elapsed_ms(start));
+					return m;
+				}
+			});
+			// load the model parameters:
+			Future<Map<String, String>> parameters = pool.submit(new Callable<Map<String, String>>() {
+				public Map<String, String> call() throws Exception {
+					long start = System.nanoTime();
+					Map<String, String> params = SavedParameterReader.convert_file_to_map(path + "__dict__.txt");
+					timings.put("__dict__.txt", elapsed_ms(start));
+					return params;
+				}
+			});
+			// load the vocabulary mappings:
+			Future<SavedVocabulary> vocabulary = pool.submit(vocabulary_task(path, "__vocab__.gz", timings));
+			Future<SavedVocabulary> object_vocabulary = pool.submit(vocabulary_task(path, "__objects__.gz", timings));
+
+			final Map<String, SimpleMatrix> m = await(matrices);
+
+			Future<SimpleMatrix> norm_model_matrix, norm_object_matrix;
+			String stale = new File(path + NORMALIZED_FILE).exists() ? stale_normalized_matrices(path, m) : "";
+			if (stale == null) {
+				// reuse the matrices normalized offline:
+				norm_model_matrix = pool.submit(normalized_read_task(path, "norm_model_matrix", m.get("model_matrix"), timings));
+				norm_object_matrix = pool.submit(normalized_read_task(path, "norm_object_matrix", m.get("object_matrix"), timings));
+			} else {
+				if (stale.length() > 0) {
+					warn_normalized_ignored(path, stale);
+				}
+				// normalize words and objects side by side while
+				// the vocabularies finish loading:
+				norm_model_matrix = pool.submit(normalization_task(m.get("model_matrix"), "normalize model_matrix", timings));
+				norm_object_matrix = pool.submit(normalization_task(m.get("object_matrix"), "normalize object_matrix", timings));
+			}
+
+			Map<String, String> params = await(parameters);
+			SavedVocabulary vocab = await(vocabulary);
+			SavedVocabulary objects = await(object_vocabulary);
+
+			ArrayList<Integer> output_classes = SavedParameterReader.convert_string_to_output_classes(params.get("output_classes"));
+
+			ObjectLM model = new ObjectLM(
+					m.get("projection_matrix"),
+					m.get("bias_vector"),
+					m.get("model_matrix"),
+					await(norm_model_matrix),
+					new MatrixEmbeddingStore(m.get("object_matrix"), await(norm_object_matrix)),
+					vocab.index2word,
+					vocab.word2index,
+					Integer.parseInt(params.get("UnknownWordIndex")),
+					Integer.parseInt(params.get("UnknownUppercaseWordIndex")),
+					objects.index2word,
+					objects.word2index,
+					Integer.parseInt(params.get("window")),
+					Integer.parseInt(params.get("size")),
+					Integer.parseInt(params.get("object_size")),
+					output_classes,
+					SavedParameterReader.convert_map_to_output_labels(params, output_classes.size()),
+					Integer.parseInt(params.get("output_sigmoid_classes")),
+					SavedParameterReader.convert_string_to_list(params.get("sigmoid_labels")));
+
+			timings.put("total", elapsed_ms(start));
+			return new Tuple<ObjectLM, Map<String, Long>>(model, timings);
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private static Callable<SavedVocabulary> vocabulary_task(final String path, final String file, final Map<String, Long> timings) {
+		return new Callable<SavedVocabulary>() {
+			public SavedVocabulary call() throws Exception {
+				long start = System.nanoTime();
+				SavedVocabulary vocab = SavedParameterReader.load_vocabulary(path + file);
+				timings.put(file, elapsed_ms(start));
+				return vocab;
+			}
+		};
+	}
+
+	/*
+	 * What identifies the `parameters.mat` the normalized matrices were
+	 * computed from: its size, its modification time and the shapes of
+	 * the word and object matrices.
+	 */
+	private static int[] source_signature(File parameters, SimpleMatrix model_matrix, SimpleMatrix object_matrix) {
+		long length = parameters.length(), modified = parameters.lastModified();
+		return new int[] {
+				(int) (length >>> 32), (int) length,
+				(int) (modified >>> 32), (int) modified,
+				model_matrix.numRows(), model_matrix.numCols(),
+				object_matrix.numRows(), object_matrix.numCols()};
+	}
+
+	/*
+	 * Why the normalized matrices of a save directory cannot be used
+	 * with the matrices `m` of its parameters.mat, or null if they can.
+	 */
+	static String stale_normalized_matrices(String path, Map<String, SimpleMatrix> m) {
+		SimpleMatrix model_matrix = m.get("model_matrix"), object_matrix = m.get("object_matrix");
+		ModelSnapshot normalized = null;
+		try {
+			normalized = new ModelSnapshot(path + NORMALIZED_FILE);
+			if (!normalized.has("source") || !normalized.has("norm_model_matrix") || !normalized.has("norm_object_matrix")) {
+				return "it was written by an older version";
+			}
+			if (!Arrays.equals(normalized.read_ints("source"), source_signature(new File(path + "parameters.mat"), model_matrix, object_matrix))) {
+				return "it was computed from another parameters.mat";
+			}
+			if (!Arrays.equals(normalized.shape("norm_model_matrix"), new int[] {model_matrix.numRows(), model_matrix.numCols()})
+					|| !Arrays.equals(normalized.shape("norm_object_matrix"), new int[] {object_matrix.numRows(), object_matrix.numCols()})) {
+				return "its matrices do not have the shapes of parameters.mat";
+			}
+			return null;
+		} catch (Exception e) {
+			return "it cannot be read (" + e.getMessage() + ")";
+		} finally {
+			if (normalized != null) {
+				try {
+					normalized.close();
+				} catch (IOException e) {
+					// only read from.
+				}
+			}
+		}
+	}
+
+	private static void warn_normalized_ignored(String path, String reason) {
+		System.err.println("Ignoring " + path + NORMALIZED_FILE + ": " + reason + ". Normalizing instead; run save_normalized_matrices again to reuse them.");
+	}
+
+	/*
+	 * Read back a normalized matrix, or normalize `matrix` if the
+	 * file turns out to be unreadable.
+	 */
+	static Callable<SimpleMatrix> normalized_read_task(final String path, final String name, final SimpleMatrix matrix, final Map<String, Long> timings) {
+		return new Callable<SimpleMatrix>() {
+			public SimpleMatrix call() throws Exception {
+				long start = System.nanoTime();
+				SimpleMatrix read;
+				try {
+					ModelSnapshot normalized = new ModelSnapshot(path + NORMALIZED_FILE);
+					try {
+						read = normalized.read_matrix(name);
+					} finally {
+						normalized.close();
+					}
+				} catch (Exception e) {
+					warn_normalized_ignored(path, "it cannot be read (" + e.getMessage() + ")");
+					return normalization_task(matrix, "normalize " + name.substring("norm_".length()), timings).call();
+				}
+				timings.put("read " + name, elapsed_ms(start));
+				return read;
+			}
+		};
+	}
+
+	private static Callable<SimpleMatrix> normalization_task(final SimpleMatrix matrix, final String stage, final Map<String, Long> timings) {
+		return new Callable<SimpleMatrix>() {
+			public SimpleMatrix call() throws Exception {
+				long start = System.nanoTime();
+				SimpleMatrix normalized = VectorUtils.normalize_rows(matrix);
+				timings.put(stage, elapsed_ms(start));
+				return normalized;
+			}
+		};
+	}
+
+	/*
+	 * One-time offline step: store the normalized word and object matrices
+	 * of a model in its save directory so later loads can skip
+	 * normalization. They are tied to the `parameters.mat` found there
+	 * now: once it is replaced, loads normalize again.
+	 */
+	public static void save_normalized_matrices(ObjectLM model, String pathname) throws Exception {
+		if (!pathname.endsWith("/")) {
+			pathname = pathname + "/";
+		}
+		if (model.norm_object_matrix == null) {
+			throw new Exception("The object vectors are not held in memory.");
+		}
+		SnapshotWriter writer = new SnapshotWriter(pathname + NORMALIZED_FILE);
+		try {
+			writer.add_ints("source", source_signature(new File(pathname + "parameters.mat"), model.norm_model_matrix, model.norm_object_matrix));
+			writer.add_matrix("norm_model_matrix", model.norm_model_matrix);
+			writer.add_matrix("norm_object_matrix", model.norm_object_matrix);
+			writer.close();
+		} finally {
+			writer.abort();
+		}
+	}
+
+	/*
+	 * Normalize the matrices of a save directory once and write them next
+	 * to its parameters:
+	 *
+	 *     java objectlm.SavedModelLoader saves/objectlm_window_10_lm_20_objlm_20_4/
+	 */
+	public static void main(String[] args) throws Exception {
+		for (String pathname : args) {
+			Tuple<ObjectLM, Map<String, Long>> loaded = load(pathname);
+			save_normalized_matrices(loaded.x, pathname);
+			System.out.println("wrote " + NORMALIZED_FILE + " for " + pathname + " " + loaded.y);
+		}
+	}
+}
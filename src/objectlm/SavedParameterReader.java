@@ -12,6 +12,8 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 
+import objectlm.utils.CompactDictionary;
+
 public class SavedParameterReader {
 	
 	public static InputStream getFileInputStream(String filename) throws IOException {
@@ -122,8 +124,27 @@ public class SavedParameterReader {
 		return list;
 	}
 	
+	/*
+	 * Read one word per line straight into a CompactDictionary
+	 * without keeping an intermediate list of Strings.
+	 */
+	public static CompactDictionary load_dictionary(String filename) throws IOException {
+		InputStream in = getFileInputStream(filename);
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+		
+		CompactDictionary dictionary = new CompactDictionary();
+		try {
+			for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+				dictionary.append(line);
+			}
+		} finally {
+			reader.close();
+		}
+		return dictionary;
+	}
+	
 	public static SavedVocabulary load_vocabulary(String filename) throws IOException {
-		return new SavedVocabulary(load_list_file(filename));
+		return new SavedVocabulary(load_dictionary(filename));
 	}
 	
 	public static void main(String[] args) throws IOException {
@@ -1,15 +1,18 @@
 package objectlm;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Map;
 
+import objectlm.utils.CompactDictionary;
+
 public class SavedVocabulary {
 	public ArrayList<String> index2word;
+	// read only view of the dictionary (put throws):
 	public Map<String, Integer> word2index;
-	
+	public CompactDictionary dictionary;
+
 	/*
-	 * Create a hashmap from an arraylist and
+	 * Create a dictionary from an arraylist and
 	 * thus form a mapping from words to indices, and
 	 * vice-versa.
 	 */
@@ -17,17 +20,23 @@ public class SavedVocabulary {
 		this.index2word = words;
 		this.create_word2index();
 	}
-	
+
+	/*
+	 * Expose an already filled dictionary through
+	 * word2index, and its words through index2word.
+	 */
+	public SavedVocabulary(CompactDictionary dictionary) {
+		this.index2word = new ArrayList<String>(dictionary.as_list());
+		this.dictionary = dictionary;
+		this.word2index = dictionary.as_map();
+	}
+
 	/*
-	 * Creates the HashMap for the word2index using
+	 * Creates the dictionary behind word2index using
 	 * the index2word ArrayList.
 	 */
 	public void create_word2index() {
-		this.word2index = new HashMap<String, Integer>();
-		int index = 0;
-		for (String word : this.index2word) {
-			word2index.put(word, index);
-			index += 1;
-		}
+		this.dictionary = new CompactDictionary(index2word);
+		this.word2index = dictionary.as_map();
 	}
 }
@@ -0,0 +1,27 @@
+package objectlm;
+
+import objectlm.utils.TopK;
+
+/**
+ * Nearest neighbor search over the normalized rows of an EmbeddingStore,
+ * used by ObjectLM in place of a brute-force scan when one is set.
+ */
+public interface SimilarityIndex {
+
+	/*
+	 * Rows whose normalized vector has the highest dot product with
+	 * `query`, best first, skipping the row `exclude` (-1 keeps every row).
+	 */
+	public TopK search(double[] query, int topn, int exclude);
+
+	/*
+	 * Index the rows of `store` from `from_row` onwards, added
+	 * after the index was built.
+	 */
+	public void append(EmbeddingStore store, int from_row);
+
+	/*
+	 * Memory used by the index for each vector it holds, in bytes.
+	 */
+	public double bytes_per_vector();
+}
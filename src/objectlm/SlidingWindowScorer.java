@@ -0,0 +1,257 @@
+package objectlm;
+
+import java.util.Arrays;
+import java.util.List;
+
+import objectlm.utils.VectorKernels;
+
+/**
+ * Scores every window of a token sequence in a single pass.
+ *
+ * Each token pushed is projected once for every window position it will
+ * occupy and the results are kept in a ring buffer of `window` slots, so
+ * as the token shifts through the window its contributions are reused
+ * instead of being multiplied again. Scoring a window is then the object's
+ * cached contribution (bias included) plus one contribution per position.
+ *
+ * When the model has projection tables (ObjectLM.use_projection_tables)
+ * the per-token contributions are rows of those tables and pushing a token
+ * costs no multiply at all: `window` additions of `prediction_size`.
+ *
+ * Without tables, projecting a token costs `window * size *
+ * prediction_size` multiply-adds, as much as projecting a whole window,
+ * so the projections are also memoized by word in a small direct-mapped
+ * cache kept across documents. A token seen recently (frequent words
+ * mostly) then costs one copy and `window` additions of
+ * `prediction_size`; only the other tokens pay for the projection.
+ *
+ * A scorer is not thread safe; use one per thread.
+ */
+public class SlidingWindowScorer {
+
+	/*
+	 * Receives the probabilities of each window as it is scored. The array
+	 * is reused for the next window and must be copied to be kept.
+	 */
+	public static interface Listener {
+		public void window_scored(int start, double[] probabilities);
+	}
+
+	private final ObjectLM model;
+	private final TabulatedProjection tables;
+	private final int window;
+	private final int size;
+	private final int prediction_size;
+
+	private final double[] object_contribution;
+	// without tables, slot s holds the contribution of its token at every
+	// position (prediction_size values per position):
+	private final double[][] contributions;
+	// with tables, slot s holds its token:
+	private final int[] tokens;
+	private final double[] word_vector;
+	private final double[] object_vector;
+
+	// without tables, the contributions of recently pushed words: slot m
+	// holds those of memo_words[m] (-1 when empty), allocated on first use:
+	private static final int MEMO_SLOTS = 256;
+	private final int[] memo_words;
+	private final double[][] memo;
+	private long memo_hits;
+
+	private final double[] probabilities;
+	private final double[] sums;
+	private int pushed;
+	private int scored;
+
+	public SlidingWindowScorer(ObjectLM model, int object_index) {
+		this.model = model;
+		this.tables = model.projection_tables;
+		this.window = model.window;
+		this.size = model.size;
+		this.prediction_size = model.prediction_size;
+
+		this.object_contribution = new double[prediction_size];
+		if (tables != null) {
+			this.contributions = null;
+			this.tokens = new int[window];
+			this.word_vector = null;
+			this.object_vector = null;
+			this.memo_words = null;
+			this.memo = null;
+		} else {
+			this.contributions = new double[window][window * prediction_size];
+			this.tokens = null;
+			this.word_vector = new double[size];
+			this.object_vector = new double[model.object_size];
+			this.memo_words = new int[MEMO_SLOTS];
+			Arrays.fill(memo_words, -1);
+			this.memo = new double[MEMO_SLOTS][];
+		}
+
+		this.probabilities = new double[prediction_size];
+		this.sums = new double[prediction_size];
+		reset(object_index);
+	}
+
+	/*
+	 * Multiply `vector` by the columns of the projection matrix
+	 * starting at `column`, writing the result into `out` at `offset`.
+	 */
+	private void project(double[] vector, int column, double[] out, int offset) {
+		VectorKernels.gemv(model.projection_matrix.getMatrix().data, prediction_size, model.projection_matrix.numCols(),
+				column, vector.length, vector, 0, null, out, offset);
+	}
+
+	/*
+	 * Feed the next token. Returns true when it completes a window, whose
+	 * probabilities are then available from probabilities().
+	 */
+	public boolean push(int word_index) {
+		int slot = pushed % window;
+		if (tables != null) {
+			tokens[slot] = word_index;
+		} else {
+			int m = word_index & (MEMO_SLOTS - 1);
+			if (memo_words[m] == word_index) {
+				System.arraycopy(memo[m], 0, contributions[slot], 0, window * prediction_size);
+				memo_hits += 1;
+			} else {
+				model.word_vectors.copy_row(word_index, word_vector, 0);
+				for (int p = 0; p < window; ++p) {
+					project(word_vector, p * size, contributions[slot], p * prediction_size);
+				}
+				if (memo[m] == null) {
+					memo[m] = new double[window * prediction_size];
+				}
+				System.arraycopy(contributions[slot], 0, memo[m], 0, window * prediction_size);
+				memo_words[m] = word_index;
+			}
+		}
+		pushed += 1;
+		if (pushed < window) {
+			return false;
+		}
+
+		// the window starts at token pushed - window, which sits in the
+		// slot after the newest one:
+		System.arraycopy(object_contribution, 0, probabilities, 0, prediction_size);
+		int start = pushed - window;
+		for (int p = 0; p < window; ++p) {
+			int position_slot = (start + p) % window;
+			double[] row;
+			int offset;
+			if (tables != null) {
+				row = tables.word_tables[p];
+				offset = tokens[position_slot] * prediction_size;
+			} else {
+				row = contributions[position_slot];
+				offset = p * prediction_size;
+			}
+			for (int k = 0; k < prediction_size; ++k) {
+				probabilities[k] += row[offset + k];
+			}
+		}
+		model.normalize_predictions(probabilities, 0);
+		for (int k = 0; k < prediction_size; ++k) {
+			sums[k] += probabilities[k];
+		}
+		scored += 1;
+		return true;
+	}
+
+	/*
+	 * Probabilities of the last window scored (reused by the next push).
+	 */
+	public double[] probabilities() {
+		return probabilities;
+	}
+
+	/*
+	 * Mean of the probabilities of every window scored so far.
+	 */
+	public double[] mean_probabilities() {
+		double[] mean = new double[prediction_size];
+		mean_probabilities(mean, 0);
+		return mean;
+	}
+
+	/*
+	 * Same, written into `out` starting at `offset`.
+	 */
+	public void mean_probabilities(double[] out, int offset) {
+		for (int k = 0; k < prediction_size; ++k) {
+			out[offset + k] = scored > 0 ? sums[k] / scored : 0.0;
+		}
+	}
+
+	/*
+	 * Position in the sequence of the first token of the last window scored.
+	 */
+	public int window_start() {
+		return pushed - window;
+	}
+
+	/*
+	 * Tokens whose projection was found in the memo (always 0
+	 * with projection tables).
+	 */
+	public long memo_hits() {
+		return memo_hits;
+	}
+
+	public int windows_scored() {
+		return scored;
+	}
+
+	/*
+	 * Forget the tokens and aggregate to start a new sequence
+	 * about the same object.
+	 */
+	public void reset() {
+		pushed = 0;
+		scored = 0;
+		for (int k = 0; k < prediction_size; ++k) {
+			sums[k] = 0.0;
+		}
+	}
+
+	/*
+	 * False once the model's projection tables were built or dropped
+	 * after this scorer was made (it should then be replaced).
+	 */
+	boolean uses_current_tables() {
+		return tables == model.projection_tables;
+	}
+
+	/*
+	 * Start a new sequence about another object, reusing the buffers.
+	 */
+	public void reset(int object_index) {
+		reset();
+		if (tables != null) {
+			System.arraycopy(tables.object_table, object_index * prediction_size, object_contribution, 0, prediction_size);
+		} else if (model.object_contributions != null) {
+			System.arraycopy(model.object_contributions.get(object_index), 0, object_contribution, 0, prediction_size);
+		} else {
+			model.object_vectors.copy_row(object_index, object_vector, 0);
+			VectorKernels.gemv(model.projection_matrix.getMatrix().data, prediction_size, model.projection_matrix.numCols(),
+					window * size, object_vector.length, object_vector, 0, model.bias_vector.getMatrix().data, object_contribution, 0);
+		}
+	}
+
+
+	/*
+	 * Score every window of `indices` about one object, reporting each
+	 * window to `listener` (may be null), and return the mean probabilities.
+	 */
+	public static double[] score(ObjectLM model, List<Integer> indices, int object_index, Listener listener) {
+		SlidingWindowScorer scorer = new SlidingWindowScorer(model, object_index);
+		for (int i : indices) {
+			if (scorer.push(i) && listener != null) {
+				listener.window_scored(scorer.window_start(), scorer.probabilities);
+			}
+		}
+		return scorer.mean_probabilities();
+	}
+}
@@ -0,0 +1,240 @@
+package objectlm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+import objectlm.utils.CompactDictionary;
+
+import org.ejml.simple.SimpleMatrix;
+
+/**
+ * Writes the named entries of a snapshot file in the layout described
+ * in {@link ModelSnapshot}. Entries are appended in the order they are
+ * added and the entry count in the header is filled in on close.
+ *
+ * The entries go to a temporary file next to the target, which close()
+ * renames over it: a model still mapped from the previous file keeps its
+ * pages, and a failed write (call abort(), for instance from a finally
+ * block after close) never leaves a truncated snapshot behind.
+ */
+public class SnapshotWriter {
+
+	private static final int STAGING_SIZE = 1 << 20;
+
+	private final File target;
+	private final File temporary;
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final ByteBuffer staging;
+	private int number_of_entries;
+	private boolean finished;
+
+	public SnapshotWriter(String pathname) throws IOException {
+		this.target = new File(pathname).getAbsoluteFile();
+		this.temporary = File.createTempFile(target.getName() + ".", ".tmp", target.getParentFile());
+		this.file = new RandomAccessFile(temporary, "rw");
+		this.channel = file.getChannel();
+		this.staging = ByteBuffer.allocate(STAGING_SIZE).order(ModelSnapshot.ORDER);
+		this.number_of_entries = 0;
+
+		staging.putLong(ModelSnapshot.MAGIC);
+		staging.putInt(ModelSnapshot.VERSION);
+		staging.putInt(0);
+	}
+
+	private void flush() throws IOException {
+		staging.flip();
+		while (staging.hasRemaining()) {
+			channel.write(staging);
+		}
+		staging.clear();
+	}
+
+	private void ensure(int bytes) throws IOException {
+		if (staging.remaining() < bytes) {
+			flush();
+		}
+	}
+
+	private void pad(long length) throws IOException {
+		long padding = ModelSnapshot.align(length) - length;
+		ensure((int) padding);
+		for (long i = 0; i < padding; ++i) {
+			staging.put((byte) 0);
+		}
+	}
+
+	private void put_bytes(byte[] bytes) throws IOException {
+		put_bytes(bytes, 0, bytes.length);
+	}
+
+	private void put_bytes(byte[] bytes, int from, int to) throws IOException {
+		int offset = from;
+		while (offset < to) {
+			ensure(1);
+			int chunk = Math.min(staging.remaining(), to - offset);
+			staging.put(bytes, offset, chunk);
+			offset += chunk;
+		}
+	}
+
+	private void begin_entry(int type, String name, long payload_length) throws IOException {
+		byte[] name_bytes = name.getBytes(ModelSnapshot.UTF8);
+		ensure(8);
+		staging.putInt(type);
+		staging.putInt(name_bytes.length);
+		put_bytes(name_bytes);
+		pad(name_bytes.length);
+		ensure(8);
+		staging.putLong(payload_length);
+	}
+
+	/*
+	 * Add `data` as a rows x cols row-major matrix.
+	 */
+	public void add_doubles(String name, int rows, int cols, double[] data) throws IOException {
+		int count = rows * cols;
+		begin_entry(ModelSnapshot.DOUBLES, name, 8 + count * 8L);
+		ensure(8);
+		staging.putInt(rows);
+		staging.putInt(cols);
+
+		int offset = 0;
+		while (offset < count) {
+			ensure(8);
+			DoubleBuffer view = staging.asDoubleBuffer();
+			int chunk = Math.min(view.remaining(), count - offset);
+			view.put(data, offset, chunk);
+			staging.position(staging.position() + chunk * 8);
+			offset += chunk;
+		}
+		number_of_entries += 1;
+	}
+
+	public void add_matrix(String name, SimpleMatrix matrix) throws IOException {
+		add_doubles(name, matrix.numRows(), matrix.numCols(), matrix.getMatrix().data);
+	}
+
+	public void add_ints(String name, int[] values) throws IOException {
+		long payload_length = 8 + values.length * 4L;
+		begin_entry(ModelSnapshot.INTS, name, payload_length);
+		ensure(8);
+		staging.putInt(values.length);
+		staging.putInt(0);
+		for (int value : values) {
+			ensure(4);
+			staging.putInt(value);
+		}
+		pad(payload_length);
+		number_of_entries += 1;
+	}
+
+	/*
+	 * Lists backed by a CompactDictionary are written
+	 * from its utf-8 buffer without encoding each string.
+	 */
+	public void add_strings(String name, List<String> strings) throws IOException {
+		CompactDictionary dictionary = CompactDictionary.backing(strings);
+		if (dictionary != null) {
+			add_dictionary(name, dictionary);
+			return;
+		}
+		int count = strings.size();
+		byte[][] encoded = new byte[count][];
+		int[] offsets = new int[count + 1];
+		for (int i = 0; i < count; ++i) {
+			encoded[i] = strings.get(i).getBytes(ModelSnapshot.UTF8);
+			offsets[i+1] = offsets[i] + encoded[i].length;
+		}
+		long payload_length = 8 + offsets.length * 4L + offsets[count];
+		begin_entry(ModelSnapshot.STRINGS, name, payload_length);
+		ensure(8);
+		staging.putInt(count);
+		staging.putInt(offsets[count]);
+		for (int offset : offsets) {
+			ensure(4);
+			staging.putInt(offset);
+		}
+		for (byte[] bytes : encoded) {
+			put_bytes(bytes);
+		}
+		pad(payload_length);
+		number_of_entries += 1;
+	}
+
+	public void add_dictionary(String name, CompactDictionary dictionary) throws IOException {
+		int count = dictionary.size();
+		byte[] bytes = dictionary.utf8_bytes();
+		int[] offsets = dictionary.utf8_offsets();
+		int start = offsets[0], blob_length = offsets[count] - start;
+		long payload_length = 8 + (count + 1) * 4L + blob_length;
+		begin_entry(ModelSnapshot.STRINGS, name, payload_length);
+		ensure(8);
+		staging.putInt(count);
+		staging.putInt(blob_length);
+		for (int i = 0; i <= count; ++i) {
+			ensure(4);
+			staging.putInt(offsets[i] - start);
+		}
+		put_bytes(bytes, start, offsets[count]);
+		pad(payload_length);
+		number_of_entries += 1;
+	}
+
+	/*
+	 * Flush the remaining entries, record how many were written in the
+	 * header and move the file into place. On failure the temporary
+	 * file is deleted and the target left as it was.
+	 */
+	public void close() throws IOException {
+		if (finished) {
+			return;
+		}
+		finished = true;
+		boolean renamed = false;
+		try {
+			try {
+				flush();
+				ByteBuffer count = ByteBuffer.allocate(4).order(ModelSnapshot.ORDER);
+				count.putInt(number_of_entries);
+				count.flip();
+				channel.write(count, 12);
+				channel.force(true);
+			} finally {
+				file.close();
+			}
+			// renameTo replaces the target on POSIX systems; elsewhere
+			// the target has to be removed first:
+			renamed = temporary.renameTo(target) || (target.delete() && temporary.renameTo(target));
+			if (!renamed) {
+				throw new IOException("Could not move " + temporary + " to " + target + ".");
+			}
+		} finally {
+			if (!renamed) {
+				temporary.delete();
+			}
+		}
+	}
+
+	/*
+	 * Discard the entries written so far, leaving the target untouched.
+	 * Does nothing once close() has been called.
+	 */
+	public void abort() {
+		if (finished) {
+			return;
+		}
+		finished = true;
+		try {
+			file.close();
+		} catch (IOException e) {
+			// the file is deleted anyway.
+		}
+		temporary.delete();
+	}
+}
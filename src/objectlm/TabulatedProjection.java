@@ -0,0 +1,125 @@
+package objectlm;
+
+import org.ejml.data.DenseMatrix64F;
+import org.ejml.ops.CommonOps;
+
+/**
+ * Precomputed per-position projections of every word and object.
+ *
+ * The observation is the concatenation of `window` word vectors and one
+ * object vector, so `projection_matrix * observation + bias_vector` is the
+ * sum of one contribution per position. The contribution of every word at
+ * every position, and of every object (with the bias folded in), is
+ * tabulated once, after which an unnormalized prediction is `window + 1`
+ * table rows of length `prediction_size` added together.
+ *
+ * Tables use `(window * words + objects) * prediction_size` doubles.
+ */
+public class TabulatedProjection {
+
+	// rows of the stores projected per multiply while building the tables:
+	private static final int BLOCK_ROWS = 4096;
+
+	public final int window;
+	public final int prediction_size;
+
+	// word_tables[p] holds the contribution of word i at position p
+	// in row i (prediction_size values per row):
+	public final double[][] word_tables;
+	// contribution of each object plus the bias, a row per object
+	// (replaced by a longer table when objects are appended):
+	public volatile double[] object_table;
+
+	public TabulatedProjection(ObjectLM model) {
+		this.window = model.window;
+		this.prediction_size = model.prediction_size;
+
+		this.word_tables = new double[window][];
+		for (int p = 0; p < window; ++p) {
+			word_tables[p] = project_store(model, model.word_vectors, 0, p * model.size, null);
+		}
+		this.object_table = project_store(model, model.object_vectors, 0, window * model.size, model.bias_vector.getMatrix().data);
+	}
+
+	/*
+	 * Tabulate the rows of `objects` (the grown object store of the
+	 * model) from `from_row` onwards, added after the tables were built.
+	 */
+	public void append_objects(ObjectLM model, EmbeddingStore objects, int from_row) {
+		double[] added = project_store(model, objects, from_row, window * model.size, model.bias_vector.getMatrix().data);
+		double[] grown = new double[from_row * prediction_size + added.length];
+		System.arraycopy(object_table, 0, grown, 0, from_row * prediction_size);
+		System.arraycopy(added, 0, grown, from_row * prediction_size, added.length);
+		object_table = grown;
+	}
+
+	/*
+	 * Project the rows of `store` from `first_row` onwards through the
+	 * columns of the projection matrix starting at `column`, optionally
+	 * adding `bias` to each row.
+	 */
+	private static double[] project_store(ObjectLM model, EmbeddingStore store, int first_row, int column, double[] bias) {
+		int rows = store.number_of_rows() - first_row;
+		int dimension = store.dimension();
+		int prediction_size = model.prediction_size;
+		double[] table = new double[rows * prediction_size];
+
+		DenseMatrix64F weights = new DenseMatrix64F(prediction_size, dimension);
+		CommonOps.extract(model.projection_matrix.getMatrix(), 0, prediction_size, column, column + dimension, weights, 0, 0);
+
+		DenseMatrix64F block = new DenseMatrix64F(Math.min(rows, BLOCK_ROWS), dimension);
+		DenseMatrix64F projected = new DenseMatrix64F(Math.min(rows, BLOCK_ROWS), prediction_size);
+		for (int start = 0; start < rows; start += BLOCK_ROWS) {
+			int count = Math.min(BLOCK_ROWS, rows - start);
+			block.reshape(count, dimension, false);
+			projected.reshape(count, prediction_size, false);
+			for (int i = 0; i < count; ++i) {
+				store.copy_row(first_row + start + i, block.data, i * dimension);
+			}
+			CommonOps.multTransB(block, weights, projected);
+			System.arraycopy(projected.data, 0, table, start * prediction_size, count * prediction_size);
+		}
+		if (bias != null) {
+			for (int i = 0; i < rows; ++i) {
+				int offset = i * prediction_size;
+				for (int k = 0; k < prediction_size; ++k) {
+					table[offset + k] += bias[k];
+				}
+			}
+		}
+		return table;
+	}
+
+	/*
+	 * Write the unnormalized prediction (projection plus bias) for the
+	 * words of a window and an object into `out`, starting at `offset`.
+	 */
+	public void unnormalized(int[] indices, int object_index, double[] out, int offset) {
+		unnormalized(indices, 0, object_index, out, offset);
+	}
+
+	/*
+	 * Same for the window of `indices` starting at `start`.
+	 */
+	public void unnormalized(int[] indices, int start, int object_index, double[] out, int offset) {
+		System.arraycopy(object_table, object_index * prediction_size, out, offset, prediction_size);
+		for (int p = 0; p < window; ++p) {
+			double[] table = word_tables[p];
+			int row = indices[start + p] * prediction_size;
+			for (int k = 0; k < prediction_size; ++k) {
+				out[offset + k] += table[row + k];
+			}
+		}
+	}
+
+	/*
+	 * Memory used by the tables, in bytes.
+	 */
+	public long memory_usage() {
+		long doubles = object_table.length;
+		for (double[] table : word_tables) {
+			doubles += table.length;
+		}
+		return 8L * doubles;
+	}
+}
@@ -0,0 +1,51 @@
+package objectlm;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Splits the text read from a Reader into words on whitespace, one word
+ * at a time, so documents of any length are tokenized in constant memory
+ * (like convert_to_indices, but without holding the text or the list of
+ * indices).
+ */
+public class WordTokenizer {
+	private static final int BUFFER_SIZE = 8192;
+
+	private final Reader reader;
+	private final char[] buffer;
+	private final StringBuilder word;
+	private int position;
+	private int length;
+
+	public WordTokenizer(Reader reader) {
+		this.reader = reader;
+		this.buffer = new char[BUFFER_SIZE];
+		this.word = new StringBuilder();
+	}
+
+	/*
+	 * Next word of the text, or null at the end of the text.
+	 */
+	public String next() throws IOException {
+		word.setLength(0);
+		while (true) {
+			if (position == length) {
+				length = reader.read(buffer, 0, buffer.length);
+				position = 0;
+				if (length <= 0) {
+					length = 0;
+					return word.length() > 0 ? word.toString() : null;
+				}
+			}
+			char c = buffer[position++];
+			if (Character.isWhitespace(c)) {
+				if (word.length() > 0) {
+					return word.toString();
+				}
+			} else {
+				word.append(c);
+			}
+		}
+	}
+}
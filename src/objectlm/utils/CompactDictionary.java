@@ -0,0 +1,470 @@
+package objectlm.utils;
+
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+import java.util.Set;
+
+/**
+ * Compact bidirectional mapping between strings and their position.
+ *
+ * An ArrayList of Strings plus a HashMap from String to Integer costs a
+ * String object, a boxed Integer and a hash node per entry. Here all
+ * entries are stored as UTF-8 bytes in one contiguous buffer, located by an
+ * offsets array, and found through an open addressing table of positions.
+ * Strings are only materialized when asked for by index.
+ *
+ * Like the HashMap it replaces, appending a string that is already present
+ * gives it a new position and look-ups then return the latest one.
+ *
+ * {@link #as_list()} and {@link #as_map()} expose the dictionary through
+ * the List and Map interfaces used by index2word and word2index.
+ *
+ * Look-ups can run while strings are appended: the arrays and the number
+ * of entries are read from one immutable State published through a
+ * volatile field. An append only writes past the published entries (or
+ * into copies of the arrays when they grow or an entry is replaced), so a
+ * reader sees every entry of the state it read, and entries appended
+ * meanwhile are ignored until their state is published. Appends are
+ * serialized.
+ */
+public class CompactDictionary implements Serializable {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final int FNV_OFFSET = 0x811c9dc5;
+	private static final int FNV_PRIME = 0x01000193;
+
+	/*
+	 * The arrays holding the first `size` entries. Their contents at
+	 * positions below `size` are never modified once published.
+	 */
+	private static final class State implements Serializable {
+		// utf-8 bytes of every entry, back to back:
+		final byte[] bytes;
+		// entry i spans bytes[offsets[i]] to bytes[offsets[i+1]]:
+		final int[] offsets;
+		// hash of each entry, kept to avoid rehashing bytes:
+		final int[] hashes;
+		// open addressing table holding position + 1 (0 marks an empty
+		// slot); slots pointing at or past `size` are not published yet:
+		final int[] table;
+		final int size;
+
+		State(byte[] bytes, int[] offsets, int[] hashes, int[] table, int size) {
+			this.bytes = bytes;
+			this.offsets = offsets;
+			this.hashes = hashes;
+			this.table = table;
+			this.size = size;
+		}
+
+		private static final long serialVersionUID = 1L;
+	}
+
+	private volatile State state;
+
+	public CompactDictionary() {
+		this(16, 16 * 8);
+	}
+
+	public CompactDictionary(int expected_size, int expected_bytes) {
+		this.state = new State(
+				new byte[Math.max(expected_bytes, 16)],
+				new int[Math.max(expected_size, 16) + 1],
+				new int[Math.max(expected_size, 16)],
+				new int[table_capacity(expected_size)],
+				0);
+	}
+
+	public CompactDictionary(List<String> strings) {
+		this(strings.size(), strings.size() * 8);
+		for (String string : strings) {
+			append(string);
+		}
+	}
+
+	/*
+	 * Build a dictionary straight from a buffer of utf-8 bytes and the
+	 * `count + 1` offsets delimiting each entry (as stored in snapshots),
+	 * without decoding any string.
+	 */
+	public static CompactDictionary from_utf8(byte[] bytes, int[] offsets, int count) {
+		int[] hashes = new int[Math.max(count, 1)];
+		int[] table = new int[table_capacity(count)];
+		for (int i = 0; i < count; ++i) {
+			hashes[i] = hash(bytes, offsets[i], offsets[i+1]);
+			insert(bytes, offsets, hashes, table, i);
+		}
+		CompactDictionary dictionary = new CompactDictionary(0, 0);
+		dictionary.state = new State(bytes, offsets, hashes, table, count);
+		return dictionary;
+	}
+
+	private static int table_capacity(int size) {
+		// keep the load factor under one half:
+		int capacity = 16;
+		while (capacity < 2 * size) {
+			capacity <<= 1;
+		}
+		return capacity;
+	}
+
+	private static int hash(byte[] bytes, int from, int to) {
+		int h = FNV_OFFSET;
+		for (int i = from; i < to; ++i) {
+			h = (h ^ (bytes[i] & 0xFF)) * FNV_PRIME;
+		}
+		return h;
+	}
+
+	/*
+	 * Code point at position i of word, with lone surrogates replaced by '?'
+	 * as String.getBytes does when encoding to UTF-8.
+	 */
+	private static int code_point(String word, int i) {
+		int cp = word.codePointAt(i);
+		if (cp >= Character.MIN_SURROGATE && cp <= Character.MAX_SURROGATE) {
+			return '?';
+		}
+		return cp;
+	}
+
+	private static int utf8_length(int cp) {
+		if (cp < 0x80) return 1;
+		if (cp < 0x800) return 2;
+		if (cp < 0x10000) return 3;
+		return 4;
+	}
+
+	/*
+	 * Byte k of the `length` byte UTF-8 encoding of cp.
+	 */
+	private static int utf8_byte(int cp, int length, int k) {
+		if (length == 1) {
+			return cp;
+		}
+		if (k == 0) {
+			return ((0xFF << (8 - length)) & 0xFF) | (cp >> (6 * (length - 1)));
+		}
+		return 0x80 | ((cp >> (6 * (length - 1 - k))) & 0x3F);
+	}
+
+	/*
+	 * Hash of the UTF-8 encoding of word, computed without encoding it.
+	 */
+	private static int hash(String word) {
+		int h = FNV_OFFSET;
+		int n = word.length();
+		for (int i = 0; i < n; i += Character.charCount(word.codePointAt(i))) {
+			int cp = code_point(word, i);
+			int length = utf8_length(cp);
+			for (int k = 0; k < length; ++k) {
+				h = (h ^ utf8_byte(cp, length, k)) * FNV_PRIME;
+			}
+		}
+		return h;
+	}
+
+	/*
+	 * Whether the entry at `index` holds the UTF-8 encoding of word.
+	 */
+	private static boolean matches(State state, int index, String word) {
+		byte[] bytes = state.bytes;
+		int position = state.offsets[index], end = state.offsets[index + 1];
+		int n = word.length();
+		for (int i = 0; i < n; i += Character.charCount(word.codePointAt(i))) {
+			int cp = code_point(word, i);
+			int length = utf8_length(cp);
+			if (position + length > end) {
+				return false;
+			}
+			for (int k = 0; k < length; ++k) {
+				if ((bytes[position++] & 0xFF) != utf8_byte(cp, length, k)) {
+					return false;
+				}
+			}
+		}
+		return position == end;
+	}
+
+	private static boolean same_entry(byte[] bytes, int[] offsets, int a, int b) {
+		int length = offsets[a + 1] - offsets[a];
+		if (length != offsets[b + 1] - offsets[b]) {
+			return false;
+		}
+		for (int k = 0; k < length; ++k) {
+			if (bytes[offsets[a] + k] != bytes[offsets[b] + k]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * Slot of `table` holding an entry equal to entry `index`, or the
+	 * empty slot where it goes.
+	 */
+	private static int slot_of(byte[] bytes, int[] offsets, int[] hashes, int[] table, int index) {
+		int mask = table.length - 1;
+		int slot = hashes[index] & mask;
+		while (table[slot] != 0) {
+			int other = table[slot] - 1;
+			if (hashes[other] == hashes[index] && same_entry(bytes, offsets, other, index)) {
+				break;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	/*
+	 * Point the table at entry `index`, replacing an equal entry if present.
+	 */
+	private static void insert(byte[] bytes, int[] offsets, int[] hashes, int[] table, int index) {
+		table[slot_of(bytes, offsets, hashes, table, index)] = index + 1;
+	}
+
+	/*
+	 * Add a string at the end of the dictionary and return its position.
+	 */
+	public synchronized int append(String word) {
+		State current = state;
+		byte[] bytes = current.bytes;
+		int[] offsets = current.offsets, hashes = current.hashes, table = current.table;
+		int size = current.size;
+
+		byte[] encoded = word.getBytes(UTF8);
+		int start = offsets[size];
+		if (start + encoded.length > bytes.length) {
+			bytes = Arrays.copyOf(bytes, Math.max(bytes.length << 1, start + encoded.length));
+		}
+		if (size + 2 > offsets.length) {
+			offsets = Arrays.copyOf(offsets, offsets.length << 1);
+		}
+		if (size + 1 > hashes.length) {
+			hashes = Arrays.copyOf(hashes, hashes.length << 1);
+		}
+		// past the published entries, so invisible to readers of `current`:
+		System.arraycopy(encoded, 0, bytes, start, encoded.length);
+		offsets[size + 1] = start + encoded.length;
+		hashes[size] = hash(bytes, start, start + encoded.length);
+
+		if (2 * (size + 1) > table.length) {
+			// rehash into a new table, published with the new state:
+			table = new int[table.length << 1];
+			for (int i = 0; i <= size; ++i) {
+				insert(bytes, offsets, hashes, table, i);
+			}
+		} else {
+			int slot = slot_of(bytes, offsets, hashes, table, size);
+			if (table[slot] != 0) {
+				// replacing an entry readers may be looking up: copy.
+				table = table.clone();
+			}
+			// an empty slot pointing past the published size is
+			// skipped by readers until the new state is published:
+			table[slot] = size + 1;
+		}
+		state = new State(bytes, offsets, hashes, table, size + 1);
+		return size;
+	}
+
+	/*
+	 * Position of word in the dictionary, or -1 when absent.
+	 */
+	public int index_of(String word) {
+		State current = state;
+		int[] table = current.table;
+		int h = hash(word);
+		int mask = table.length - 1;
+		int slot = h & mask;
+		int position;
+		while ((position = table[slot]) != 0) {
+			int index = position - 1;
+			if (index < current.size && current.hashes[index] == h && matches(current, index, word)) {
+				return index;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	public boolean contains(String word) {
+		return index_of(word) != -1;
+	}
+
+	public String get(int index) {
+		State current = state;
+		if (index < 0 || index >= current.size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + current.size);
+		}
+		return new String(current.bytes, current.offsets[index], current.offsets[index + 1] - current.offsets[index], UTF8);
+	}
+
+	public int size() {
+		return state.size;
+	}
+
+	/*
+	 * The UTF-8 buffer and the `size() + 1` offsets delimiting each entry
+	 * (the buffer may be longer than needed). With appends running
+	 * meanwhile, read size() first: the arrays read after it hold at
+	 * least that many entries, unchanged.
+	 */
+	public byte[] utf8_bytes() {
+		return state.bytes;
+	}
+
+	public int[] utf8_offsets() {
+		return state.offsets;
+	}
+
+	public List<String> as_list() {
+		return new ListView(this);
+	}
+
+	/*
+	 * Read only: put and remove throw UnsupportedOperationException,
+	 * strings are added through the list view or append.
+	 */
+	public Map<String, Integer> as_map() {
+		return new MapView(this);
+	}
+
+	/*
+	 * Dictionary behind a list returned by as_list(), or null
+	 * for any other list.
+	 */
+	public static CompactDictionary backing(List<String> strings) {
+		return strings instanceof ListView ? ((ListView) strings).dictionary : null;
+	}
+
+	/*
+	 * Dictionary behind a map returned by as_map(), or null
+	 * for any other map.
+	 */
+	public static CompactDictionary backing(Map<String, Integer> positions) {
+		return positions instanceof MapView ? ((MapView) positions).dictionary : null;
+	}
+
+	/**
+	 * index2word view: position to string. Strings can
+	 * only be added at the end.
+	 */
+	static class ListView extends AbstractList<String> implements RandomAccess, Serializable {
+		final CompactDictionary dictionary;
+
+		ListView(CompactDictionary dictionary) {
+			this.dictionary = dictionary;
+		}
+
+		@Override
+		public String get(int index) {
+			return dictionary.get(index);
+		}
+
+		@Override
+		public int size() {
+			return dictionary.size();
+		}
+
+		@Override
+		public void add(int index, String word) {
+			if (index != dictionary.size()) {
+				throw new UnsupportedOperationException("Strings can only be added at the end of the dictionary.");
+			}
+			dictionary.append(word);
+			modCount++;
+		}
+
+		@Override
+		public int indexOf(Object word) {
+			return word instanceof String ? dictionary.index_of((String) word) : -1;
+		}
+
+		@Override
+		public boolean contains(Object word) {
+			return indexOf(word) != -1;
+		}
+
+		private static final long serialVersionUID = 1L;
+	}
+
+	/**
+	 * word2index view: string to position, read only (the
+	 * inherited put throws UnsupportedOperationException).
+	 */
+	static class MapView extends AbstractMap<String, Integer> implements Serializable {
+		final CompactDictionary dictionary;
+
+		MapView(CompactDictionary dictionary) {
+			this.dictionary = dictionary;
+		}
+
+		@Override
+		public Integer get(Object word) {
+			if (!(word instanceof String)) {
+				return null;
+			}
+			int index = dictionary.index_of((String) word);
+			return index == -1 ? null : index;
+		}
+
+		@Override
+		public boolean containsKey(Object word) {
+			return word instanceof String && dictionary.contains((String) word);
+		}
+
+		@Override
+		public int size() {
+			return dictionary.size();
+		}
+
+		@Override
+		public Set<Map.Entry<String, Integer>> entrySet() {
+			return new AbstractSet<Map.Entry<String, Integer>>() {
+				@Override
+				public Iterator<Map.Entry<String, Integer>> iterator() {
+					return new Iterator<Map.Entry<String, Integer>>() {
+						private int index = 0;
+
+						public boolean hasNext() {
+							return index < dictionary.size();
+						}
+
+						public Map.Entry<String, Integer> next() {
+							if (!hasNext()) {
+								throw new NoSuchElementException();
+							}
+							Map.Entry<String, Integer> entry = new AbstractMap.SimpleImmutableEntry<String, Integer>(dictionary.get(index), index);
+							index += 1;
+							return entry;
+						}
+
+						public void remove() {
+							throw new UnsupportedOperationException();
+						}
+					};
+				}
+
+				@Override
+				public int size() {
+					return dictionary.size();
+				}
+			};
+		}
+
+		private static final long serialVersionUID = 1L;
+	}
+
+	private static final long serialVersionUID = 1L;
+}
@@ -0,0 +1,235 @@
+package objectlm.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Lloyd's k-means over points stored back to back in a double[]
+ * (point i occupies points[i * d] to points[(i + 1) * d]), seeded
+ * with k-means++.
+ *
+ * Measuring the points against the centroids (the assignment step and
+ * the k-means++ distance updates) can be split across threads; every
+ * point is still measured on its own, so the centroids do not depend on
+ * the number of threads.
+ */
+public class KMeans {
+
+	/*
+	 * `count` distinct integers of [0, total) drawn at random, in the
+	 * order of a partial Fisher-Yates shuffle. Only the swapped positions
+	 * are remembered, so the memory used is O(count) rather than O(total).
+	 */
+	public static int[] sample_rows(int total, int count, Random random) {
+		count = Math.max(0, Math.min(count, total));
+		HashMap<Integer, Integer> swapped = new HashMap<Integer, Integer>(2 * count);
+		int[] sample = new int[count];
+		for (int i = 0; i < count; ++i) {
+			int pick = i + random.nextInt(total - i);
+			Integer at_pick = swapped.get(pick);
+			Integer at_i = swapped.get(i);
+			sample[i] = at_pick != null ? at_pick : pick;
+			swapped.put(pick, at_i != null ? at_i : i);
+		}
+		return sample;
+	}
+
+	/*
+	 * Work over a range of points, returning a count summed over the ranges.
+	 */
+	private static abstract class RangeTask {
+		abstract int run(int from, int to);
+	}
+
+	/*
+	 * Run `task` over [0, n) in one range per thread of `pool`
+	 * (on the calling thread when pool is null).
+	 */
+	private static int for_ranges(ExecutorService pool, int threads, int n, final RangeTask task) {
+		if (pool == null || n < 2 * threads) {
+			return task.run(0, n);
+		}
+		List<Future<Integer>> futures = new ArrayList<Future<Integer>>(threads);
+		for (int t = 0; t < threads; ++t) {
+			final int from = (int) ((long) n * t / threads), to = (int) ((long) n * (t + 1) / threads);
+			futures.add(pool.submit(new Callable<Integer>() {
+				public Integer call() {
+					return task.run(from, to);
+				}
+			}));
+		}
+		int total = 0;
+		try {
+			for (Future<Integer> future : futures) {
+				total += future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		}
+		return total;
+	}
+
+	/*
+	 * Squared euclidean distance between a point and centroid c.
+	 */
+	public static double squared_distance(double[] point, int offset, double[] centroids, int c, int d) {
+		double distance = 0.0, difference;
+		int centroid_offset = c * d;
+		for (int j = 0; j < d; ++j) {
+			difference = point[offset + j] - centroids[centroid_offset + j];
+			distance += difference * difference;
+		}
+		return distance;
+	}
+
+	/*
+	 * Index of the centroid closest to the point starting at `offset`.
+	 */
+	public static int nearest(double[] point, int offset, double[] centroids, int k, int d) {
+		int best = 0;
+		double best_distance = Double.POSITIVE_INFINITY, distance;
+		for (int c = 0; c < k; ++c) {
+			distance = squared_distance(point, offset, centroids, c, d);
+			if (distance < best_distance) {
+				best_distance = distance;
+				best = c;
+			}
+		}
+		return best;
+	}
+
+	/*
+	 * Pick k initial centroids among the points with k-means++: each new
+	 * centroid is drawn with probability proportional to its squared
+	 * distance to the closest centroid chosen so far.
+	 */
+	private static double[] initialize(final double[] points, int n, final int d, int k, Random random, ExecutorService pool, int threads) {
+		final double[] centroids = new double[k * d];
+		final double[] closest = new double[n];
+		System.arraycopy(points, random.nextInt(n) * d, centroids, 0, d);
+		for (int i = 0; i < n; ++i) {
+			closest[i] = squared_distance(points, i * d, centroids, 0, d);
+		}
+		for (int c = 1; c < k; ++c) {
+			double total = 0.0;
+			for (int i = 0; i < n; ++i) {
+				total += closest[i];
+			}
+			int chosen = random.nextInt(n);
+			if (total > 0.0) {
+				double target = random.nextDouble() * total;
+				for (int i = 0; i < n; ++i) {
+					target -= closest[i];
+					if (target <= 0.0) {
+						chosen = i;
+						break;
+					}
+				}
+			}
+			System.arraycopy(points, chosen * d, centroids, c * d, d);
+			final int centroid = c;
+			for_ranges(pool, threads, n, new RangeTask() {
+				int run(int from, int to) {
+					for (int i = from; i < to; ++i) {
+						closest[i] = Math.min(closest[i], squared_distance(points, i * d, centroids, centroid, d));
+					}
+					return 0;
+				}
+			});
+		}
+		return centroids;
+	}
+
+	/*
+	 * Assign each point to its nearest centroid, returning
+	 * how many assignments changed.
+	 */
+	public static int assign(double[] points, int from, int to, int d, double[] centroids, int k, int[] assignments) {
+		int changed = 0;
+		for (int i = from; i < to; ++i) {
+			int c = nearest(points, i * d, centroids, k, d);
+			if (c != assignments[i]) {
+				assignments[i] = c;
+				changed += 1;
+			}
+		}
+		return changed;
+	}
+
+	/*
+	 * Move each centroid to the mean of its points. Empty
+	 * clusters are reseeded on a random point.
+	 */
+	public static void update(double[] points, int n, int d, double[] centroids, int k, int[] assignments, Random random) {
+		double[] sums = new double[k * d];
+		int[] counts = new int[k];
+		for (int i = 0; i < n; ++i) {
+			int c = assignments[i];
+			counts[c] += 1;
+			for (int j = 0; j < d; ++j) {
+				sums[c * d + j] += points[i * d + j];
+			}
+		}
+		for (int c = 0; c < k; ++c) {
+			if (counts[c] == 0) {
+				System.arraycopy(points, random.nextInt(n) * d, centroids, c * d, d);
+			} else {
+				for (int j = 0; j < d; ++j) {
+					centroids[c * d + j] = sums[c * d + j] / counts[c];
+				}
+			}
+		}
+	}
+
+	/*
+	 * Cluster n points of dimension d into k centroids, stopping after
+	 * `iterations` rounds or once no assignment changes.
+	 */
+	public static double[] fit(double[] points, int n, int d, int k, int iterations, Random random) {
+		return fit(points, n, d, k, iterations, random, 1);
+	}
+
+	/*
+	 * Same, measuring the points against the centroids on `threads` threads.
+	 */
+	public static double[] fit(final double[] points, int n, final int d, int k, int iterations, Random random, int threads) {
+		final int clusters = Math.min(k, n);
+		threads = Math.max(1, threads);
+		ExecutorService pool = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+		try {
+			final double[] centroids = initialize(points, n, d, clusters, random, pool, threads);
+			final int[] assignments = new int[n];
+			Arrays.fill(assignments, -1);
+			for (int iteration = 0; iteration < iterations; ++iteration) {
+				int changed = for_ranges(pool, threads, n, new RangeTask() {
+					int run(int from, int to) {
+						return assign(points, from, to, d, centroids, clusters, assignments);
+					}
+				});
+				if (changed == 0) {
+					break;
+				}
+				update(points, n, d, centroids, clusters, assignments, random);
+			}
+			return centroids;
+		} finally {
+			if (pool != null) {
+				pool.shutdown();
+			}
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package objectlm.utils;
+
+/**
+ * Keeps the `k` best (score, index) pairs offered to it in a bounded
+ * min-heap of primitives, so selecting the nearest neighbors of a query
+ * costs O(n log k) without boxing or sorting every score.
+ *
+ * Higher scores are better, and among equal scores the lower index wins,
+ * which matches the order of a stable descending sort.
+ */
+public class TopK {
+	private final int k;
+	private final double[] scores;
+	private final int[] indices;
+	private int size;
+
+	public TopK(int k) {
+		this.k = k;
+		this.scores = new double[k];
+		this.indices = new int[k];
+		this.size = 0;
+	}
+
+	private static boolean better(double score, int index, double other_score, int other_index) {
+		return score > other_score || (score == other_score && index < other_index);
+	}
+
+	/*
+	 * Score a candidate would need to beat to enter a full heap.
+	 */
+	public double threshold() {
+		return size < k ? Double.NEGATIVE_INFINITY : scores[0];
+	}
+
+	public void offer(double score, int index) {
+		if (size < k) {
+			// sift the new element up from the last leaf:
+			int child = size++;
+			while (child > 0) {
+				int parent = (child - 1) >> 1;
+				if (!better(scores[parent], indices[parent], score, index)) {
+					break;
+				}
+				scores[child] = scores[parent];
+				indices[child] = indices[parent];
+				child = parent;
+			}
+			scores[child] = score;
+			indices[child] = index;
+		} else if (k > 0 && better(score, index, scores[0], indices[0])) {
+			sift_down(0, score, index, size);
+		}
+	}
+
+	/*
+	 * Place (score, index) at `position` and restore the heap order
+	 * below it, within the first `length` elements.
+	 */
+	private void sift_down(int position, double score, int index, int length) {
+		while (true) {
+			int child = 2 * position + 1;
+			if (child >= length) {
+				break;
+			}
+			if (child + 1 < length && better(scores[child], indices[child], scores[child + 1], indices[child + 1])) {
+				child += 1;
+			}
+			if (!better(score, index, scores[child], indices[child])) {
+				break;
+			}
+			scores[position] = scores[child];
+			indices[position] = indices[child];
+			position = child;
+		}
+		scores[position] = score;
+		indices[position] = index;
+	}
+
+	/*
+	 * Offer every element kept by another selection.
+	 */
+	public void merge(TopK other) {
+		for (int i = 0; i < other.size; ++i) {
+			offer(other.scores[i], other.indices[i]);
+		}
+	}
+
+	/*
+	 * Order the kept elements from best to worst. After sorting,
+	 * score(i) and index(i) walk the results in rank order and no
+	 * more elements should be offered.
+	 */
+	public TopK sort() {
+		// heap sort: repeatedly move the worst element to the end.
+		for (int end = size - 1; end > 0; --end) {
+			double score = scores[end];
+			int index = indices[end];
+			scores[end] = scores[0];
+			indices[end] = indices[0];
+			sift_down(0, score, index, end);
+		}
+		return this;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public double score(int i) {
+		return scores[i];
+	}
+
+	public int index(int i) {
+		return indices[i];
+	}
+}
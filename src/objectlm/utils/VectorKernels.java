@@ -0,0 +1,212 @@
+package objectlm.utils;
+
+/**
+ * Kernels for the inference and search hot loops, written directly against
+ * row-major double[] data (and float[] rows for single precision stores).
+ *
+ * Reductions are unrolled over four independent accumulators: a single
+ * running sum serializes every add on the previous one, while four partial
+ * sums keep the floating point pipelines (and the JIT's superword
+ * vectorizer) busy. Matrix-vector products score four rows per pass so
+ * each element of the vector is loaded once for four rows.
+ *
+ * The partial sums change the order of the additions, so results may
+ * differ from a sequential loop in the last bits.
+ */
+public class VectorKernels {
+
+	/**
+	 * Dot product of a[a_offset .. a_offset + n] and b[b_offset .. b_offset + n].
+	 */
+	public static double dot(double[] a, int a_offset, double[] b, int b_offset, int n) {
+		double s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0;
+		int j = 0;
+		for (; j + 3 < n; j += 4) {
+			s0 += a[a_offset + j] * b[b_offset + j];
+			s1 += a[a_offset + j + 1] * b[b_offset + j + 1];
+			s2 += a[a_offset + j + 2] * b[b_offset + j + 2];
+			s3 += a[a_offset + j + 3] * b[b_offset + j + 3];
+		}
+		for (; j < n; ++j) {
+			s0 += a[a_offset + j] * b[b_offset + j];
+		}
+		return (s0 + s1) + (s2 + s3);
+	}
+
+	/**
+	 * Matrix-vector product over a block of columns of a row-major matrix:
+	 *
+	 *     out[out_offset + k] = start[k] + sum_j matrix[k * stride + column + j] * x[x_offset + j]
+	 *
+	 * for k in [0, rows) and j in [0, length).
+	 *
+	 * @param start values added to each output (for instance a bias), or null
+	 */
+	public static void gemv(double[] matrix, int rows, int stride, int column, int length,
+			double[] x, int x_offset, double[] start, double[] out, int out_offset) {
+		int k = 0;
+		for (; k + 3 < rows; k += 4) {
+			int r0 = k * stride + column, r1 = r0 + stride, r2 = r1 + stride, r3 = r2 + stride;
+			double s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0, v;
+			for (int j = 0; j < length; ++j) {
+				v = x[x_offset + j];
+				s0 += matrix[r0 + j] * v;
+				s1 += matrix[r1 + j] * v;
+				s2 += matrix[r2 + j] * v;
+				s3 += matrix[r3 + j] * v;
+			}
+			if (start != null) {
+				s0 += start[k];
+				s1 += start[k + 1];
+				s2 += start[k + 2];
+				s3 += start[k + 3];
+			}
+			out[out_offset + k] = s0;
+			out[out_offset + k + 1] = s1;
+			out[out_offset + k + 2] = s2;
+			out[out_offset + k + 3] = s3;
+		}
+		for (; k < rows; ++k) {
+			double s = dot(matrix, k * stride + column, x, x_offset, length);
+			out[out_offset + k] = start != null ? s + start[k] : s;
+		}
+	}
+
+	/**
+	 * Dot product of every row of a row-major a_rows x cols matrix `a`
+	 * with every row of a row-major b_rows x cols matrix `b`:
+	 *
+	 *     out[i * b_rows + j] = dot(a row i, b row j)
+	 *
+	 * Each row of b is used against all of a while it is in cache, so
+	 * with both blocks sized to fit the cache this is a matrix-matrix
+	 * product instead of one pass over b per row of a. Every entry is
+	 * summed exactly like {@link #dot}.
+	 */
+	public static void dot_blocks(double[] a, int a_rows, double[] b, int b_rows, int cols, double[] out) {
+		for (int j = 0; j < b_rows; ++j) {
+			int b_offset = j * cols;
+			for (int i = 0; i < a_rows; ++i) {
+				out[i * b_rows + j] = dot(a, i * cols, b, b_offset, cols);
+			}
+		}
+	}
+
+	/**
+	 * Fused softmax in place over x[from .. to]: one pass finds the
+	 * maximum, one exponentiates (shifted by the maximum) while summing,
+	 * and one scales by the inverse of the sum.
+	 */
+	public static void exp_normalize(double[] x, int from, int to) {
+		double max = Double.NEGATIVE_INFINITY;
+		for (int i = from; i < to; ++i) {
+			if (x[i] > max) {
+				max = x[i];
+			}
+		}
+		double sum = 0.0, e;
+		for (int i = from; i < to; ++i) {
+			e = Math.exp(x[i] - max);
+			x[i] = e;
+			sum += e;
+		}
+		double inverse = 1.0 / sum;
+		for (int i = from; i < to; ++i) {
+			x[i] *= inverse;
+		}
+	}
+
+	/**
+	 * Sigmoid in place over x[from .. to].
+	 */
+	public static void sigmoid(double[] x, int from, int to) {
+		for (int i = from; i < to; ++i) {
+			x[i] = 1.0 / (1.0 + Math.exp(-x[i]));
+		}
+	}
+
+	/**
+	 * Normalize a block of logits in place: each softmax group in turn
+	 * (group g spans group_sizes[g] values), followed by `sigmoid_count`
+	 * independent sigmoids. Softmax groups subtract their maximum, so
+	 * large logits do not overflow to infinity and NaN.
+	 */
+	public static void normalize_logits(double[] x, int offset, int[] group_sizes, int sigmoid_count) {
+		int index = offset;
+		for (int g = 0; g < group_sizes.length; ++g) {
+			exp_normalize(x, index, index + group_sizes[g]);
+			index += group_sizes[g];
+		}
+		sigmoid(x, index, index + sigmoid_count);
+	}
+
+	/**
+	 * Labels of a block of probabilities (as left by normalize_logits):
+	 * the argmax of each softmax group, the first one on ties, followed by
+	 * each sigmoid rounded with Math.round (so NaN gives 0). Writes
+	 * group_sizes.length + sigmoid_count labels. Throws
+	 * IllegalArgumentException when a softmax group has no largest
+	 * probability, as happens when one of its logits is NaN or infinite.
+	 */
+	public static void probability_labels(double[] p, int offset, int[] group_sizes, int sigmoid_count, int[] labels) {
+		int index = offset, label = 0;
+		for (int g = 0; g < group_sizes.length; ++g) {
+			int best = argmax(p, index, index + group_sizes[g]);
+			if (best == -1) {
+				throw new IllegalArgumentException("Softmax group " + g + " has no largest probability (NaN or infinite logits).");
+			}
+			labels[label++] = best - index;
+			index += group_sizes[g];
+		}
+		for (int i = 0; i < sigmoid_count; ++i) {
+			labels[label++] = (int) Math.round(p[index + i]);
+		}
+	}
+
+	/**
+	 * Labels of a block of logits, which are normalized in place first:
+	 * labelling the logits directly could disagree with the labels of the
+	 * probabilities on near ties, which the exponentials round together,
+	 * and where a sigmoid rounds to exactly 0.5.
+	 */
+	public static void logit_labels(double[] x, int offset, int[] group_sizes, int sigmoid_count, int[] labels) {
+		normalize_logits(x, offset, group_sizes, sigmoid_count);
+		probability_labels(x, offset, group_sizes, sigmoid_count, labels);
+	}
+
+	/**
+	 * Position in x of the largest value of x[from .. to] (the first one
+	 * on ties), or -1 when the range is empty.
+	 */
+	public static int argmax(double[] x, int from, int to) {
+		int best = -1;
+		double max = Double.NEGATIVE_INFINITY;
+		for (int i = from; i < to; ++i) {
+			if (x[i] > max) {
+				max = x[i];
+				best = i;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Dot product of single precision a[a_offset .. a_offset + n] (rows
+	 * of a FloatEmbeddingStore) and b[b_offset .. b_offset + n],
+	 * accumulated in double.
+	 */
+	public static double dot(float[] a, int a_offset, double[] b, int b_offset, int n) {
+		double s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0;
+		int j = 0;
+		for (; j + 3 < n; j += 4) {
+			s0 += a[a_offset + j] * b[b_offset + j];
+			s1 += a[a_offset + j + 1] * b[b_offset + j + 1];
+			s2 += a[a_offset + j + 2] * b[b_offset + j + 2];
+			s3 += a[a_offset + j + 3] * b[b_offset + j + 3];
+		}
+		for (; j < n; ++j) {
+			s0 += a[a_offset + j] * b[b_offset + j];
+		}
+		return (s0 + s1) + (s2 + s3);
+	}
+}
@@ -7,7 +7,6 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.Random;
 
-import org.ejml.data.MatrixIterator;
 import org.ejml.simple.SimpleMatrix;
 
 public class VectorUtils {
@@ -108,11 +107,13 @@ public class VectorUtils {
 		long end_size = ((n-1) * n) / 2;
 		double[] pdists = new double[(int)end_size];
 		
+		double[] data = x.getMatrix().data;
+		int cols = x.numCols();
 		int k = 0;
 		for (int i = 0; i < n; ++i) {
 			for (int j = i + 1; j < n; ++j) {
 				// Cosine distance:
-				pdists[k] = 1.0 - Math.abs(x.extractVector(true, i).dot(x.extractVector(true, j)));
+				pdists[k] = 1.0 - Math.abs(VectorKernels.dot(data, i * cols, data, j * cols, cols));
 				k += 1;
 			}
 		}
@@ -123,6 +124,67 @@ public class VectorUtils {
 	public static SimpleMatrix normalize(SimpleMatrix x) {
 		return x.divide(x.normF());
 	}
+
+	/**
+	 * Divide each row of a matrix by its euclidean norm, as done
+	 * in the Python implementation. Works in a single pass over the
+	 * data, without the squared or extracted row copies.
+	 */
+	public static SimpleMatrix normalize_rows(SimpleMatrix x) {
+		return divide_rows(x, row_norms(x));
+	}
+
+	/**
+	 * Compute the euclidean norm of each row of a matrix
+	 * in a single pass over its row-major data.
+	 *
+	 * @param x the matrix whose rows are measured
+	 * @return double[] with one norm per row
+	 */
+	public static double[] row_norms(SimpleMatrix x) {
+		int rows = x.numRows(), cols = x.numCols();
+		double[] data = x.getMatrix().data;
+		double[] norms = new double[rows];
+		double squared;
+		int offset = 0;
+		for (int i = 0; i < rows; ++i) {
+			squared = 0.0;
+			for (int j = 0; j < cols; ++j) {
+				squared += data[offset + j] * data[offset + j];
+			}
+			norms[i] = Math.sqrt(squared);
+			offset += cols;
+		}
+		return norms;
+	}
+
+	/**
+	 * Divide each row of a matrix by its own divisor, writing
+	 * into a new matrix (the input is left untouched).
+	 *
+	 * @param x the matrix to divide
+	 * @param divisors one divisor per row of x
+	 * @return SimpleMatrix with the rescaled rows
+	 */
+	public static SimpleMatrix divide_rows(SimpleMatrix x, double[] divisors) throws IllegalArgumentException {
+		int rows = x.numRows(), cols = x.numCols();
+		if (divisors.length != rows) {
+			throw new IllegalArgumentException("need one divisor per row");
+		}
+		double[] data = x.getMatrix().data;
+		SimpleMatrix divided = new SimpleMatrix(rows, cols);
+		double[] out = divided.getMatrix().data;
+		double divisor;
+		int offset = 0;
+		for (int i = 0; i < rows; ++i) {
+			divisor = divisors[i];
+			for (int j = 0; j < cols; ++j) {
+				out[offset + j] = data[offset + j] / divisor;
+			}
+			offset += cols;
+		}
+		return divided;
+	}
 	
 	public static SimpleMatrix sum(SimpleMatrix x, Integer axis) throws IllegalArgumentException{
 		if (axis == null) {
@@ -194,20 +256,17 @@ public class VectorUtils {
 	 */
 	public static SimpleMatrix softmax(SimpleMatrix input) {
 		SimpleMatrix output = new SimpleMatrix(input);
-		for (int i = 0; i < output.numRows(); ++i) {
-			for (int j = 0; j < output.numCols(); ++j) {
-				output.set(i, j, Math.exp(output.get(i, j)));
-			}
-		}
-		double sum = output.elementSum();
-		// will be safe, since exp should never return 0
-		return output.scale(1.0 / sum);
+		VectorKernels.exp_normalize(output.getMatrix().data, 0, output.getNumElements());
+		return output;
 	}
 	
 	/*
 	 * Retrieve the index of the largest value in a matrix.
 	 */
 	public static Integer argmax(SimpleMatrix input) {
+		if (input.isVector()) {
+			return VectorKernels.argmax(input.getMatrix().data, 0, input.getNumElements());
+		}
 		int greatest = -1;
 		double max_observed = Double.NEGATIVE_INFINITY;
 		if (input.numRows() > input.numCols()) {
@@ -255,12 +314,55 @@ public class VectorUtils {
 	/**
 	 * Applies sigmoid to all of the elements of the matrix.*/
 	public static SimpleMatrix element_wise_sigmoid(SimpleMatrix input) {
-		for (int i = 0; i < input.numRows(); ++i) {
-			for (int j = 0; j < input.numCols(); ++j) {
-				input.set(i, j, sigmoid(input.get(i, j)));
+		VectorKernels.sigmoid(input.getMatrix().data, 0, input.getNumElements());
+		return input;
+	}
+	
+	/**
+	 * Applies softmax in place to each column of rows `from_row` to
+	 * `to_row` of a matrix, so each column of that block sums to 1.
+	 * The rows are swept one at a time over the contiguous row-major data,
+	 * with the column maxima subtracted before exponentiating.
+	 *
+	 * @param x the matrix holding one example per column
+	 * @param from_row first row of the block
+	 * @param to_row row after the last row of the block
+	 */
+	public static void softmax_columns(SimpleMatrix x, int from_row, int to_row) {
+		int cols = x.numCols();
+		double[] data = x.getMatrix().data;
+		double[] max = new double[cols];
+		double[] sum = new double[cols];
+		Arrays.fill(max, Double.NEGATIVE_INFINITY);
+		for (int i = from_row; i < to_row; ++i) {
+			int offset = i * cols;
+			for (int j = 0; j < cols; ++j) {
+				max[j] = Math.max(max[j], data[offset + j]);
 			}
 		}
-		return input;
+		for (int i = from_row; i < to_row; ++i) {
+			int offset = i * cols;
+			for (int j = 0; j < cols; ++j) {
+				data[offset + j] = Math.exp(data[offset + j] - max[j]);
+				sum[j] += data[offset + j];
+			}
+		}
+		for (int j = 0; j < cols; ++j) {
+			sum[j] = 1.0 / sum[j];
+		}
+		for (int i = from_row; i < to_row; ++i) {
+			int offset = i * cols;
+			for (int j = 0; j < cols; ++j) {
+				data[offset + j] *= sum[j];
+			}
+		}
+	}
+	
+	/**
+	 * Applies sigmoid in place to rows `from_row` to `to_row` of a matrix.
+	 */
+	public static void sigmoid_rows(SimpleMatrix x, int from_row, int to_row) {
+		VectorKernels.sigmoid(x.getMatrix().data, from_row * x.numCols(), to_row * x.numCols());
 	}
 	
 	public static SimpleMatrix sqrt(SimpleMatrix x) {
@@ -271,11 +373,9 @@ public class VectorUtils {
 		if (!inplace) {
 			x = x.copy();
 		}
-		MatrixIterator iter = x.iterator(true, 0, 0, x.numRows()-1, x.numCols()-1);
-		Double current_val;
-		while (iter.hasNext()) {
-			current_val = iter.next();
-			iter.set(Math.sqrt(current_val));
+		double[] data = x.getMatrix().data;
+		for (int i = 0; i < x.getNumElements(); ++i) {
+			data[i] = Math.sqrt(data[i]);
 		}
 		return x;
 	}
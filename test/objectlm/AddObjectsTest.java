@@ -0,0 +1,103 @@
+package objectlm;
+
+import static objectlm.Checks.check;
+import static objectlm.Checks.check_equal;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Objects added with add_objects while other threads look objects up by
+ * name and search them: every object present before keeps being found
+ * under its name and index, whether the names live in a dictionary or in
+ * a plain list and map, or searched through an object index, and the
+ * added objects are found once added.
+ */
+public class AddObjectsTest {
+
+	private static final int OBJECTS = 200;
+	private static final int BATCHES = 60;
+	private static final int BATCH_SIZE = 40;
+	private static final int READERS = 3;
+
+	public static void main(String[] args) throws Exception {
+		check_concurrent_lookups(TestModels.model(50, OBJECTS, 9), "dictionary names");
+
+		ObjectLM plain = TestModels.model(50, OBJECTS, 9);
+		plain.index2object = new ArrayList<String>(plain.index2object);
+		plain.object2index = new HashMap<String, Integer>(plain.object2index);
+		check_concurrent_lookups(plain, "list and map names");
+
+		// searches going through an object index extended meanwhile:
+		ObjectLM inverted_file = TestModels.model(50, OBJECTS, 9);
+		inverted_file.use_inverted_file_object_index(8, 8, 1);
+		check_concurrent_lookups(inverted_file, "inverted file index");
+
+		ObjectLM quantized = TestModels.model(50, OBJECTS, 9);
+		quantized.use_quantized_object_index(OBJECTS);
+		check_concurrent_lookups(quantized, "quantized index");
+
+		ObjectLM product_quantized = TestModels.model(50, OBJECTS, 9);
+		product_quantized.use_product_quantization_object_index(2, OBJECTS);
+		check_concurrent_lookups(product_quantized, "product quantization index");
+		System.out.println("AddObjectsTest passed");
+	}
+
+	private static void check_concurrent_lookups(final ObjectLM model, final String name) throws Exception {
+		final AtomicBoolean adding = new AtomicBoolean(true);
+		ExecutorService pool = Executors.newFixedThreadPool(READERS);
+		try {
+			List<Future<Integer>> readers = new ArrayList<Future<Integer>>();
+			for (int t = 0; t < READERS; ++t) {
+				final long seed = t;
+				readers.add(pool.submit(new Callable<Integer>() {
+					public Integer call() {
+						Random random = new Random(seed);
+						int lookups = 0;
+						while (adding.get() || lookups < 1000) {
+							int object_index = random.nextInt(OBJECTS);
+							String object = "object " + object_index;
+							check_equal(object_index, model.object2index.get(object), name + ": index of " + object);
+							check_equal(object, model.index2object.get(object_index), name + ": name of " + object_index);
+							check_equal(5, model.most_similar_object(object, 5).size(), name + ": neighbors of " + object);
+							lookups += 1;
+						}
+						return lookups;
+					}
+				}));
+			}
+
+			Random random = new Random(1);
+			for (int batch = 0; batch < BATCHES; ++batch) {
+				List<String> names = new ArrayList<String>();
+				double[][] vectors = new double[BATCH_SIZE][model.object_size];
+				for (int i = 0; i < BATCH_SIZE; ++i) {
+					names.add("added " + batch + " " + i);
+					for (int j = 0; j < model.object_size; ++j) {
+						vectors[i][j] = random.nextGaussian();
+					}
+				}
+				int[] indices = model.add_objects(names, vectors);
+				for (int i = 0; i < BATCH_SIZE; ++i) {
+					check_equal(indices[i], model.object2index.get(names.get(i)), name + ": index of added " + names.get(i));
+					check_equal(names.get(i), model.index2object.get(indices[i]), name + ": name of added " + indices[i]);
+				}
+			}
+			adding.set(false);
+			for (Future<Integer> reader : readers) {
+				check(SavedModelLoader.await(reader) >= 1000, name + ": readers should have run");
+			}
+			check_equal(OBJECTS + BATCHES * BATCH_SIZE, model.number_of_objects(), name + ": objects");
+		} finally {
+			adding.set(false);
+			pool.shutdown();
+		}
+	}
+}
@@ -0,0 +1,37 @@
+package objectlm;
+
+import objectlm.utils.CompactDictionaryTest;
+import objectlm.utils.TopKTest;
+import objectlm.utils.VectorKernelsTest;
+
+/**
+ * Runs every test under test/. Each test is a class whose main method
+ * throws when a check fails.
+ */
+public class AllTests {
+
+	public static void main(String[] args) throws Exception {
+		ModelSnapshotTest.main(args);
+		MappedEmbeddingStoreTest.main(args);
+		TopKTest.main(args);
+		VectorKernelsTest.main(args);
+		CompactDictionaryTest.main(args);
+		SimilarityIndexRecallTest.main(args);
+		SlidingWindowScorerTest.main(args);
+		BatchInferenceServiceTest.main(args);
+		DocumentPredictionTest.main(args);
+		PrimitiveInferenceTest.main(args);
+		TabulatedProjectionTest.main(args);
+		LabelsTest.main(args);
+		SinglePrecisionTest.main(args);
+		LeanStorageTest.main(args);
+		AddObjectsTest.main(args);
+		BatchedSearchTest.main(args);
+		ParallelSearchTest.main(args);
+		ObjectFoldInTest.main(args);
+		ObjectContributionCacheTest.main(args);
+		NormalizedMatricesTest.main(args);
+		SavedModelLoaderTest.main(args);
+		ModelRegistryTest.main(args);
+	}
+}
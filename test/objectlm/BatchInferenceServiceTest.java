@@ -0,0 +1,107 @@
+package objectlm;
+
+import static objectlm.Checks.check;
+import static objectlm.Checks.check_close;
+import static objectlm.Checks.check_equal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * BatchInferenceService gives each job, in order, the mean over its
+ * windows of predict_proba(List) on the matrices (zeros for documents
+ * shorter than a window), along each prediction path, for any number of
+ * threads and shards, with fewer jobs than shards, and after the model
+ * switches to projection tables between runs. Its labels are those of
+ * its probabilities and its timings count the jobs and windows scored.
+ */
+public class BatchInferenceServiceTest {
+
+	private static final double TOLERANCE = 1e-12;
+
+	public static void main(String[] args) throws Exception {
+		ObjectLM reference = TestModels.model(120, 30, 27);
+		Random random = new Random(6);
+		List<BatchInferenceService.Job> jobs = new ArrayList<BatchInferenceService.Job>();
+		for (int j = 0; j < 101; ++j) {
+			// empty, shorter than a window, and long documents:
+			int[] indices = new int[j % 10 == 0 ? j % 3 : random.nextInt(60)];
+			for (int i = 0; i < indices.length; ++i) {
+				indices[i] = random.nextInt(120);
+			}
+			jobs.add(new BatchInferenceService.Job(indices, random.nextInt(30)));
+		}
+		double[][] expected = new double[jobs.size()][];
+		long expected_windows = 0;
+		for (int j = 0; j < jobs.size(); ++j) {
+			expected[j] = mean_of_windows(reference, jobs.get(j));
+			expected_windows += Math.max(0, jobs.get(j).indices.length - reference.window + 1);
+		}
+
+		for (String path : TestModels.PREDICTION_PATHS) {
+			ObjectLM model = TestModels.model(120, 30, 27, path);
+			for (int threads : new int[] {1, 3, 4}) {
+				String name = path + ", " + threads + " threads";
+				BatchInferenceService service = new BatchInferenceService(model, threads);
+				try {
+					check_jobs(service, jobs, expected, name);
+					Map<String, Long> timings = service.timings();
+					check_equal(Long.valueOf(jobs.size()), timings.get("jobs"), name + ": jobs counted");
+					check_equal(Long.valueOf(expected_windows), timings.get("windows"), name + ": windows counted");
+
+					// fewer jobs than shards:
+					check_jobs(service, jobs.subList(40, 43), Arrays.copyOfRange(expected, 40, 43), name + ", 3 jobs");
+					check_equal(0, service.predict_proba(new ArrayList<BatchInferenceService.Job>()).length, name + ": no jobs");
+
+					if (model.projection_tables == null) {
+						// the scorers kept by the workers must pick up the tables:
+						model.use_projection_tables();
+						check_jobs(service, jobs, expected, name + ", tables added between runs");
+						model.projection_tables = null;
+					}
+				} finally {
+					service.close();
+				}
+			}
+		}
+		System.out.println("BatchInferenceServiceTest passed");
+	}
+
+	private static void check_jobs(BatchInferenceService service, List<BatchInferenceService.Job> jobs, double[][] expected, String name) throws Exception {
+		double[][] probabilities = service.predict_proba(jobs);
+		check_equal(jobs.size(), probabilities.length, name + ": results");
+		for (int j = 0; j < jobs.size(); ++j) {
+			check_close(expected[j], probabilities[j], TOLERANCE, name + ", job " + j);
+		}
+		int[][] labels = service.predict(jobs);
+		for (int j = 0; j < jobs.size(); ++j) {
+			int[] expected_labels = new int[labels[j].length];
+			service.model.labels(probabilities[j], expected_labels);
+			check(Arrays.equals(expected_labels, labels[j]), name + ", labels of job " + j + ": expected "
+					+ Arrays.toString(expected_labels) + " but got " + Arrays.toString(labels[j]));
+		}
+	}
+
+	private static double[] mean_of_windows(ObjectLM model, BatchInferenceService.Job job) {
+		double[] mean = new double[model.prediction_size];
+		int windows = 0;
+		for (int start = 0; start + model.window <= job.indices.length; ++start) {
+			List<Integer> window = new ArrayList<Integer>();
+			for (int i = 0; i < model.window; ++i) {
+				window.add(job.indices[start + i]);
+			}
+			double[] probabilities = model.predict_proba(window, job.object_index).getMatrix().data;
+			for (int k = 0; k < mean.length; ++k) {
+				mean[k] += probabilities[k];
+			}
+			windows += 1;
+		}
+		for (int k = 0; k < mean.length; ++k) {
+			mean[k] = windows > 0 ? mean[k] / windows : 0.0;
+		}
+		return mean;
+	}
+}
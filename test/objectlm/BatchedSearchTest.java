@@ -0,0 +1,105 @@
+package objectlm;
+
+import static objectlm.Checks.check_equal;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import objectlm.utils.Triple;
+
+import org.ejml.simple.SimpleMatrix;
+
+/**
+ * most_similar_objects returns exactly what most_similar_object returns
+ * for each query on its own, for ids (each excluded from its results)
+ * and for query vectors, over more rows and queries than one block of
+ * the batched scan, for each kind of store, with ties between duplicate
+ * objects, for top-n larger than the catalogue, and through an object
+ * index.
+ */
+public class BatchedSearchTest {
+
+	private static final int OBJECTS = 700;
+
+	public static void main(String[] args) throws Exception {
+		ObjectLM heap = with_duplicates(TestModels.model(20, OBJECTS, 37));
+		check_batches(heap, "heap");
+
+		ObjectLM lean = with_duplicates(TestModels.model(20, OBJECTS, 37));
+		lean.use_lean_storage();
+		check_batches(lean, "lean");
+
+		ObjectLM single = with_duplicates(TestModels.model(20, OBJECTS, 37));
+		single.use_single_precision();
+		check_batches(single, "single precision");
+
+		File file = File.createTempFile("objectlm", ".snapshot");
+		try {
+			TestModels.model(20, OBJECTS, 37).save_snapshot(file.getPath());
+			// mapped rows followed by rows added on the heap:
+			check_batches(with_duplicates(ObjectLM.open_snapshot(file.getPath(), true)), "mapped");
+		} finally {
+			file.delete();
+		}
+
+		heap.use_quantized_object_index(4);
+		check_batches(heap, "quantized index");
+		System.out.println("BatchedSearchTest passed");
+	}
+
+	/*
+	 * The model with copies of its first objects added, so that
+	 * searches meet ties.
+	 */
+	private static ObjectLM with_duplicates(ObjectLM model) {
+		List<String> names = new ArrayList<String>();
+		double[][] vectors = new double[30][];
+		for (int i = 0; i < vectors.length; ++i) {
+			names.add("copy of object " + i);
+			vectors[i] = model.get_object_vector(i).getMatrix().data;
+		}
+		model.add_objects(names, vectors);
+		return model;
+	}
+
+	private static void check_batches(ObjectLM model, String name) {
+		Random random = new Random(3);
+		// more queries than one block of queries, duplicates included:
+		List<String> ids = new ArrayList<String>();
+		for (int q = 0; q < 150; ++q) {
+			ids.add(q < 10 ? "object " + q : model.index2object.get(random.nextInt(model.number_of_objects())));
+		}
+		SimpleMatrix queries = new SimpleMatrix(ids.size(), model.object_size);
+		for (int q = 0; q < ids.size(); ++q) {
+			for (int j = 0; j < model.object_size; ++j) {
+				queries.set(q, j, random.nextGaussian());
+			}
+		}
+		for (Integer topn : new Integer[] {1, 10, null, model.number_of_objects() + 5}) {
+			String run = name + ", top " + topn;
+			List<ArrayList<Triple<Double, String, Integer>>> by_id = model.most_similar_objects(ids, topn);
+			List<ArrayList<Triple<Double, String, Integer>>> by_vector = model.most_similar_objects(queries, topn);
+			check_equal(ids.size(), by_id.size(), run + ": results by id");
+			check_equal(ids.size(), by_vector.size(), run + ": results by vector");
+			for (int q = 0; q < ids.size(); ++q) {
+				check_results(model.most_similar_object(ids.get(q), topn), by_id.get(q), run + ", query " + ids.get(q));
+				check_results(model.most_similar_object(queries.extractVector(true, q), topn), by_vector.get(q), run + ", query vector " + q);
+			}
+		}
+	}
+
+	/*
+	 * Same rows, names and scores, in the same order (Triple compares
+	 * its fields by reference).
+	 */
+	private static void check_results(List<Triple<Double, String, Integer>> expected, List<Triple<Double, String, Integer>> actual, String name) {
+		check_equal(expected.size(), actual.size(), name + ": results");
+		for (int k = 0; k < expected.size(); ++k) {
+			check_equal(expected.get(k).z, actual.get(k).z, name + ": row of result " + k);
+			check_equal(expected.get(k).y, actual.get(k).y, name + ": name of result " + k);
+			check_equal(expected.get(k).x, actual.get(k).x, name + ": score of result " + k);
+		}
+	}
+}
@@ -0,0 +1,34 @@
+package objectlm;
+
+/**
+ * Assertions of the tests under test/, which are plain classes with a
+ * main method so they run without a test framework (see AllTests). A
+ * failed check throws an AssertionError naming what differed.
+ */
+public class Checks {
+
+	public static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new AssertionError(message);
+		}
+	}
+
+	public static void check_equal(Object expected, Object actual, String message) {
+		if (expected == null ? actual != null : !expected.equals(actual)) {
+			throw new AssertionError(message + ": expected " + expected + " but got " + actual);
+		}
+	}
+
+	public static void check_close(double expected, double actual, double tolerance, String message) {
+		if (!(Math.abs(expected - actual) <= tolerance)) {
+			throw new AssertionError(message + ": expected " + expected + " but got " + actual);
+		}
+	}
+
+	public static void check_close(double[] expected, double[] actual, double tolerance, String message) {
+		check_equal(expected.length, actual.length, message + " (length)");
+		for (int i = 0; i < expected.length; ++i) {
+			check_close(expected[i], actual[i], tolerance, message + " [" + i + "]");
+		}
+	}
+}
@@ -0,0 +1,181 @@
+package objectlm;
+
+import static objectlm.Checks.check;
+import static objectlm.Checks.check_close;
+import static objectlm.Checks.check_equal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * WordTokenizer splits text like convert_to_indices does on single
+ * spaces, and on any run of whitespace otherwise, across the refills of
+ * its buffer and from a Reader returning a character at a time. A
+ * document predicted from a Reader, from a UTF-8 stream (gzip compressed
+ * or not, which is detected) or from a file gets the mean probabilities
+ * and the votes of predict_proba(List) over its windows.
+ */
+public class DocumentPredictionTest {
+
+	private static final double TOLERANCE = 1e-12;
+
+	public static void main(String[] args) throws Exception {
+		ObjectLM model = TestModels.model(50, 10, 31);
+		Random random = new Random(10);
+
+		// single spaces, known and unknown words (some capitalized):
+		StringBuilder sentence = new StringBuilder();
+		for (int i = 0; i < 40; ++i) {
+			sentence.append(i > 0 ? " " : "").append(random_word(model, random));
+		}
+		check_equal(model.convert_to_indices(sentence.toString()), indices(model, tokens(new StringReader(sentence.toString()))),
+				"tokenized like convert_to_indices");
+
+		// any whitespace, and words straddling the 8192 characters of the buffer:
+		String[] separators = {" ", "  ", "\t", "\n", "\r\n", " \n\t "};
+		StringBuilder text = new StringBuilder("\n ");
+		List<String> words = new ArrayList<String>();
+		while (text.length() < 30000) {
+			String word = random_word(model, random);
+			words.add(word);
+			text.append(word).append(separators[random.nextInt(separators.length)]);
+		}
+		check_equal(words, tokens(new StringReader(text.toString())), "words of the text");
+		check_equal(words, tokens(new OneCharacterReader(text.toString())), "words read a character at a time");
+		check_equal(Arrays.asList(), tokens(new StringReader(" \n\t")), "only whitespace");
+		check_equal(Arrays.asList("last"), tokens(new StringReader("last")), "a word ending the text");
+
+		List<Integer> indices = indices(model, words);
+		DocumentPrediction expected = predict_windows(model, indices, 3);
+		check_prediction(expected, model.predict_document(new StringReader(text.toString()), 3), "reader");
+		check_prediction(expected, model.predict_document(new OneCharacterReader(text.toString()), 3), "reader of one character");
+
+		byte[] utf8 = text.toString().getBytes("UTF-8");
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		OutputStream gzip = new GZIPOutputStream(compressed);
+		gzip.write(utf8);
+		gzip.close();
+		check_prediction(expected, model.predict_document(new ByteArrayInputStream(utf8), 3), "utf-8 stream");
+		check_prediction(expected, model.predict_document(new ByteArrayInputStream(compressed.toByteArray()), 3), "gzip stream");
+
+		File file = File.createTempFile("objectlm", ".txt.gz");
+		try {
+			FileOutputStream out = new FileOutputStream(file);
+			out.write(compressed.toByteArray());
+			out.close();
+			check_prediction(expected, model.predict_document(file.getPath(), 3), "gzip file");
+		} finally {
+			file.delete();
+		}
+
+		// shorter than a window, down to streams too short to hold a gzip header:
+		for (String small : new String[] {"", "a", "word_1 word_2"}) {
+			DocumentPrediction empty = model.predict_document(new ByteArrayInputStream(small.getBytes("UTF-8")), 3);
+			check_prediction(predict_windows(model, indices(model, tokens(new StringReader(small))), 3), empty, "text \"" + small + "\"");
+			check_equal(0, empty.windows, "no window in \"" + small + "\"");
+		}
+		System.out.println("DocumentPredictionTest passed");
+	}
+
+	/*
+	 * A word of the vocabulary, or an unknown one, lowercase or capitalized.
+	 */
+	private static String random_word(ObjectLM model, Random random) {
+		switch (random.nextInt(4)) {
+			case 0:
+				return "Unknown" + random.nextInt(100);
+			case 1:
+				return "unknown" + random.nextInt(100);
+			default:
+				return model.index2word.get(random.nextInt(model.index2word.size()));
+		}
+	}
+
+	private static List<String> tokens(Reader reader) throws IOException {
+		WordTokenizer tokenizer = new WordTokenizer(reader);
+		List<String> words = new ArrayList<String>();
+		for (String word = tokenizer.next(); word != null; word = tokenizer.next()) {
+			words.add(word);
+		}
+		check_equal(null, tokenizer.next(), "no word after the end");
+		return words;
+	}
+
+	private static List<Integer> indices(ObjectLM model, List<String> words) {
+		List<Integer> indices = new ArrayList<Integer>();
+		for (String word : words) {
+			indices.add(model.get_index(word));
+		}
+		return indices;
+	}
+
+	/*
+	 * The prediction of a document built window by window with
+	 * predict_proba(List).
+	 */
+	private static DocumentPrediction predict_windows(ObjectLM model, List<Integer> indices, int object_index) {
+		DocumentPrediction prediction = new DocumentPrediction(model, object_index);
+		prediction.tokens = indices.size();
+		int[] labels = new int[model.output_classes.size() + model.output_sigmoid_classes];
+		for (int start = 0; start + model.window <= indices.size(); ++start) {
+			double[] probabilities = model.predict_proba(indices.subList(start, start + model.window), object_index).getMatrix().data;
+			model.labels(probabilities, labels);
+			prediction.vote(labels);
+			for (int k = 0; k < probabilities.length; ++k) {
+				prediction.mean_probabilities[k] += probabilities[k];
+			}
+			prediction.windows += 1;
+		}
+		for (int k = 0; k < model.prediction_size; ++k) {
+			prediction.mean_probabilities[k] = prediction.windows > 0 ? prediction.mean_probabilities[k] / prediction.windows : 0.0;
+		}
+		return prediction;
+	}
+
+	private static void check_prediction(DocumentPrediction expected, DocumentPrediction actual, String name) {
+		check_equal(expected.object_index, actual.object_index, name + ": object");
+		check_equal(expected.tokens, actual.tokens, name + ": tokens");
+		check_equal(expected.windows, actual.windows, name + ": windows");
+		check_close(expected.mean_probabilities, actual.mean_probabilities, TOLERANCE, name + ": mean probabilities");
+		for (int c = 0; c < expected.softmax_votes.size(); ++c) {
+			check(Arrays.equals(expected.softmax_votes.get(c), actual.softmax_votes.get(c)), name + ": votes of softmax class " + c);
+		}
+		check(Arrays.equals(expected.sigmoid_votes, actual.sigmoid_votes), name + ": votes of the sigmoid classes");
+		check(Arrays.equals(expected.labels(), actual.labels()), name + ": labels");
+		check(Arrays.equals(expected.vote_labels(), actual.vote_labels()), name + ": labels voted");
+	}
+
+	/*
+	 * Reader returning one character per read, as a slow stream might.
+	 */
+	private static class OneCharacterReader extends Reader {
+		private final String text;
+		private int position;
+
+		OneCharacterReader(String text) {
+			this.text = text;
+		}
+
+		public int read(char[] buffer, int offset, int length) {
+			if (position == text.length()) {
+				return -1;
+			}
+			buffer[offset] = text.charAt(position++);
+			return 1;
+		}
+
+		public void close() {
+		}
+	}
+}
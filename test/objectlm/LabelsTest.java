@@ -0,0 +1,69 @@
+package objectlm;
+
+import static objectlm.Checks.check;
+import static objectlm.Checks.check_equal;
+
+import java.util.Arrays;
+
+/**
+ * predict gives exactly the labels of the probabilities of predict_proba
+ * where labelling the logits directly would not: softmax logits close
+ * enough for their exponentials to tie, and sigmoid logits a hair below
+ * zero, which still round up. A softmax class whose logits are NaN is
+ * refused, and a NaN sigmoid is labelled 0.
+ */
+public class LabelsTest {
+
+	public static void main(String[] args) throws Exception {
+		// with a null projection the logits are the bias:
+		ObjectLM model = TestModels.model(20, 5, 3);
+		model.projection_matrix.zero();
+		int[] window = {1, 2, 3};
+
+		set_logits(model, 0.0, 1e-17, -5.0, 2.0, 2.0, 1.0, 0.0, -1e-17, 0.0);
+		check_equal(Arrays.toString(new int[] {0, 0, 1, 1}), Arrays.toString(predict(model, window)), "labels on near ties");
+		check_equal(Arrays.toString(labels_of_probabilities(model, window)), Arrays.toString(predict(model, window)), "labels on near ties");
+
+		set_logits(model, 0.5, 0.0, -5.0, 2.0, 3.0, 1.0, 0.0, 40.0, Double.NaN);
+		check_equal(Arrays.toString(new int[] {0, 1, 1, 0}), Arrays.toString(predict(model, window)), "NaN sigmoid");
+		check_equal(Arrays.toString(labels_of_probabilities(model, window)), Arrays.toString(predict(model, window)), "NaN sigmoid");
+
+		set_logits(model, Double.NaN, Double.NaN, Double.NaN, 2.0, 3.0, 1.0, 0.0, 1.0, 1.0);
+		check(throws_illegal_argument(model, window, false), "predict with NaN softmax logits should throw");
+		check(throws_illegal_argument(model, window, true), "labels of NaN softmax probabilities should throw");
+		System.out.println("LabelsTest passed");
+	}
+
+	private static void set_logits(ObjectLM model, double... logits) {
+		for (int i = 0; i < logits.length; ++i) {
+			model.bias_vector.set(i, logits[i]);
+		}
+	}
+
+	private static int[] predict(ObjectLM model, int[] window) {
+		int[] labels = new int[model.output_classes.size() + model.output_sigmoid_classes];
+		model.predict(window, 0, labels);
+		return labels;
+	}
+
+	private static int[] labels_of_probabilities(ObjectLM model, int[] window) {
+		double[] probabilities = new double[model.prediction_size];
+		model.predict_proba(window, 0, probabilities);
+		int[] labels = new int[model.output_classes.size() + model.output_sigmoid_classes];
+		model.labels(probabilities, labels);
+		return labels;
+	}
+
+	private static boolean throws_illegal_argument(ObjectLM model, int[] window, boolean from_probabilities) {
+		try {
+			if (from_probabilities) {
+				labels_of_probabilities(model, window);
+			} else {
+				predict(model, window);
+			}
+		} catch (IllegalArgumentException e) {
+			return true;
+		}
+		return false;
+	}
+}
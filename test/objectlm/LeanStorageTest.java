@@ -0,0 +1,87 @@
+package objectlm;
+
+import static objectlm.Checks.check;
+import static objectlm.Checks.check_close;
+import static objectlm.Checks.check_equal;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import objectlm.utils.Triple;
+
+/**
+ * A model switched to lean storage rebuilds the same word and object
+ * vectors, predicts and searches like the model keeping the raw
+ * matrices, and still does after the same objects are added to both; an
+ * added zero vector reads back as zeros.
+ */
+public class LeanStorageTest {
+
+	private static final double TOLERANCE = 1e-12;
+
+	public static void main(String[] args) throws Exception {
+		ObjectLM reference = TestModels.model(60, 40, 23);
+		ObjectLM lean = TestModels.model(60, 40, 23);
+		lean.use_lean_storage();
+		check(lean.word_vectors instanceof NormalizedEmbeddingStore, "word vectors stored normalized");
+		check(lean.object_vectors instanceof NormalizedEmbeddingStore, "object vectors stored normalized");
+		check(lean.model_matrix == null && lean.object_matrix == null, "raw matrices released");
+		check_same(reference, lean, "lean");
+
+		double[][] vectors = new double[4][reference.object_size];
+		Random random = new Random(8);
+		for (int i = 1; i < vectors.length; ++i) {
+			for (int j = 0; j < reference.object_size; ++j) {
+				vectors[i][j] = random.nextGaussian();
+			}
+		}
+		List<String> names = Arrays.asList("zero", "new 1", "new 2", "new 3");
+		int[] expected_added = reference.add_objects(names, vectors);
+		int[] added = lean.add_objects(names, vectors);
+		check(Arrays.equals(expected_added, added), "same positions for the added objects");
+		check(lean.object_vectors instanceof NormalizedEmbeddingStore, "added objects stored normalized");
+		double[] zero = new double[lean.object_size];
+		lean.object_vectors.copy_row(added[0], zero, 0);
+		check_close(new double[lean.object_size], zero, 0.0, "added zero vector");
+		check_same(reference, lean, "lean after add_objects");
+		System.out.println("LeanStorageTest passed");
+	}
+
+	private static void check_same(ObjectLM expected, ObjectLM actual, String name) {
+		for (int word = 0; word < expected.index2word.size(); ++word) {
+			check_close(expected.get_word_vector(word).getMatrix().data, actual.get_word_vector(word).getMatrix().data,
+					TOLERANCE, name + ", vector of word " + word);
+		}
+		for (int object = 0; object < expected.number_of_objects(); ++object) {
+			check_close(expected.get_object_vector(object).getMatrix().data, actual.get_object_vector(object).getMatrix().data,
+					TOLERANCE, name + ", vector of object " + object);
+		}
+		Random random = new Random(5);
+		for (int n = 0; n < 50; ++n) {
+			List<Integer> window = TestModels.window(expected, random);
+			int object = random.nextInt(expected.number_of_objects());
+			check_close(expected.predict_proba(window, object).getMatrix().data, actual.predict_proba(window, object).getMatrix().data,
+					TOLERANCE, name + ", probabilities of window " + n);
+		}
+		// objects with a zero vector have no direction to search from:
+		for (int object = 0; object < expected.number_of_objects(); object += 5) {
+			String id = expected.index2object.get(object);
+			if (!id.equals("zero")) {
+				check_results(expected.most_similar_object(id, 5), actual.most_similar_object(id, 5), name + ", neighbors of " + id);
+			}
+		}
+		for (int word = 0; word < expected.index2word.size(); word += 9) {
+			String w = expected.index2word.get(word);
+			check_results(expected.most_similar_word(w, 5), actual.most_similar_word(w, 5), name + ", neighbors of " + w);
+		}
+	}
+
+	private static void check_results(List<Triple<Double, String, Integer>> expected, List<Triple<Double, String, Integer>> actual, String name) {
+		check_equal(expected.size(), actual.size(), name + ": results");
+		for (int k = 0; k < expected.size(); ++k) {
+			check_equal(expected.get(k).y, actual.get(k).y, name + ": result " + k);
+			check_close(expected.get(k).x, actual.get(k).x, TOLERANCE, name + ": score " + k);
+		}
+	}
+}
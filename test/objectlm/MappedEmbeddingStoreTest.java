@@ -0,0 +1,115 @@
+package objectlm;
+
+import static objectlm.Checks.check_close;
+import static objectlm.Checks.check_equal;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import objectlm.utils.VectorUtils;
+
+import org.ejml.simple.SimpleMatrix;
+
+/**
+ * A MappedEmbeddingStore, with its row norms stored or recomputed, reads
+ * the same raw rows, normalized rows and dot products as a heap
+ * MatrixEmbeddingStore of the same matrix, also once the snapshot is
+ * closed and from several threads, and rows appended to it match the
+ * rows appended to the heap store without changing the original.
+ */
+public class MappedEmbeddingStoreTest {
+
+	private static final int ROWS = 37;
+	private static final int COLS = 6;
+	private static final double TOLERANCE = 1e-15;
+
+	public static void main(String[] args) throws Exception {
+		Random random = new Random(12);
+		SimpleMatrix matrix = SimpleMatrix.random(ROWS, COLS, -1, 1, random);
+		final MatrixEmbeddingStore heap = new MatrixEmbeddingStore(matrix);
+
+		File file = File.createTempFile("objectlm", ".snapshot");
+		try {
+			SnapshotWriter writer = new SnapshotWriter(file.getPath());
+			try {
+				double[] norms = VectorUtils.row_norms(matrix);
+				writer.add_matrix("with_norms", matrix);
+				writer.add_doubles("with_norms_norms", ROWS, 1, norms);
+				writer.add_matrix("without_norms", matrix);
+				writer.close();
+			} finally {
+				writer.abort();
+			}
+
+			ModelSnapshot snapshot = new ModelSnapshot(file.getPath());
+			MappedEmbeddingStore with_norms = new MappedEmbeddingStore(snapshot, "with_norms", "with_norms_norms");
+			MappedEmbeddingStore without_norms = new MappedEmbeddingStore(snapshot, "without_norms", "without_norms_norms");
+			snapshot.close();
+
+			for (final MappedEmbeddingStore mapped : new MappedEmbeddingStore[] {with_norms, without_norms}) {
+				final String name = mapped == with_norms ? "stored norms" : "recomputed norms";
+				check_same(heap, mapped, random, name);
+
+				// the per-thread row buffers:
+				ExecutorService pool = Executors.newFixedThreadPool(4);
+				try {
+					List<Future<Void>> results = new ArrayList<Future<Void>>();
+					for (int t = 0; t < 4; ++t) {
+						final long seed = t;
+						results.add(pool.submit(new Callable<Void>() {
+							public Void call() {
+								check_same(heap, mapped, new Random(seed), name + ", thread " + seed);
+								return null;
+							}
+						}));
+					}
+					for (Future<Void> result : results) {
+						SavedModelLoader.await(result);
+					}
+				} finally {
+					pool.shutdown();
+				}
+
+				double[][] new_rows = new double[3][COLS];
+				for (int j = 0; j < COLS; ++j) {
+					new_rows[0][j] = random.nextGaussian();
+					new_rows[2][j] = random.nextGaussian();
+				}
+				// new_rows[1] is a zero row.
+				EmbeddingStore grown = mapped.append_rows(new_rows);
+				check_equal(ROWS, mapped.number_of_rows(), name + ": rows of the original");
+				check_same(heap.append_rows(new_rows), grown, random, name + ", appended");
+				EmbeddingStore grown_again = grown.append_rows(new double[][] {new_rows[2]});
+				check_same(heap.append_rows(new_rows).append_rows(new double[][] {new_rows[2]}), grown_again, random, name + ", appended twice");
+			}
+		} finally {
+			file.delete();
+		}
+		System.out.println("MappedEmbeddingStoreTest passed");
+	}
+
+	private static void check_same(EmbeddingStore expected, EmbeddingStore actual, Random random, String name) {
+		check_equal(expected.number_of_rows(), actual.number_of_rows(), name + ": rows");
+		check_equal(expected.dimension(), actual.dimension(), name + ": dimension");
+		double[] x = new double[COLS];
+		for (int j = 0; j < COLS; ++j) {
+			x[j] = random.nextGaussian();
+		}
+		double[] expected_row = new double[COLS + 2], actual_row = new double[COLS + 2];
+		for (int row = 0; row < expected.number_of_rows(); ++row) {
+			expected.copy_row(row, expected_row, 2);
+			actual.copy_row(row, actual_row, 2);
+			check_close(expected_row, actual_row, 0.0, name + ": row " + row);
+			expected.copy_normalized_row(row, expected_row, 1);
+			actual.copy_normalized_row(row, actual_row, 1);
+			check_close(expected_row, actual_row, TOLERANCE, name + ": normalized row " + row);
+			check_close(expected.normalized_dot(row, x), actual.normalized_dot(row, x), TOLERANCE, name + ": dot with row " + row);
+		}
+	}
+}
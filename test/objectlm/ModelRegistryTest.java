@@ -0,0 +1,153 @@
+package objectlm;
+
+import static objectlm.Checks.check;
+import static objectlm.Checks.check_close;
+import static objectlm.Checks.check_equal;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * ModelRegistry swaps snapshot files in while an instance fetched before
+ * the swap keeps predicting like the snapshot it was read from, keeps
+ * `keep_previous` versions most recent first, rolls back to them in
+ * order, and leaves the served model alone when a load fails. The
+ * watcher only tries complete save directories of a later epoch than the
+ * one served, and records the one that fails to load in last_error.
+ */
+public class ModelRegistryTest {
+
+	private static final double TOLERANCE = 1e-12;
+
+	public static void main(String[] args) throws Exception {
+		check_equal(4, ModelRegistry.epoch_of("objectlm_window_10_lm_20_objlm_20_4"), "epoch of a save directory");
+		check_equal(12, ModelRegistry.epoch_of("run_12"), "two digit epoch");
+		check_equal(-1, ModelRegistry.epoch_of("run_"), "no epoch after the underscore");
+		check_equal(-1, ModelRegistry.epoch_of("run_final"), "not a number");
+		check_equal(-1, ModelRegistry.epoch_of("run"), "no underscore");
+
+		File directory = File.createTempFile("objectlm", ".registry");
+		directory.delete();
+		directory.mkdir();
+		ModelRegistry registry = new ModelRegistry(2);
+		try {
+			// four versions of the model, saved as snapshots `run_1` to `run_4`:
+			ObjectLM[] versions = new ObjectLM[4];
+			String[] paths = new String[4];
+			for (int v = 0; v < 4; ++v) {
+				versions[v] = TestModels.model(30, 12, 40 + v);
+				paths[v] = new File(directory, "run_" + (v + 1)).getPath();
+				versions[v].save_snapshot(paths[v]);
+			}
+			check(registry.current() == null && registry.current_path() == null, "an empty registry serves nothing");
+			check(!registry.rollback(), "nothing to roll back to");
+
+			ObjectLM first = registry.load_now(paths[0]);
+			check(registry.current() == first, "the loaded model is current");
+			check_equal(paths[0], registry.current_path(), "current path");
+			check_predicts_like(versions[0], first, "first version");
+			check_equal(Arrays.asList(), registry.previous_paths(), "nothing replaced yet");
+
+			// fetched by a request before the next swaps:
+			ObjectLM in_flight = registry.current();
+			for (int v = 1; v < 4; ++v) {
+				check(registry.load_now(paths[v]) == registry.current(), "version " + (v + 1) + " is current");
+			}
+			check_predicts_like(versions[3], registry.current(), "latest version");
+			check_predicts_like(versions[0], in_flight, "instance fetched before the swaps");
+			check_equal(Arrays.asList(paths[2], paths[1]), registry.previous_paths(), "two versions kept, most recent first");
+
+			// a failed load leaves the served model alone:
+			ObjectLM served = registry.current();
+			boolean failed = false;
+			try {
+				registry.load(new File(directory, "missing").getPath()).get();
+			} catch (ExecutionException e) {
+				failed = true;
+			}
+			check(failed, "loading a missing file should fail");
+			check(registry.current() == served, "the served model survives a failed load");
+
+			check(registry.rollback(), "roll back to version 3");
+			check_equal(paths[2], registry.current_path(), "rolled back to version 3");
+			check_predicts_like(versions[2], registry.current(), "version 3 after rollback");
+			check(registry.rollback(), "roll back to version 2");
+			check_equal(paths[1], registry.current_path(), "rolled back to version 2");
+			check_equal(Arrays.asList(), registry.previous_paths(), "every kept version used");
+			check(!registry.rollback(), "nothing left to roll back to");
+			check_predicts_like(versions[1], registry.current(), "version 2 after rollbacks");
+
+			// save directories: complete ones hold the four artifacts.
+			File watched = new File(directory, "saves");
+			watched.mkdir();
+			make_save_directory(watched, "run_2", true);
+			make_save_directory(watched, "run_7", false);
+			make_save_directory(watched, "other_9", true);
+			check(ModelRegistry.latest_epoch(watched, "run_", -1).getName().equals("run_2"), "incomplete and other directories are skipped");
+			check(ModelRegistry.latest_epoch(watched, "run_", 2) == null, "no complete epoch after 2");
+			make_save_directory(watched, "run_10", true);
+			check(ModelRegistry.latest_epoch(watched, "run_", -1).getName().equals("run_10"), "epochs compare as numbers");
+
+			// serving `run_2`'s snapshot: only epochs after 2 are loaded.
+			// The directories hold an empty parameters.mat, so they fail to load.
+			delete(new File(watched, "run_10"));
+			registry.watch(watched.getPath(), "run_", 10);
+			Thread.sleep(200);
+			check_equal(null, registry.last_error(), "epoch 2 is already served");
+			check_equal(paths[1], registry.current_path(), "nothing swapped in");
+
+			make_save_directory(watched, "run_3", true);
+			long deadline = System.currentTimeMillis() + 10000;
+			while (registry.last_error() == null && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			check(registry.last_error() != null, "the broken epoch 3 should be recorded");
+			check_equal(new File(watched, "run_3").getPath(), registry.last_error().x, "path of the failed load");
+			check_equal(paths[1], registry.current_path(), "the served model survives the failed watch");
+			check_predicts_like(versions[1], registry.current(), "version 2 after the failed watch");
+		} finally {
+			registry.close();
+			delete(directory);
+		}
+		System.out.println("ModelRegistryTest passed");
+	}
+
+	private static void check_predicts_like(ObjectLM expected, ObjectLM actual, String name) {
+		Random random = new Random(3);
+		double[] expected_out = new double[expected.prediction_size];
+		double[] actual_out = new double[actual.prediction_size];
+		for (int n = 0; n < 20; ++n) {
+			int[] window = new int[expected.window];
+			for (int i = 0; i < window.length; ++i) {
+				window[i] = random.nextInt(expected.index2word.size());
+			}
+			int object = random.nextInt(expected.number_of_objects());
+			expected.predict_proba(window, object, expected_out);
+			actual.predict_proba(window, object, actual_out);
+			check_close(expected_out, actual_out, TOLERANCE, name + ", window " + n);
+		}
+	}
+
+	private static void make_save_directory(File parent, String name, boolean complete) throws IOException {
+		File directory = new File(parent, name);
+		directory.mkdir();
+		String[] artifacts = {"parameters.mat", "__dict__.txt", "__vocab__.gz", "__objects__.gz"};
+		for (int i = 0; i < (complete ? artifacts.length : artifacts.length - 1); ++i) {
+			new FileOutputStream(new File(directory, artifacts[i])).close();
+		}
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,132 @@
+package objectlm;
+
+import static objectlm.Checks.check;
+import static objectlm.Checks.check_equal;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import objectlm.utils.Triple;
+
+/**
+ * A model saved with save_snapshot and opened again, on the heap or
+ * mapped, holds the same parameters and gives the same predictions and
+ * searches. A snapshot without the optional row norms too. Saving over
+ * a mapped snapshot or aborting a write leaves readers of the old file
+ * and the file itself intact.
+ */
+public class ModelSnapshotTest {
+
+	public static void main(String[] args) throws Exception {
+		ObjectLM model = TestModels.model(60, 25, 11);
+		File file = File.createTempFile("objectlm", ".snapshot");
+		File without_norms = File.createTempFile("objectlm", ".snapshot");
+		try {
+			model.save_snapshot(file.getPath());
+			copy_without_norms(file.getPath(), without_norms.getPath());
+			for (boolean map_objects : new boolean[] {false, true}) {
+				check_same(model, ObjectLM.open_snapshot(file.getPath(), map_objects), "snapshot (mapped = " + map_objects + ")");
+				check_same(model, ObjectLM.open_snapshot(without_norms.getPath(), map_objects), "snapshot without norms (mapped = " + map_objects + ")");
+			}
+
+			// saving over a snapshot that is still mapped replaces the
+			// file without disturbing the model reading it:
+			ObjectLM mapped = ObjectLM.open_snapshot(file.getPath(), true);
+			ObjectLM other = TestModels.model(60, 25, 12);
+			other.save_snapshot(file.getPath());
+			check_same(model, mapped, "mapped snapshot saved over");
+			check_same(other, ObjectLM.open_snapshot(file.getPath(), true), "snapshot saved over a mapped one");
+
+			// an aborted write leaves the target and its directory as they were:
+			SnapshotWriter writer = new SnapshotWriter(file.getPath());
+			writer.add_ints("parameters", new int[] {1, 2, 3});
+			writer.abort();
+			check_same(other, ObjectLM.open_snapshot(file.getPath(), false), "snapshot after an aborted write");
+			for (String name : file.getAbsoluteFile().getParentFile().list()) {
+				check(!(name.startsWith(file.getName() + ".") && name.endsWith(".tmp")), "left behind " + name);
+			}
+		} finally {
+			file.delete();
+			without_norms.delete();
+		}
+		System.out.println("ModelSnapshotTest passed");
+	}
+
+	/*
+	 * Rewrite every entry of a snapshot except the row norms.
+	 */
+	private static void copy_without_norms(String from, String to) throws Exception {
+		ModelSnapshot snapshot = new ModelSnapshot(from);
+		SnapshotWriter writer = new SnapshotWriter(to);
+		try {
+			writer.add_ints("parameters", snapshot.read_ints("parameters"));
+			int[] classes = snapshot.read_ints("output_classes");
+			for (int i = 0; i < classes.length; ++i) {
+				writer.add_strings("softmax_labels_" + i, snapshot.read_strings("softmax_labels_" + i));
+			}
+			writer.add_ints("output_classes", classes);
+			writer.add_strings("sigmoid_labels", snapshot.read_strings("sigmoid_labels"));
+			writer.add_strings("vocab", snapshot.read_strings("vocab"));
+			writer.add_strings("objects", snapshot.read_strings("objects"));
+			for (String name : new String[] {"projection_matrix", "bias_vector", "model_matrix", "object_matrix"}) {
+				writer.add_matrix(name, snapshot.read_matrix(name));
+			}
+			writer.close();
+		} finally {
+			writer.abort();
+			snapshot.close();
+		}
+		check(!new ModelSnapshot(to).has("object_norms"), "the copy should not hold the norms");
+	}
+
+	static void check_same(ObjectLM expected, ObjectLM actual, String name) {
+		check_equal(expected.window, actual.window, name + " window");
+		check_equal(expected.size, actual.size, name + " size");
+		check_equal(expected.object_size, actual.object_size, name + " object size");
+		check_equal(expected.UnknownWordIndex, actual.UnknownWordIndex, name + " unknown word");
+		check_equal(expected.output_classes, actual.output_classes, name + " output classes");
+		check_equal(expected.output_labels, actual.output_labels, name + " output labels");
+		check_equal(expected.output_sigmoid_labels, actual.output_sigmoid_labels, name + " sigmoid labels");
+		check_equal(expected.index2word, actual.index2word, name + " vocabulary");
+		check_equal(expected.index2object, actual.index2object, name + " objects");
+		check_equal(expected.word2index.get("mot_7_é"), actual.word2index.get("mot_7_é"), name + " word look-up");
+
+		check(Arrays.equals(expected.projection_matrix.getMatrix().data, actual.projection_matrix.getMatrix().data), name + " projection matrix");
+		check(Arrays.equals(expected.bias_vector.getMatrix().data, actual.bias_vector.getMatrix().data), name + " bias vector");
+		check_rows(expected.word_vectors, actual.word_vectors, name + " word vectors");
+		check_rows(expected.object_vectors, actual.object_vectors, name + " object vectors");
+
+		Random random = new Random(3);
+		for (int i = 0; i < 50; ++i) {
+			List<Integer> window = TestModels.window(expected, random);
+			int object_index = random.nextInt(expected.number_of_objects());
+			check(Arrays.equals(expected.predict_proba(window, object_index).getMatrix().data,
+					actual.predict_proba(window, object_index).getMatrix().data), name + " predictions");
+		}
+		check_same_results(expected.most_similar_object("object 3", 10), actual.most_similar_object("object 3", 10), name + " object search");
+		check_same_results(expected.most_similar_word("word_2", 10), actual.most_similar_word("word_2", 10), name + " word search");
+	}
+
+	private static void check_rows(EmbeddingStore expected, EmbeddingStore actual, String name) {
+		check_equal(expected.number_of_rows(), actual.number_of_rows(), name + " rows");
+		double[] x = new double[expected.dimension()], y = new double[actual.dimension()];
+		for (int row = 0; row < expected.number_of_rows(); ++row) {
+			expected.copy_row(row, x, 0);
+			actual.copy_row(row, y, 0);
+			check(Arrays.equals(x, y), name + " row " + row);
+			expected.copy_normalized_row(row, x, 0);
+			actual.copy_normalized_row(row, y, 0);
+			check(Arrays.equals(x, y), name + " normalized row " + row);
+		}
+	}
+
+	private static void check_same_results(List<Triple<Double, String, Integer>> expected, List<Triple<Double, String, Integer>> actual, String name) {
+		check_equal(expected.size(), actual.size(), name + " size");
+		for (int i = 0; i < expected.size(); ++i) {
+			check_equal(expected.get(i).x, actual.get(i).x, name + " score " + i);
+			check_equal(expected.get(i).y, actual.get(i).y, name + " result " + i);
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package objectlm;
+
+import static objectlm.Checks.check;
+import static objectlm.Checks.check_close;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+
+import objectlm.utils.VectorUtils;
+
+import org.ejml.simple.SimpleMatrix;
+
+/**
+ * The normalized matrices written by save_normalized_matrices are reused
+ * only with the parameters.mat they were computed from: once it is
+ * replaced, or when they have other shapes, were written without their
+ * source, or are corrupt, the loader normalizes instead of failing.
+ */
+public class NormalizedMatricesTest {
+
+	public static void main(String[] args) throws Exception {
+		ObjectLM model = TestModels.model(50, 20, 21);
+		Map<String, SimpleMatrix> m = new HashMap<String, SimpleMatrix>();
+		m.put("model_matrix", model.model_matrix);
+		m.put("object_matrix", model.object_matrix);
+
+		File directory = File.createTempFile("objectlm", ".save");
+		directory.delete();
+		directory.mkdir();
+		String path = directory.getPath() + "/";
+		File parameters = new File(path + "parameters.mat");
+		File normalized = new File(path + SavedModelLoader.NORMALIZED_FILE);
+		try {
+			write_bytes(parameters, 1000);
+			SavedModelLoader.save_normalized_matrices(model, path);
+			check(SavedModelLoader.stale_normalized_matrices(path, m) == null, "fresh matrices are reused");
+			check_read(path, model, "fresh matrices");
+
+			// an object matrix with one more row:
+			Map<String, SimpleMatrix> grown = new HashMap<String, SimpleMatrix>(m);
+			grown.put("object_matrix", TestModels.model(50, 21, 21).object_matrix);
+			check(SavedModelLoader.stale_normalized_matrices(path, grown) != null, "another object matrix is stale");
+
+			// a new parameters.mat of another size, even if older:
+			long modified = parameters.lastModified();
+			write_bytes(parameters, 1001);
+			parameters.setLastModified(modified - 60000);
+			check(SavedModelLoader.stale_normalized_matrices(path, m) != null, "a replaced parameters.mat is stale");
+
+			// a file written without its source:
+			SnapshotWriter writer = new SnapshotWriter(normalized.getPath());
+			writer.add_matrix("norm_model_matrix", model.norm_model_matrix);
+			writer.add_matrix("norm_object_matrix", model.norm_object_matrix);
+			writer.close();
+			check(SavedModelLoader.stale_normalized_matrices(path, m) != null, "matrices without a source are stale");
+
+			// a truncated file neither throws nor is reused, and
+			// reading it falls back to normalizing:
+			SavedModelLoader.save_normalized_matrices(model, path);
+			RandomAccessFile file = new RandomAccessFile(normalized, "rw");
+			file.setLength(file.length() / 2);
+			file.close();
+			check(SavedModelLoader.stale_normalized_matrices(path, m) != null, "a truncated file is stale");
+			check_read(path, model, "truncated matrices");
+		} finally {
+			for (File file : directory.listFiles()) {
+				file.delete();
+			}
+			directory.delete();
+		}
+		System.out.println("NormalizedMatricesTest passed");
+	}
+
+	private static void check_read(String path, ObjectLM model, String name) throws Exception {
+		Map<String, Long> timings = new HashMap<String, Long>();
+		SimpleMatrix words = SavedModelLoader.normalized_read_task(path, "norm_model_matrix", model.model_matrix, timings).call();
+		SimpleMatrix objects = SavedModelLoader.normalized_read_task(path, "norm_object_matrix", model.object_matrix, timings).call();
+		check_close(VectorUtils.normalize_rows(model.model_matrix).getMatrix().data, words.getMatrix().data, 1e-12, name + ", words");
+		check_close(VectorUtils.normalize_rows(model.object_matrix).getMatrix().data, objects.getMatrix().data, 1e-12, name + ", objects");
+	}
+
+	private static void write_bytes(File file, int length) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(new byte[length]);
+		} finally {
+			out.close();
+		}
+	}
+}
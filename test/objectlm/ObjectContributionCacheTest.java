@@ -0,0 +1,97 @@
+package objectlm;
+
+import static objectlm.Checks.check;
+import static objectlm.Checks.check_close;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The contributions returned by ObjectContributionCache match the
+ * projection of the object vector plus the bias, from one thread and from
+ * several, while a catalogue much larger than the capacity keeps evicting
+ * entries, and the cache never holds more than its capacity.
+ */
+public class ObjectContributionCacheTest {
+
+	private static final double TOLERANCE = 1e-12;
+	private static final int OBJECTS = 500;
+	private static final int LOOKUPS = 20000;
+
+	public static void main(String[] args) throws Exception {
+		ObjectLM model = TestModels.model(40, OBJECTS, 15);
+		final double[][] expected = new double[OBJECTS][];
+		for (int object = 0; object < OBJECTS; ++object) {
+			expected[object] = contribution(model, object);
+		}
+
+		for (int capacity : new int[] {1, 7, 64}) {
+			final ObjectContributionCache cache = new ObjectContributionCache(model, capacity);
+			check_lookups(cache, expected, new Random(capacity), "capacity " + capacity);
+			check(cache.size() <= capacity, "capacity " + capacity + " holds " + cache.size() + " entries");
+			check(cache.hits() > 0, "capacity " + capacity + " has hits");
+
+			cache.clear();
+			ExecutorService pool = Executors.newFixedThreadPool(4);
+			try {
+				List<Future<Void>> results = new ArrayList<Future<Void>>();
+				for (int t = 0; t < 4; ++t) {
+					final int thread = t;
+					results.add(pool.submit(new Callable<Void>() {
+						public Void call() {
+							check_lookups(cache, expected, new Random(100 + thread), "thread " + thread);
+							return null;
+						}
+					}));
+				}
+				for (Future<Void> result : results) {
+					result.get();
+				}
+			} finally {
+				pool.shutdown();
+			}
+			check(cache.size() <= capacity, "capacity " + capacity + " holds " + cache.size() + " entries after threads");
+			// every resident entry is still found:
+			long hits = cache.hits();
+			for (int object = 0; object < OBJECTS; ++object) {
+				check_close(expected[object], cache.get(object), TOLERANCE, "capacity " + capacity + ", object " + object);
+			}
+			check(cache.hits() >= hits, "counters only grow");
+		}
+		System.out.println("ObjectContributionCacheTest passed");
+	}
+
+	/*
+	 * Lookups skewed towards a few hot objects, with the rest spread over
+	 * the whole catalogue.
+	 */
+	private static void check_lookups(ObjectContributionCache cache, double[][] expected, Random random, String name) {
+		for (int n = 0; n < LOOKUPS; ++n) {
+			int object = random.nextBoolean() ? random.nextInt(5) : random.nextInt(OBJECTS);
+			check_close(expected[object], cache.get(object), TOLERANCE, name + ", object " + object);
+		}
+	}
+
+	/*
+	 * The object columns of the projection matrix times the object
+	 * vector, plus the bias.
+	 */
+	private static double[] contribution(ObjectLM model, int object) {
+		double[] vector = new double[model.object_size];
+		model.object_vectors.copy_row(object, vector, 0);
+		double[] contribution = new double[model.prediction_size];
+		for (int r = 0; r < model.prediction_size; ++r) {
+			double sum = model.bias_vector.get(r);
+			for (int c = 0; c < model.object_size; ++c) {
+				sum += model.projection_matrix.get(r, model.window * model.size + c) * vector[c];
+			}
+			contribution[r] = sum;
+		}
+		return contribution;
+	}
+}
@@ -0,0 +1,99 @@
+package objectlm;
+
+import static objectlm.Checks.check;
+import static objectlm.Checks.check_equal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * An object folded in with the labels the model predicts for an existing
+ * object on the same documents gets a vector that reproduces them, and
+ * objects whose labels do not fit the model's classes are rejected before
+ * any object is fitted or added.
+ */
+public class ObjectFoldInTest {
+
+	private static final int OBJECTS = 30;
+
+	public static void main(String[] args) throws Exception {
+		ObjectLM model = TestModels.model(60, OBJECTS, 23);
+		Random random = new Random(9);
+		int labels_per_object = model.output_classes.size() + model.output_sigmoid_classes;
+
+		// documents and labels of a few existing objects, folded in again
+		// under new names:
+		List<ObjectFoldIn.NewObject> objects = new ArrayList<ObjectFoldIn.NewObject>();
+		for (int o = 0; o < 4; ++o) {
+			List<int[]> documents = new ArrayList<int[]>();
+			for (int d = 0; d < 3; ++d) {
+				int[] document = new int[10 + random.nextInt(10)];
+				for (int i = 0; i < document.length; ++i) {
+					document[i] = random.nextInt(60);
+				}
+				documents.add(document);
+			}
+			objects.add(new ObjectFoldIn.NewObject("folded " + o, documents, document_labels(model, documents, o * 7)));
+		}
+		ObjectFoldIn fold_in = new ObjectFoldIn(model);
+		fold_in.epochs = 50;
+		int[] indices = fold_in.fold_in(objects, 2);
+		for (int o = 0; o < objects.size(); ++o) {
+			ObjectFoldIn.NewObject object = objects.get(o);
+			check_equal(Arrays.toString(object.labels), Arrays.toString(document_labels(model, object.documents, indices[o])),
+					"labels of " + object.name);
+		}
+
+		List<int[]> documents = objects.get(0).documents;
+		int[][] invalid = {
+				new int[labels_per_object - 1],
+				new int[labels_per_object + 1],
+				{3, 0, 0, 0},
+				{0, -1, 0, 0},
+				{0, 0, 2, 0},
+				{0, 0, 0, -1},
+				null};
+		for (int[] labels : invalid) {
+			List<ObjectFoldIn.NewObject> batch = new ArrayList<ObjectFoldIn.NewObject>();
+			batch.add(new ObjectFoldIn.NewObject("valid", documents, new int[labels_per_object]));
+			batch.add(new ObjectFoldIn.NewObject("invalid", documents, labels));
+			int before = model.number_of_objects();
+			boolean rejected = false;
+			try {
+				fold_in.fold_in(batch, 2);
+			} catch (IllegalArgumentException e) {
+				rejected = true;
+			}
+			check(rejected, "labels " + Arrays.toString(labels) + " should be rejected");
+			check_equal(before, model.number_of_objects(), "nothing added for labels " + Arrays.toString(labels));
+		}
+		System.out.println("ObjectFoldInTest passed");
+	}
+
+	/*
+	 * Labels of the mean probabilities of every window of the documents.
+	 */
+	private static int[] document_labels(ObjectLM model, List<int[]> documents, int object_index) {
+		double[] mean = new double[model.prediction_size];
+		double[] probabilities = new double[model.prediction_size];
+		InferenceScratch scratch = model.scratch();
+		int windows = 0;
+		for (int[] document : documents) {
+			for (int start = 0; start + model.window <= document.length; ++start) {
+				model.predict_proba(document, start, object_index, probabilities, scratch);
+				for (int c = 0; c < mean.length; ++c) {
+					mean[c] += probabilities[c];
+				}
+				windows += 1;
+			}
+		}
+		for (int c = 0; c < mean.length; ++c) {
+			mean[c] /= windows;
+		}
+		int[] labels = new int[model.output_classes.size() + model.output_sigmoid_classes];
+		model.labels(mean, labels);
+		return labels;
+	}
+}
@@ -0,0 +1,121 @@
+package objectlm;
+
+import static objectlm.Checks.check_equal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import objectlm.utils.Triple;
+
+/**
+ * Searches split over the threads of use_parallel_search return exactly
+ * the results of sequential scans (ties between duplicate objects
+ * included) for words, objects and batches of objects, including while
+ * other threads keep switching the pool on and off, and the model keeps
+ * answering the same after close().
+ */
+public class ParallelSearchTest {
+
+	// enough rows for the scans to be split:
+	private static final int ROWS = 9000;
+
+	public static void main(String[] args) throws Exception {
+		final ObjectLM model = TestModels.model(ROWS, ROWS, 41);
+		List<String> names = new ArrayList<String>();
+		double[][] vectors = new double[50][];
+		for (int i = 0; i < vectors.length; ++i) {
+			names.add("copy of object " + (i * 97));
+			vectors[i] = model.get_object_vector(i * 97).getMatrix().data;
+		}
+		model.add_objects(names, vectors);
+
+		final List<String> objects = new ArrayList<String>();
+		final List<String> words = new ArrayList<String>();
+		for (int q = 0; q < 40; ++q) {
+			objects.add(model.index2object.get(q * 97));
+			words.add(model.index2word.get(q * 211));
+		}
+		final Searches sequential = new Searches(model, objects, words);
+
+		for (int threads : new int[] {2, 4}) {
+			model.use_parallel_search(threads);
+			sequential.check_same(new Searches(model, objects, words), threads + " threads");
+		}
+
+		// searches racing with the pool being replaced and shut down:
+		ExecutorService clients = Executors.newFixedThreadPool(3);
+		try {
+			List<Future<Searches>> results = new ArrayList<Future<Searches>>();
+			for (int c = 0; c < 3; ++c) {
+				results.add(clients.submit(new Callable<Searches>() {
+					public Searches call() {
+						return new Searches(model, objects, words);
+					}
+				}));
+			}
+			for (int toggle = 0; toggle < 20; ++toggle) {
+				if (toggle % 2 == 0) {
+					model.close();
+				} else {
+					model.use_parallel_search(3);
+				}
+				Thread.sleep(1);
+			}
+			for (int c = 0; c < results.size(); ++c) {
+				sequential.check_same(SavedModelLoader.await(results.get(c)), "client " + c + " while switching the pool");
+			}
+		} finally {
+			clients.shutdown();
+		}
+
+		model.close();
+		sequential.check_same(new Searches(model, objects, words), "after close");
+		System.out.println("ParallelSearchTest passed");
+	}
+
+	/*
+	 * The word, object and batched object searches of a model.
+	 */
+	private static class Searches {
+		final List<ArrayList<Triple<Double, String, Integer>>> words = new ArrayList<ArrayList<Triple<Double, String, Integer>>>();
+		final List<ArrayList<Triple<Double, String, Integer>>> objects = new ArrayList<ArrayList<Triple<Double, String, Integer>>>();
+		final List<ArrayList<Triple<Double, String, Integer>>> batch;
+
+		Searches(ObjectLM model, List<String> object_ids, List<String> word_queries) {
+			for (String word : word_queries) {
+				words.add(model.most_similar_word(word, 20));
+			}
+			for (String id : object_ids) {
+				objects.add(model.most_similar_object(id, 20));
+			}
+			batch = model.most_similar_objects(object_ids, 20);
+		}
+
+		void check_same(Searches actual, String name) {
+			check_results(words, actual.words, name + ", words");
+			check_results(objects, actual.objects, name + ", objects");
+			check_results(batch, actual.batch, name + ", batch");
+		}
+	}
+
+	/*
+	 * Same rows, names and scores, in the same order (Triple compares
+	 * its fields by reference).
+	 */
+	private static void check_results(List<ArrayList<Triple<Double, String, Integer>>> expected, List<ArrayList<Triple<Double, String, Integer>>> actual, String name) {
+		check_equal(expected.size(), actual.size(), name + ": queries");
+		for (int q = 0; q < expected.size(); ++q) {
+			check_equal(expected.get(q).size(), actual.get(q).size(), name + ", query " + q + ": results");
+			for (int k = 0; k < expected.get(q).size(); ++k) {
+				Triple<Double, String, Integer> e = expected.get(q).get(k), a = actual.get(q).get(k);
+				check_equal(e.z, a.z, name + ", query " + q + ": row of result " + k);
+				check_equal(e.y, a.y, name + ", query " + q + ": name of result " + k);
+				check_equal(e.x, a.x, name + ", query " + q + ": score of result " + k);
+			}
+		}
+	}
+}
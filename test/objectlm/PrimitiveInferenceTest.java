@@ -0,0 +1,111 @@
+package objectlm;
+
+import static objectlm.Checks.check_close;
+import static objectlm.Checks.check_equal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.ejml.simple.SimpleMatrix;
+
+/**
+ * The allocation-free predict_proba and predict over int[] windows, along
+ * each prediction path and from several threads, agree with
+ * predict_proba(List) on the matrices, as does predict_proba_batch.
+ */
+public class PrimitiveInferenceTest {
+
+	private static final double TOLERANCE = 1e-12;
+	private static final int WINDOWS = 200;
+
+	public static void main(String[] args) throws Exception {
+		ObjectLM reference = TestModels.model(80, 30, 33);
+		Random random = new Random(8);
+		// windows at a random offset of a longer sequence:
+		int[][] sequences = new int[WINDOWS][];
+		int[] offsets = new int[WINDOWS], objects = new int[WINDOWS];
+		double[][] expected = new double[WINDOWS][];
+		int[][] expected_labels = new int[WINDOWS][];
+		for (int n = 0; n < WINDOWS; ++n) {
+			sequences[n] = new int[reference.window + random.nextInt(5)];
+			for (int i = 0; i < sequences[n].length; ++i) {
+				sequences[n][i] = random.nextInt(80);
+			}
+			offsets[n] = random.nextInt(sequences[n].length - reference.window + 1);
+			objects[n] = random.nextInt(30);
+
+			List<Integer> window = new ArrayList<Integer>();
+			for (int i = 0; i < reference.window; ++i) {
+				window.add(sequences[n][offsets[n] + i]);
+			}
+			expected[n] = reference.predict_proba(window, objects[n]).getMatrix().data;
+			expected_labels[n] = new int[reference.output_classes.size() + reference.output_sigmoid_classes];
+			reference.labels(expected[n], expected_labels[n]);
+		}
+
+		for (String path : TestModels.PREDICTION_PATHS) {
+			ObjectLM model = TestModels.model(80, 30, 33, path);
+			check_windows(model, sequences, offsets, objects, expected, expected_labels, 0, WINDOWS, path);
+			check_windows_in_parallel(model, sequences, offsets, objects, expected, expected_labels, 4, path);
+		}
+
+		// the batch takes the windows as they are:
+		int[][] windows = new int[WINDOWS][reference.window];
+		for (int n = 0; n < WINDOWS; ++n) {
+			System.arraycopy(sequences[n], offsets[n], windows[n], 0, reference.window);
+		}
+		SimpleMatrix batch = reference.predict_proba_batch(windows, objects);
+		for (int n = 0; n < WINDOWS; ++n) {
+			check_close(expected[n], batch.extractVector(false, n).getMatrix().data, TOLERANCE, "batch window " + n);
+		}
+		System.out.println("PrimitiveInferenceTest passed");
+	}
+
+	private static void check_windows(ObjectLM model, int[][] sequences, int[] offsets, int[] objects,
+			double[][] expected, int[][] expected_labels, int from, int to, String name) {
+		InferenceScratch scratch = model.scratch();
+		double[] probabilities = new double[model.prediction_size];
+		int[] labels = new int[expected_labels[0].length];
+		for (int n = from; n < to; ++n) {
+			model.predict_proba(sequences[n], offsets[n], objects[n], probabilities, scratch);
+			check_close(expected[n], probabilities, TOLERANCE, name + ", window " + n);
+			model.predict(sequences[n], offsets[n], objects[n], labels, scratch);
+			for (int k = 0; k < labels.length; ++k) {
+				check_equal(expected_labels[n][k], labels[k], name + ", labels of window " + n + " [" + k + "]");
+			}
+		}
+	}
+
+	/*
+	 * Same checks split over `threads` threads sharing the model, each
+	 * with its own scratch buffers.
+	 */
+	private static void check_windows_in_parallel(final ObjectLM model, final int[][] sequences, final int[] offsets, final int[] objects,
+			final double[][] expected, final int[][] expected_labels, int threads, final String name) throws Exception {
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Object>> futures = new ArrayList<Future<Object>>();
+			for (int t = 0; t < threads; ++t) {
+				final int from = t * WINDOWS / threads, to = (t + 1) * WINDOWS / threads;
+				futures.add(pool.submit(new Callable<Object>() {
+					public Object call() {
+						for (int repeat = 0; repeat < 20; ++repeat) {
+							check_windows(model, sequences, offsets, objects, expected, expected_labels, from, to, name + " in parallel");
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Object> future : futures) {
+				SavedModelLoader.await(future);
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+}
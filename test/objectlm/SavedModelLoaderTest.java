@@ -0,0 +1,126 @@
+package objectlm;
+
+import static objectlm.Checks.check;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import objectlm.utils.Tuple;
+
+import org.ejml.simple.SimpleMatrix;
+
+/**
+ * A save directory read by SavedModelLoader, whose artifacts are loaded
+ * and normalized concurrently, gives the same model as building it one
+ * step after the other, with or without the stored normalized matrices,
+ * reports a timing for every stage, and rethrows the error of a broken
+ * artifact. parameters.mat is stood in for by the reference matrices.
+ */
+public class SavedModelLoaderTest {
+
+	public static void main(String[] args) throws Exception {
+		// built sequentially, normalizing in the constructor:
+		final ObjectLM reference = TestModels.model(70, 25, 19);
+		SavedModelLoader.MatrixReader matrices = new SavedModelLoader.MatrixReader() {
+			public Map<String, SimpleMatrix> read(String filename) {
+				Map<String, SimpleMatrix> m = new HashMap<String, SimpleMatrix>();
+				m.put("projection_matrix", reference.projection_matrix.copy());
+				m.put("bias_vector", reference.bias_vector.copy());
+				m.put("model_matrix", reference.model_matrix.copy());
+				m.put("object_matrix", reference.object_matrix.copy());
+				return m;
+			}
+		};
+
+		File directory = File.createTempFile("objectlm", ".save");
+		directory.delete();
+		directory.mkdir();
+		String path = directory.getPath() + "/";
+		try {
+			write_save_directory(reference, path);
+
+			Tuple<ObjectLM, Map<String, Long>> loaded = SavedModelLoader.load(path, matrices);
+			ModelSnapshotTest.check_same(reference, loaded.x, "loaded");
+			for (String stage : new String[] {"parameters.mat", "__dict__.txt", "__vocab__.gz", "__objects__.gz",
+					"normalize model_matrix", "normalize object_matrix", "total"}) {
+				check(loaded.y.containsKey(stage), "timing of " + stage + " in " + loaded.y);
+			}
+
+			SavedModelLoader.save_normalized_matrices(loaded.x, path);
+			loaded = SavedModelLoader.load(path, matrices);
+			ModelSnapshotTest.check_same(reference, loaded.x, "loaded with normalized matrices");
+			check(loaded.y.containsKey("read norm_model_matrix") && loaded.y.containsKey("read norm_object_matrix"),
+					"the normalized matrices should be read back: " + loaded.y);
+
+			// a vocabulary that is not gzip compressed:
+			write_lines(path + "__vocab__.gz", reference.index2word, false);
+			boolean failed = false;
+			try {
+				SavedModelLoader.load(path, matrices);
+			} catch (IOException e) {
+				failed = true;
+			}
+			check(failed, "a broken artifact should fail the load with its IOException");
+		} finally {
+			for (File file : directory.listFiles()) {
+				file.delete();
+			}
+			directory.delete();
+		}
+		System.out.println("SavedModelLoaderTest passed");
+	}
+
+	private static void write_save_directory(ObjectLM model, String path) throws IOException {
+		new FileOutputStream(path + "parameters.mat").close();
+		write_lines(path + "__vocab__.gz", model.index2word, true);
+		write_lines(path + "__objects__.gz", model.index2object, true);
+
+		Writer writer = new OutputStreamWriter(new FileOutputStream(path + "__dict__.txt"), "UTF-8");
+		try {
+			writer.write("window " + model.window + "\n");
+			writer.write("size " + model.size + "\n");
+			writer.write("object_size " + model.object_size + "\n");
+			writer.write("UnknownWordIndex " + model.UnknownWordIndex + "\n");
+			writer.write("UnknownUppercaseWordIndex " + model.UnknownUppercaseWordIndex + "\n");
+			writer.write("output_classes " + model.output_classes + "\n");
+			writer.write("output_sigmoid_classes " + model.output_sigmoid_classes + "\n");
+			for (int i = 0; i < model.output_labels.size(); ++i) {
+				writer.write("softmax_labels_" + i + " " + python_list(model.output_labels.get(i)) + "\n");
+			}
+			writer.write("sigmoid_labels " + python_list(model.output_sigmoid_labels) + "\n");
+		} finally {
+			writer.close();
+		}
+	}
+
+	private static String python_list(List<String> strings) {
+		StringBuilder list = new StringBuilder("[");
+		for (int i = 0; i < strings.size(); ++i) {
+			list.append(i > 0 ? ", '" : "'").append(strings.get(i)).append("'");
+		}
+		return list.append("]").toString();
+	}
+
+	private static void write_lines(String filename, List<String> lines, boolean gzip) throws IOException {
+		OutputStream out = new FileOutputStream(filename);
+		if (gzip) {
+			out = new GZIPOutputStream(out);
+		}
+		Writer writer = new OutputStreamWriter(out, "UTF-8");
+		try {
+			for (String line : lines) {
+				writer.write(line + "\n");
+			}
+		} finally {
+			writer.close();
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package objectlm;
+
+import static objectlm.Checks.check;
+import static objectlm.Checks.check_close;
+import static objectlm.Checks.check_equal;
+
+import objectlm.utils.TopK;
+
+/**
+ * Each SimilarityIndex, built over clustered vectors, finds most of the
+ * exact nearest neighbors given by IndexEvaluation, keeps finding them
+ * after rows are appended, and returns sorted, exactly scored results
+ * that never include the excluded row.
+ */
+public class SimilarityIndexRecallTest {
+
+	private static final int ROWS = 4000;
+	private static final int APPENDED = 500;
+	private static final int DIMENSION = 24;
+	private static final int QUERIES = 100;
+	private static final int TOPN = 10;
+
+	public static void main(String[] args) throws Exception {
+		MatrixEmbeddingStore store = TestModels.clustered_store(ROWS, DIMENSION, 1);
+		// the same rows followed by APPENDED more:
+		MatrixEmbeddingStore grown = TestModels.clustered_store(ROWS + APPENDED, DIMENSION, 1);
+
+		InvertedFileIndex ivf = new InvertedFileIndex(store, 64, 4, 4000, 10, 2, 7);
+		check_recall("inverted file", ivf, store, grown, 0.95);
+		// probing every list is an exact scan:
+		ivf.nprobe = ivf.number_of_lists();
+		check_recall("inverted file, every list", ivf, grown, grown, 1.0);
+
+		check_recall("hnsw", new HnswIndex(store, 8, 40, 16, 2, 7), store, grown, 0.95);
+		check_recall("int8", new QuantizedIndex(store, 1), store, grown, 0.95);
+		check_recall("product quantization", new ProductQuantizationIndex(store, 8, 2, 4000, 10, 7, 2), store, grown, 0.85);
+		System.out.println("SimilarityIndexRecallTest passed");
+	}
+
+	/*
+	 * Recall on `store`, then on `grown` once its extra rows are
+	 * appended to the index.
+	 */
+	private static void check_recall(String name, SimilarityIndex index, EmbeddingStore store, EmbeddingStore grown, double minimum) {
+		int[] queries = IndexEvaluation.sample_rows(store, QUERIES, 3);
+		double recall = IndexEvaluation.recall_at(index, store, queries, TOPN);
+		check(recall >= minimum, name + ": recall@" + TOPN + " = " + recall + " < " + minimum);
+		check_results(name, index, store, queries);
+
+		if (grown != store) {
+			index.append(grown, store.number_of_rows());
+			int[] appended = new int[QUERIES];
+			for (int i = 0; i < QUERIES; ++i) {
+				appended[i] = store.number_of_rows() + i * (grown.number_of_rows() - store.number_of_rows()) / QUERIES;
+			}
+			recall = IndexEvaluation.recall_at(index, grown, appended, TOPN);
+			check(recall >= minimum, name + " after append: recall@" + TOPN + " = " + recall + " < " + minimum);
+			check_results(name + " after append", index, grown, appended);
+		}
+	}
+
+	private static void check_results(String name, SimilarityIndex index, EmbeddingStore store, int[] queries) {
+		double[] query = new double[store.dimension()];
+		for (int row : queries) {
+			store.copy_normalized_row(row, query, 0);
+			TopK results = index.search(query, TOPN, row);
+			check_equal(TOPN, results.size(), name + " results");
+			for (int i = 0; i < results.size(); ++i) {
+				check(results.index(i) != row, name + " returned the excluded row " + row);
+				check_close(store.normalized_dot(results.index(i), query), results.score(i), 1e-9, name + " score of row " + results.index(i));
+				check(i == 0 || results.score(i - 1) >= results.score(i), name + " results out of order");
+			}
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package objectlm;
+
+import static objectlm.Checks.check;
+import static objectlm.Checks.check_close;
+import static objectlm.Checks.check_equal;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import objectlm.utils.Triple;
+
+/**
+ * A model switched to single precision, from the heap or from a snapshot
+ * with mapped objects, predicts and searches like the double precision
+ * model up to float rounding, and objects added afterwards are stored in
+ * single precision and found by their own search.
+ */
+public class SinglePrecisionTest {
+
+	private static final double TOLERANCE = 1e-5;
+
+	public static void main(String[] args) throws Exception {
+		ObjectLM reference = TestModels.model(60, 40, 17);
+		ObjectLM single = TestModels.model(60, 40, 17);
+		single.use_single_precision();
+		check(single.word_vectors instanceof FloatEmbeddingStore, "word vectors in single precision");
+		check(single.object_vectors instanceof FloatEmbeddingStore, "object vectors in single precision");
+		check(single.model_matrix == null && single.norm_model_matrix == null, "double precision words released");
+		check(single.object_matrix == null && single.norm_object_matrix == null, "double precision objects released");
+		check_same(reference, single, "heap");
+
+		File file = File.createTempFile("objectlm", ".snapshot");
+		try {
+			reference.save_snapshot(file.getPath());
+			ObjectLM mapped = ObjectLM.open_snapshot(file.getPath(), true);
+			mapped.use_single_precision();
+			check_same(reference, mapped, "mapped");
+		} finally {
+			file.delete();
+		}
+
+		double[][] vectors = new double[3][single.object_size];
+		Random random = new Random(2);
+		for (double[] vector : vectors) {
+			for (int j = 0; j < vector.length; ++j) {
+				vector[j] = random.nextGaussian();
+			}
+		}
+		int[] added = single.add_objects(Arrays.asList("new 0", "new 1", "new 2"), vectors);
+		check(single.object_vectors instanceof FloatEmbeddingStore, "added objects in single precision");
+		for (int i = 0; i < added.length; ++i) {
+			double[] row = new double[single.object_size];
+			single.object_vectors.copy_row(added[i], row, 0);
+			check_close(vectors[i], row, TOLERANCE, "added object " + i);
+			ArrayList<Triple<Double, String, Integer>> found = single.most_similar_object(single.get_object_vector(added[i]), 1);
+			check_equal("new " + i, found.get(0).y, "added object " + i + " finds itself");
+		}
+		System.out.println("SinglePrecisionTest passed");
+	}
+
+	private static void check_same(ObjectLM expected, ObjectLM actual, String name) {
+		Random random = new Random(6);
+		for (int n = 0; n < 50; ++n) {
+			List<Integer> window = TestModels.window(expected, random);
+			int object = random.nextInt(expected.number_of_objects());
+			check_close(expected.predict_proba(window, object).getMatrix().data, actual.predict_proba(window, object).getMatrix().data,
+					TOLERANCE, name + ", probabilities of window " + n);
+		}
+		for (int object = 0; object < expected.number_of_objects(); object += 7) {
+			String id = expected.index2object.get(object);
+			check_scores(expected.most_similar_object(id, 5), actual.most_similar_object(id, 5), name + ", neighbors of " + id);
+		}
+		for (int word = 0; word < expected.index2word.size(); word += 9) {
+			String w = expected.index2word.get(word);
+			check_scores(expected.most_similar_word(w, 5), actual.most_similar_word(w, 5), name + ", neighbors of " + w);
+		}
+	}
+
+	/*
+	 * Float rounding may swap near ties, so only the scores are compared.
+	 */
+	private static void check_scores(List<Triple<Double, String, Integer>> expected, List<Triple<Double, String, Integer>> actual, String name) {
+		check_equal(expected.size(), actual.size(), name + ": results");
+		for (int k = 0; k < expected.size(); ++k) {
+			check_close(expected.get(k).x, actual.get(k).x, TOLERANCE, name + ": score " + k);
+		}
+	}
+}
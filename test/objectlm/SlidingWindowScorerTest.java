@@ -0,0 +1,77 @@
+package objectlm;
+
+import static objectlm.Checks.check;
+import static objectlm.Checks.check_close;
+import static objectlm.Checks.check_equal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Every window scored by a SlidingWindowScorer, along each prediction
+ * path, has the probabilities predict_proba(List) gives for it on the
+ * matrices, and the mean over a document is the mean of its windows.
+ * A scorer reset for another object scores like a new one, with its
+ * memo of projected words mostly hit or constantly evicting.
+ */
+public class SlidingWindowScorerTest {
+
+	private static final double TOLERANCE = 1e-12;
+
+	public static void main(String[] args) throws Exception {
+		// few words, so the memo of projected words is mostly hit, and
+		// more words than memo slots, so words evict each other:
+		check_documents(80);
+		check_documents(1000);
+		System.out.println("SlidingWindowScorerTest passed");
+	}
+
+	private static void check_documents(int vocabulary) throws Exception {
+		final ObjectLM reference = TestModels.model(vocabulary, 30, 21);
+		for (String path : TestModels.PREDICTION_PATHS) {
+			ObjectLM model = TestModels.model(vocabulary, 30, 21, path);
+			String name_of_path = path + ", " + vocabulary + " words";
+			Random random = new Random(4);
+			SlidingWindowScorer reused = new SlidingWindowScorer(model, 0);
+			for (int document = 0; document < 40; ++document) {
+				final List<Integer> words = new ArrayList<Integer>();
+				for (int i = 0, length = random.nextInt(20); i < length; ++i) {
+					words.add(random.nextInt(vocabulary));
+				}
+				final int object_index = random.nextInt(30);
+				final String name = name_of_path + ", document " + document;
+				final double[] expected_mean = new double[model.prediction_size];
+				final int[] windows = new int[1];
+
+				double[] mean = SlidingWindowScorer.score(model, words, object_index, new SlidingWindowScorer.Listener() {
+					public void window_scored(int start, double[] probabilities) {
+						check_equal(windows[0], start, name + " window start");
+						double[] expected = reference.predict_proba(words.subList(start, start + reference.window), object_index).getMatrix().data;
+						check_close(expected, probabilities, TOLERANCE, name + " window " + start);
+						for (int k = 0; k < expected.length; ++k) {
+							expected_mean[k] += expected[k];
+						}
+						windows[0] += 1;
+					}
+				});
+				check_equal(Math.max(0, words.size() - model.window + 1), windows[0], name + " windows");
+				for (int k = 0; k < expected_mean.length; ++k) {
+					// zeros when the document is shorter than a window:
+					expected_mean[k] = windows[0] > 0 ? expected_mean[k] / windows[0] : 0.0;
+				}
+				check_close(expected_mean, mean, TOLERANCE, name + " mean");
+
+				reused.reset(object_index);
+				for (int word : words) {
+					reused.push(word);
+				}
+				check_equal(windows[0], reused.windows_scored(), name + " windows of the reused scorer");
+				check_close(mean, reused.mean_probabilities(), 0.0, name + " mean of the reused scorer");
+			}
+			if (model.projection_tables == null && vocabulary < 256) {
+				check(reused.memo_hits() > 0, name_of_path + ": repeated words should be memoized");
+			}
+		}
+	}
+}
@@ -0,0 +1,139 @@
+package objectlm;
+
+import static objectlm.Checks.check;
+import static objectlm.Checks.check_close;
+import static objectlm.Checks.check_equal;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.ejml.simple.SimpleMatrix;
+
+/**
+ * TabulatedProjection built from the heap, lean or memory mapped stores
+ * (over more words than one block of its build) holds the projection of
+ * every word at every position and of every object plus the bias, so
+ * that adding up a window's rows gives the direct projection
+ * `projection_matrix * observation + bias_vector`, and the object table
+ * grows with add_objects.
+ */
+public class TabulatedProjectionTest {
+
+	private static final double TOLERANCE = 1e-12;
+	private static final int WORDS = 5000;
+	private static final int OBJECTS = 60;
+
+	public static void main(String[] args) throws Exception {
+		ObjectLM reference = TestModels.model(WORDS, OBJECTS, 29);
+
+		ObjectLM heap = TestModels.model(WORDS, OBJECTS, 29);
+		heap.use_projection_tables();
+		check_tables(reference, heap, "heap");
+
+		ObjectLM lean = TestModels.model(WORDS, OBJECTS, 29);
+		lean.use_lean_storage();
+		lean.use_projection_tables();
+		check_tables(reference, lean, "lean");
+
+		File file = File.createTempFile("objectlm", ".snapshot");
+		try {
+			reference.save_snapshot(file.getPath());
+			ObjectLM mapped = ObjectLM.open_snapshot(file.getPath(), true);
+			mapped.use_projection_tables();
+			check_tables(reference, mapped, "mapped");
+		} finally {
+			file.delete();
+		}
+
+		double[][] vectors = new double[5][reference.object_size];
+		Random random = new Random(12);
+		for (double[] vector : vectors) {
+			for (int j = 0; j < vector.length; ++j) {
+				vector[j] = random.nextGaussian();
+			}
+		}
+		List<String> names = Arrays.asList("new 0", "new 1", "new 2", "new 3", "new 4");
+		reference.add_objects(names, vectors);
+		double[] before = heap.projection_tables.object_table;
+		heap.add_objects(names, vectors);
+		check(heap.projection_tables.object_table != before, "the object table is replaced, not grown in place");
+		check_equal(OBJECTS * reference.prediction_size, before.length, "the replaced table is left as it was");
+		check_tables(reference, heap, "heap after add_objects");
+		System.out.println("TabulatedProjectionTest passed");
+	}
+
+	private static void check_tables(ObjectLM reference, ObjectLM model, String name) {
+		TabulatedProjection tables = model.projection_tables;
+		int objects = reference.number_of_objects();
+		check_equal(objects * reference.prediction_size, tables.object_table.length, name + ": object table rows");
+		for (int p = 0; p < reference.window; ++p) {
+			check_equal(WORDS * reference.prediction_size, tables.word_tables[p].length, name + ": word table rows at " + p);
+			// every row of the last block and a stride through the others:
+			for (int word = 0; word < WORDS; word += word < 4000 ? 37 : 1) {
+				check_close(contribution(reference, reference.model_matrix, word, p * reference.size, false),
+						Arrays.copyOfRange(tables.word_tables[p], word * reference.prediction_size, (word + 1) * reference.prediction_size),
+						TOLERANCE, name + ": word " + word + " at " + p);
+			}
+		}
+		for (int object = 0; object < objects; ++object) {
+			check_close(contribution(reference, reference.object_matrix, object, reference.window * reference.size, true),
+					Arrays.copyOfRange(tables.object_table, object * reference.prediction_size, (object + 1) * reference.prediction_size),
+					TOLERANCE, name + ": object " + object);
+		}
+
+		Random random = new Random(4);
+		double[] summed = new double[reference.prediction_size];
+		for (int n = 0; n < 100; ++n) {
+			int[] window = new int[reference.window];
+			for (int i = 0; i < window.length; ++i) {
+				window[i] = random.nextInt(WORDS);
+			}
+			int object = random.nextInt(objects);
+			tables.unnormalized(window, object, summed, 0);
+			check_close(direct(reference, window, object), summed, TOLERANCE, name + ": window " + n);
+		}
+	}
+
+	/*
+	 * Columns `column` onwards of the projection matrix times row `row`
+	 * of `matrix`, plus the bias when `bias` is true.
+	 */
+	private static double[] contribution(ObjectLM model, SimpleMatrix matrix, int row, int column, boolean bias) {
+		double[] out = new double[model.prediction_size];
+		for (int k = 0; k < model.prediction_size; ++k) {
+			double sum = bias ? model.bias_vector.get(k) : 0.0;
+			for (int j = 0; j < matrix.numCols(); ++j) {
+				sum += model.projection_matrix.get(k, column + j) * matrix.get(row, j);
+			}
+			out[k] = sum;
+		}
+		return out;
+	}
+
+	/*
+	 * The projection of the concatenated observation, one
+	 * multiply-add at a time.
+	 */
+	private static double[] direct(ObjectLM model, int[] window, int object) {
+		double[] observation = new double[model.window * model.size + model.object_size];
+		for (int p = 0; p < window.length; ++p) {
+			for (int j = 0; j < model.size; ++j) {
+				observation[p * model.size + j] = model.model_matrix.get(window[p], j);
+			}
+		}
+		for (int j = 0; j < model.object_size; ++j) {
+			observation[model.window * model.size + j] = model.object_matrix.get(object, j);
+		}
+		double[] out = new double[model.prediction_size];
+		for (int k = 0; k < model.prediction_size; ++k) {
+			double sum = model.bias_vector.get(k);
+			for (int j = 0; j < observation.length; ++j) {
+				sum += model.projection_matrix.get(k, j) * observation[j];
+			}
+			out[k] = sum;
+		}
+		return out;
+	}
+}
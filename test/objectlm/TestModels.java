@@ -0,0 +1,108 @@
+package objectlm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import objectlm.utils.VectorUtils;
+
+import org.ejml.simple.SimpleMatrix;
+
+/**
+ * Small random models and embedding stores shared by the tests.
+ */
+public class TestModels {
+
+	public static final int WINDOW = 3;
+	public static final int SIZE = 5;
+	public static final int OBJECT_SIZE = 4;
+
+	/*
+	 * Model with random parameters, two softmax classes (of 3 and 4
+	 * labels) and two sigmoid classes. Some words are not ASCII.
+	 */
+	public static ObjectLM model(int words, int objects, long seed) throws Exception {
+		Random random = new Random(seed);
+		ArrayList<Integer> output_classes = new ArrayList<Integer>(Arrays.asList(3, 4));
+		int prediction_size = 3 + 4 + 2;
+
+		ArrayList<String> vocabulary = new ArrayList<String>();
+		for (int i = 0; i < words; ++i) {
+			vocabulary.add(i % 7 == 0 ? "mot_" + i + "_é" : "word_" + i);
+		}
+		ArrayList<String> names = new ArrayList<String>();
+		for (int i = 0; i < objects; ++i) {
+			names.add("object " + i);
+		}
+		SavedVocabulary vocab = new SavedVocabulary(vocabulary);
+		SavedVocabulary objs = new SavedVocabulary(names);
+
+		ArrayList<ArrayList<String>> output_labels = new ArrayList<ArrayList<String>>();
+		output_labels.add(new ArrayList<String>(Arrays.asList("a", "b", "c")));
+		output_labels.add(new ArrayList<String>(Arrays.asList("1", "2", "3", "4")));
+
+		return new ObjectLM(
+				SimpleMatrix.random(prediction_size, WINDOW * SIZE + OBJECT_SIZE, -1, 1, random),
+				SimpleMatrix.random(1, prediction_size, -1, 1, random),
+				SimpleMatrix.random(words, SIZE, -1, 1, random),
+				SimpleMatrix.random(objects, OBJECT_SIZE, -1, 1, random),
+				vocab.index2word, vocab.word2index, 0, 1,
+				objs.index2word, objs.word2index,
+				WINDOW, SIZE, OBJECT_SIZE,
+				output_classes, output_labels, 2,
+				new ArrayList<String>(Arrays.asList("s1", "s2")));
+	}
+
+	/*
+	 * `rows` vectors of `dimension` scattered around 50 random centers,
+	 * so that approximate indices have neighbourhoods to find.
+	 */
+	public static MatrixEmbeddingStore clustered_store(int rows, int dimension, long seed) {
+		Random random = new Random(seed);
+		double[][] centers = new double[50][dimension];
+		for (double[] center : centers) {
+			for (int j = 0; j < dimension; ++j) {
+				center[j] = random.nextGaussian();
+			}
+		}
+		SimpleMatrix raw = new SimpleMatrix(rows, dimension);
+		for (int i = 0; i < rows; ++i) {
+			double[] center = centers[random.nextInt(centers.length)];
+			for (int j = 0; j < dimension; ++j) {
+				raw.set(i, j, center[j] + 0.7 * random.nextGaussian());
+			}
+		}
+		return new MatrixEmbeddingStore(raw, VectorUtils.normalize_rows(raw));
+	}
+
+	/*
+	 * The ways predictions can be computed: from the matrices, from the
+	 * projection tables, or with the object contributions cached.
+	 */
+	public static final String[] PREDICTION_PATHS = {"matrices", "projection tables", "contribution cache"};
+
+	/*
+	 * Same model as `model(words, objects, seed)` predicting
+	 * along one of the PREDICTION_PATHS.
+	 */
+	public static ObjectLM model(int words, int objects, long seed, String path) throws Exception {
+		ObjectLM model = model(words, objects, seed);
+		if (path.equals("projection tables")) {
+			model.use_projection_tables();
+		} else if (path.equals("contribution cache")) {
+			model.use_object_contribution_cache(Math.max(1, objects / 3));
+		}
+		return model;
+	}
+
+	/*
+	 * A random window of word indices.
+	 */
+	public static ArrayList<Integer> window(ObjectLM model, Random random) {
+		ArrayList<Integer> indices = new ArrayList<Integer>();
+		for (int i = 0; i < model.window; ++i) {
+			indices.add(random.nextInt(model.index2word.size()));
+		}
+		return indices;
+	}
+}
@@ -0,0 +1,142 @@
+package objectlm.utils;
+
+import static objectlm.Checks.check;
+import static objectlm.Checks.check_equal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * CompactDictionary agrees with an ArrayList and a HashMap filled with the
+ * same strings (non-ASCII ones, duplicates and lone surrogates included)
+ * while it grows and rehashes from its smallest table, after a round trip
+ * through its UTF-8 buffer or serialization, and through its list and map
+ * views.
+ */
+public class CompactDictionaryTest {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String[] PIECES = {"a", "Z", "0", " ", "é", "ß", "日本", "ё", "😀", "\u0000", "-", "ÿ"};
+
+	public static void main(String[] args) throws Exception {
+		Random random = new Random(4);
+		List<String> words = new ArrayList<String>();
+		words.add("");
+		for (int i = 0; i < 5000; ++i) {
+			// short words from few pieces, so that many repeat:
+			StringBuilder word = new StringBuilder();
+			int length = 1 + random.nextInt(i < 2500 ? 3 : 6);
+			for (int k = 0; k < length; ++k) {
+				word.append(PIECES[random.nextInt(PIECES.length)]);
+			}
+			words.add(word.toString());
+		}
+
+		// from the smallest table, so that it is rehashed several times:
+		CompactDictionary dictionary = new CompactDictionary();
+		List<String> expected_list = new ArrayList<String>();
+		Map<String, Integer> expected_map = new HashMap<String, Integer>();
+		for (String word : words) {
+			int index = dictionary.append(word);
+			check_equal(expected_list.size(), index, "position of " + word);
+			expected_list.add(word);
+			// a repeated word resolves to its latest position:
+			expected_map.put(word, index);
+			if (index % 97 == 0) {
+				check_same(expected_list, expected_map, dictionary, "after " + (index + 1) + " words");
+			}
+		}
+		check(expected_map.size() < expected_list.size(), "the words should repeat");
+		check_same(expected_list, expected_map, dictionary, "filled");
+		check_same(expected_list, expected_map, new CompactDictionary(words), "from a list");
+
+		// rebuilt from its utf-8 buffer, as snapshots do:
+		int[] offsets = dictionary.utf8_offsets();
+		CompactDictionary rebuilt = CompactDictionary.from_utf8(
+				Arrays.copyOf(dictionary.utf8_bytes(), offsets[dictionary.size()]),
+				Arrays.copyOf(offsets, dictionary.size() + 1),
+				dictionary.size());
+		check_same(expected_list, expected_map, rebuilt, "from utf-8");
+
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(buffer);
+		out.writeObject(dictionary);
+		out.close();
+		CompactDictionary deserialized = (CompactDictionary) new ObjectInputStream(new ByteArrayInputStream(buffer.toByteArray())).readObject();
+		check_same(expected_list, expected_map, deserialized, "deserialized");
+
+		// lone surrogates are stored as '?', like String.getBytes does:
+		CompactDictionary surrogates = new CompactDictionary();
+		int lone = surrogates.append("x\uD800y");
+		check_equal("x?y", surrogates.get(lone), "lone surrogate decoded");
+		check_equal(lone, surrogates.index_of("x?y"), "lone surrogate found as '?'");
+		check_equal(lone, surrogates.index_of("x\uDFFFy"), "any lone surrogate found as '?'");
+		check_equal(-1, surrogates.index_of("x😀y"), "a surrogate pair is not '?'");
+
+		// the views:
+		final List<String> list = dictionary.as_list();
+		final Map<String, Integer> map = dictionary.as_map();
+		check(CompactDictionary.backing(list) == dictionary, "the list view is backed by the dictionary");
+		check(CompactDictionary.backing(map) == dictionary, "the map view is backed by the dictionary");
+		check(CompactDictionary.backing(new ArrayList<String>(list)) == null, "a copy is not backed");
+		list.add("appended through the list");
+		check_equal(dictionary.size() - 1, map.get("appended through the list"), "list add appends");
+		check_equal(dictionary.size() - 1, list.indexOf("appended through the list"), "list indexOf");
+		check_equal(null, map.get("never added"), "absent word");
+		check_equal(null, map.get(Integer.valueOf(3)), "not a string");
+		check_equal(-1, list.indexOf("never added"), "absent word in the list");
+		check_throws(new Runnable() {
+			public void run() {
+				map.put("word", 0);
+			}
+		}, "put on the map view");
+		check_throws(new Runnable() {
+			public void run() {
+				list.add(0, "inserted");
+			}
+		}, "insertion before the end of the list view");
+
+		int entries = 0;
+		for (Map.Entry<String, Integer> entry : map.entrySet()) {
+			check_equal(entry.getKey(), dictionary.get(entry.getValue()), "entry " + entry.getValue());
+			entries += 1;
+		}
+		check_equal(dictionary.size(), entries, "entries of the map view");
+		System.out.println("CompactDictionaryTest passed");
+	}
+
+	private static void check_same(List<String> expected_list, Map<String, Integer> expected_map, CompactDictionary dictionary, String name) {
+		check_equal(expected_list.size(), dictionary.size(), name + ": size");
+		for (int i = 0; i < expected_list.size(); ++i) {
+			check_equal(expected_list.get(i), dictionary.get(i), name + ": word " + i);
+		}
+		for (Map.Entry<String, Integer> entry : expected_map.entrySet()) {
+			check_equal(entry.getValue().intValue(), dictionary.index_of(entry.getKey()), name + ": index of " + entry.getKey());
+		}
+		check_equal(-1, dictionary.index_of("absent"), name + ": absent word");
+		// the buffer holds the plain utf-8 encoding of each word:
+		byte[] bytes = dictionary.utf8_bytes();
+		int[] offsets = dictionary.utf8_offsets();
+		for (int i = 0; i < expected_list.size(); ++i) {
+			check(Arrays.equals(expected_list.get(i).getBytes(UTF8), Arrays.copyOfRange(bytes, offsets[i], offsets[i + 1])), name + ": bytes of word " + i);
+		}
+	}
+
+	private static void check_throws(Runnable action, String name) {
+		try {
+			action.run();
+		} catch (UnsupportedOperationException e) {
+			return;
+		}
+		throw new AssertionError(name + " should throw UnsupportedOperationException");
+	}
+}
@@ -0,0 +1,68 @@
+package objectlm.utils;
+
+import static objectlm.Checks.check_equal;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+/**
+ * TopK keeps the same elements, in the same order, as a stable descending
+ * sort of every score truncated to k, ties included, and merging the
+ * selections of several parts of the scores changes nothing.
+ */
+public class TopKTest {
+
+	public static void main(String[] args) {
+		Random random = new Random(5);
+		for (int trial = 0; trial < 200; ++trial) {
+			int n = random.nextInt(300);
+			final double[] scores = new double[n];
+			for (int i = 0; i < n; ++i) {
+				// few distinct values so that ties are common:
+				scores[i] = trial % 2 == 0 ? random.nextInt(10) : random.nextGaussian();
+			}
+			Integer[] order = new Integer[n];
+			for (int i = 0; i < n; ++i) {
+				order[i] = i;
+			}
+			Arrays.sort(order, new Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					return Double.compare(scores[b], scores[a]);
+				}
+			});
+
+			for (int k : new int[] {0, 1, 5, n / 2, n, n + 3}) {
+				TopK all = new TopK(k);
+				for (int i = 0; i < n; ++i) {
+					all.offer(scores[i], i);
+				}
+				check_sorted(order, scores, all.sort(), k, "trial " + trial + ", k = " + k);
+
+				// offered in pieces and in reverse, then merged:
+				TopK merged = new TopK(k);
+				int split = n > 0 ? random.nextInt(n + 1) : 0;
+				TopK first = new TopK(k), second = new TopK(k);
+				for (int i = split - 1; i >= 0; --i) {
+					first.offer(scores[i], i);
+				}
+				for (int i = n - 1; i >= split; --i) {
+					second.offer(scores[i], i);
+				}
+				merged.merge(second);
+				merged.merge(first);
+				check_sorted(order, scores, merged.sort(), k, "merged trial " + trial + ", k = " + k);
+			}
+		}
+		System.out.println("TopKTest passed");
+	}
+
+	private static void check_sorted(Integer[] order, double[] scores, TopK top, int k, String name) {
+		int expected = Math.min(k, order.length);
+		check_equal(expected, top.size(), name + " size");
+		for (int i = 0; i < expected; ++i) {
+			check_equal(order[i], top.index(i), name + " index " + i);
+			check_equal(scores[order[i]], top.score(i), name + " score " + i);
+		}
+	}
+}
@@ -0,0 +1,134 @@
+package objectlm.utils;
+
+import static objectlm.Checks.check_close;
+import static objectlm.Checks.check_equal;
+
+import java.util.Random;
+
+/**
+ * The unrolled kernels of VectorKernels agree with plain sequential loops
+ * for every length around the unrolling (remainders included), at
+ * offsets into larger arrays, and leave the values outside their range
+ * untouched. The softmax stays finite for large logits and argmax keeps
+ * the first of tied values.
+ */
+public class VectorKernelsTest {
+
+	private static final double TOLERANCE = 1e-12;
+
+	public static void main(String[] args) {
+		Random random = new Random(21);
+		for (int n = 0; n <= 13; ++n) {
+			for (int offset = 0; offset < 3; ++offset) {
+				String name = "length " + n + ", offset " + offset;
+				double[] a = gaussians(random, n + 2 * offset);
+				double[] b = gaussians(random, n + 3 * offset);
+				check_close(naive_dot(a, offset, b, 2 * offset, n), VectorKernels.dot(a, offset, b, 2 * offset, n), TOLERANCE, "dot, " + name);
+
+				float[] f = new float[a.length];
+				for (int j = 0; j < a.length; ++j) {
+					f[j] = (float) a[j];
+				}
+				double expected = 0.0;
+				for (int j = 0; j < n; ++j) {
+					expected += (double) f[offset + j] * b[2 * offset + j];
+				}
+				check_close(expected, VectorKernels.dot(f, offset, b, 2 * offset, n), TOLERANCE, "float dot, " + name);
+
+				check_gemv(random, n, offset, name);
+				check_dot_blocks(random, n, offset + 1, name);
+				check_normalization(random, n, offset, name);
+			}
+		}
+
+		// shifted by the maximum, large logits do not overflow:
+		double[] large = {1000.0, 999.0, -1000.0};
+		VectorKernels.exp_normalize(large, 0, 3);
+		check_close(1.0 / (1.0 + Math.exp(-1.0)), large[0], TOLERANCE, "softmax of large logits");
+		check_close(0.0, large[2], TOLERANCE, "softmax of a very small logit");
+
+		check_equal(1, VectorKernels.argmax(new double[] {0.0, 3.0, 1.0, 3.0}, 0, 4), "first of tied maxima");
+		check_equal(3, VectorKernels.argmax(new double[] {9.0, 0.0, 1.0, 3.0}, 1, 4), "maximum within the range");
+		check_equal(-1, VectorKernels.argmax(new double[] {1.0}, 0, 0), "empty range");
+		check_equal(-1, VectorKernels.argmax(new double[] {Double.NaN, Double.NaN}, 0, 2), "no largest value");
+		System.out.println("VectorKernelsTest passed");
+	}
+
+	private static void check_gemv(Random random, int rows, int offset, String name) {
+		int length = 1 + random.nextInt(7);
+		int stride = length + offset + 2;
+		double[] matrix = gaussians(random, rows * stride);
+		double[] x = gaussians(random, length + offset);
+		double[] start = gaussians(random, rows);
+		for (boolean with_start : new boolean[] {false, true}) {
+			double[] out = gaussians(random, rows + 2 * offset);
+			double[] expected = out.clone();
+			for (int k = 0; k < rows; ++k) {
+				expected[2 * offset + k] = (with_start ? start[k] : 0.0) + naive_dot(matrix, k * stride + offset, x, offset, length);
+			}
+			VectorKernels.gemv(matrix, rows, stride, offset, length, x, offset, with_start ? start : null, out, 2 * offset);
+			check_close(expected, out, TOLERANCE, "gemv" + (with_start ? " with start, " : ", ") + name);
+		}
+	}
+
+	private static void check_dot_blocks(Random random, int cols, int b_rows, String name) {
+		int a_rows = 1 + random.nextInt(5);
+		double[] a = gaussians(random, a_rows * cols);
+		double[] b = gaussians(random, b_rows * cols);
+		double[] out = new double[a_rows * b_rows];
+		VectorKernels.dot_blocks(a, a_rows, b, b_rows, cols, out);
+		for (int i = 0; i < a_rows; ++i) {
+			for (int j = 0; j < b_rows; ++j) {
+				// summed exactly like dot:
+				check_equal(VectorKernels.dot(a, i * cols, b, j * cols, cols), out[i * b_rows + j], "dot_blocks " + i + ", " + j + ", " + name);
+				check_close(naive_dot(a, i * cols, b, j * cols, cols), out[i * b_rows + j], TOLERANCE, "dot_blocks " + i + ", " + j + ", " + name);
+			}
+		}
+	}
+
+	/*
+	 * normalize_logits over two softmax groups of random sizes followed by
+	 * `sigmoids` sigmoids, against exponentials divided by their sum.
+	 */
+	private static void check_normalization(Random random, int sigmoids, int offset, String name) {
+		int[] groups = {1 + random.nextInt(5), 1 + random.nextInt(5)};
+		int total = groups[0] + groups[1] + sigmoids;
+		double[] x = gaussians(random, total + 2 * offset);
+		for (int i = 0; i < x.length; ++i) {
+			x[i] *= 5.0;
+		}
+		double[] expected = x.clone();
+		int index = offset;
+		for (int size : groups) {
+			double sum = 0.0;
+			for (int i = index; i < index + size; ++i) {
+				sum += Math.exp(x[i]);
+			}
+			for (int i = index; i < index + size; ++i) {
+				expected[i] = Math.exp(x[i]) / sum;
+			}
+			index += size;
+		}
+		for (int i = index; i < index + sigmoids; ++i) {
+			expected[i] = 1.0 / (1.0 + Math.exp(-x[i]));
+		}
+		VectorKernels.normalize_logits(x, offset, groups, sigmoids);
+		check_close(expected, x, TOLERANCE, "normalize_logits, " + name);
+	}
+
+	private static double naive_dot(double[] a, int a_offset, double[] b, int b_offset, int n) {
+		double sum = 0.0;
+		for (int j = 0; j < n; ++j) {
+			sum += a[a_offset + j] * b[b_offset + j];
+		}
+		return sum;
+	}
+
+	private static double[] gaussians(Random random, int n) {
+		double[] values = new double[n];
+		for (int i = 0; i < n; ++i) {
+			values[i] = random.nextGaussian();
+		}
+		return values;
+	}
+}